@@ -0,0 +1,91 @@
+package helt.pubex.bench;
+
+import de.tudarmstadt.ukp.dkpro.core.stanfordnlp.StanfordNamedEntityRecognizer;
+import de.tudarmstadt.ukp.dkpro.core.stanfordnlp.StanfordPosTagger;
+import de.tudarmstadt.ukp.dkpro.core.stanfordnlp.StanfordSegmenter;
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.cas.impl.Serialization;
+import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.jcas.JCas;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.uima.fit.factory.AnalysisEngineFactory.createEngine;
+
+/**
+ * POS tagging and named entity recognition of one segmented fixture, with the
+ * annotators of the pipeline. Every invocation starts from the same segmented
+ * CAS.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class AnnotatorBenchmark {
+
+	@Param({ "pos", "ner" })
+	public String annotator;
+
+	@Param({ Fixtures.DOCUMENT })
+	public String document;
+
+	private AnalysisEngine engine;
+	private byte[] segmented;
+	private JCas jcas;
+
+	@Setup
+	public void setUp() throws Exception {
+		AnalysisEngine segmenter = createEngine(StanfordSegmenter.class);
+		JCas prepared = Fixtures.annotate(Fixtures.text(document), segmenter);
+		segmenter.destroy();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Serialization.serializeWithCompression(prepared.getCas(), out);
+		segmented = out.toByteArray();
+
+		switch (annotator) {
+		case "pos":
+			engine = createEngine(StanfordPosTagger.class);
+			break;
+		case "ner":
+			engine = createEngine(StanfordNamedEntityRecognizer.class);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown annotator " + annotator);
+		}
+		jcas = JCasFactory.createJCas();
+	}
+
+	@Setup(Level.Invocation)
+	public void reset() throws Exception {
+		jcas.reset();
+		Serialization.deserializeCAS(jcas.getCas(), new ByteArrayInputStream(segmented));
+	}
+
+	@Benchmark
+	public JCas annotate() throws Exception {
+		engine.process(jcas);
+		return jcas;
+	}
+
+	@TearDown
+	public void tearDown() {
+		engine.destroy();
+	}
+}
@@ -0,0 +1,95 @@
+package helt.pubex.bench;
+
+import helt.pubex.models.DocumentAnnotation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Construction of one {@link DocumentAnnotation} per word of a fixture. The
+ * baseline repeats what the constructor used to do, a regex replacement of both
+ * strings and a random UUID per annotation, and is compared with the builder
+ * as it is now, once with a new builder per annotation and once with a reused
+ * one. No models are needed, the words are found with a regex.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DocumentAnnotationBenchmark {
+
+	@Param({ Fixtures.DOCUMENT })
+	public String document;
+
+	private int[] begins;
+	private int[] ends;
+	private String[] texts;
+
+	@Setup
+	public void setUp() throws Exception {
+		String text = Fixtures.text(document);
+		List<int[]> spans = new ArrayList<>();
+		// pairs of words, so that some spans contain line breaks
+		Matcher matcher = Pattern.compile("\\S+\\s+\\S+").matcher(text);
+		while (matcher.find()) {
+			spans.add(new int[] { matcher.start(), matcher.end() });
+		}
+		begins = new int[spans.size()];
+		ends = new int[spans.size()];
+		texts = new String[spans.size()];
+		for (int i = 0; i < spans.size(); i++) {
+			begins[i] = spans.get(i)[0];
+			ends[i] = spans.get(i)[1];
+			texts[i] = text.substring(begins[i], ends[i]);
+		}
+	}
+
+	@Benchmark
+	public List<DocumentAnnotation> regexAndUuid() {
+		List<DocumentAnnotation> annotations = new ArrayList<>(texts.length);
+		for (int i = 0; i < texts.length; i++) {
+			String content = texts[i].replaceAll("\\s+", " ").trim();
+			String type = "NN".replaceAll("\\s+", " ").trim();
+			annotations.add(DocumentAnnotation.builder().id(UUID.randomUUID().toString()).extent(begins[i], ends[i])
+					.content(content).type(type).create());
+		}
+		return annotations;
+	}
+
+	@Benchmark
+	public List<DocumentAnnotation> builderPerAnnotation() {
+		List<DocumentAnnotation> annotations = new ArrayList<>(texts.length);
+		for (int i = 0; i < texts.length; i++) {
+			annotations.add(DocumentAnnotation.builder().documentId(document).extent(begins[i], ends[i])
+					.content(texts[i]).type("NN").create());
+		}
+		return annotations;
+	}
+
+	@Benchmark
+	public List<DocumentAnnotation> reusedBuilder() {
+		List<DocumentAnnotation> annotations = new ArrayList<>(texts.length);
+		DocumentAnnotation.Builder builder = DocumentAnnotation.builder().documentId(document);
+		for (int i = 0; i < texts.length; i++) {
+			annotations.add(builder.reset().extent(begins[i], ends[i]).content(texts[i]).type("NN").create());
+		}
+		return annotations;
+	}
+}
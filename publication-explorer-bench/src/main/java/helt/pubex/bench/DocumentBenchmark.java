@@ -0,0 +1,122 @@
+package helt.pubex.bench;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.tudarmstadt.ukp.dkpro.core.api.lexmorph.type.pos.POS_NOUN;
+import de.tudarmstadt.ukp.dkpro.core.api.ner.type.NamedEntity;
+import de.tudarmstadt.ukp.dkpro.core.stanfordnlp.StanfordNamedEntityRecognizer;
+import de.tudarmstadt.ukp.dkpro.core.stanfordnlp.StanfordPosTagger;
+import de.tudarmstadt.ukp.dkpro.core.stanfordnlp.StanfordSegmenter;
+import helt.pubex.models.AnnotationTable;
+import helt.pubex.models.Document;
+import helt.pubex.models.DocumentAnnotation;
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.fit.util.JCasUtil;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.jcas.tcas.Annotation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.uima.fit.factory.AnalysisEngineFactory.createEngine;
+
+/**
+ * Post-processing of one annotated fixture: building the annotations for its
+ * nouns and named entities as {@link DocumentAnnotation} objects or as an
+ * {@link AnnotationTable} the way UimaNlpTopicModellingService does, and
+ * serializing the resulting {@link Document} to JSON.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DocumentBenchmark {
+
+	@Param({ Fixtures.DOCUMENT })
+	public String document;
+
+	private final ObjectMapper om = new ObjectMapper();
+	private final List<Span> spans = new ArrayList<>();
+	private Document prepared;
+	private Document preparedTable;
+
+	@Setup
+	public void setUp() throws Exception {
+		AnalysisEngine[] engines = { createEngine(StanfordSegmenter.class), createEngine(StanfordPosTagger.class),
+				createEngine(StanfordNamedEntityRecognizer.class) };
+		JCas jcas = Fixtures.annotate(Fixtures.text(document), engines);
+		for (AnalysisEngine engine : engines) {
+			engine.destroy();
+		}
+
+		for (POS_NOUN noun : JCasUtil.select(jcas, POS_NOUN.class)) {
+			spans.add(new Span(noun, noun.getType().getShortName()));
+		}
+		for (NamedEntity entity : JCasUtil.select(jcas, NamedEntity.class)) {
+			spans.add(new Span(entity, entity.getValue()));
+		}
+		List<String> content = new ArrayList<>();
+		content.add(jcas.getDocumentText());
+		prepared = Document.builder().setContent(content).addAnnotations(buildAnnotations()).setUrl(document)
+				.setId(UUID.randomUUID().toString()).create();
+		preparedTable = Document.builder().setContent(content).setAnnotationTable(buildAnnotationTable())
+				.setUrl(document).setId(UUID.randomUUID().toString()).create();
+	}
+
+	@Benchmark
+	public List<DocumentAnnotation> buildAnnotations() {
+		List<DocumentAnnotation> annotations = new ArrayList<>(spans.size());
+		for (Span span : spans) {
+			annotations.add(DocumentAnnotation.builder().extent(span.begin, span.end).content(span.text)
+					.type(span.type).create());
+		}
+		return annotations;
+	}
+
+	@Benchmark
+	public AnnotationTable buildAnnotationTable() {
+		AnnotationTable table = new AnnotationTable();
+		for (Span span : spans) {
+			table.add(0, span.begin, span.end, span.type);
+		}
+		return table;
+	}
+
+	@Benchmark
+	public byte[] serializeDocument() throws Exception {
+		return om.writeValueAsBytes(prepared);
+	}
+
+	@Benchmark
+	public byte[] serializeDocumentTable() throws Exception {
+		return om.writeValueAsBytes(preparedTable);
+	}
+
+	private static final class Span {
+		final int begin;
+		final int end;
+		final String text;
+		final String type;
+
+		Span(Annotation annotation, String type) {
+			this.begin = annotation.getBegin();
+			this.end = annotation.getEnd();
+			this.text = annotation.getCoveredText();
+			this.type = type;
+		}
+	}
+}
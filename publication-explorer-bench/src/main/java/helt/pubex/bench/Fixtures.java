@@ -0,0 +1,94 @@
+package helt.pubex.bench;
+
+import de.tudarmstadt.ukp.dkpro.core.api.io.ResourceCollectionReaderBase;
+import de.tudarmstadt.ukp.dkpro.core.io.pdf.PdfReader;
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.collection.CollectionReaderDescription;
+import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.fit.pipeline.JCasIterable;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.UIMAException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.apache.uima.fit.factory.CollectionReaderFactory.createReaderDescription;
+
+/**
+ * Access to the PDFs in data/input/pdf, which serve as benchmark input. The
+ * directory is looked up relative to the working directory and its parent, or
+ * can be set with -Dpubex.fixtures.
+ */
+final class Fixtures {
+
+	/** Default document of the single-document benchmarks. */
+	static final String DOCUMENT = "1412.6980.pdf";
+
+	private Fixtures() {
+	}
+
+	static Path directory() {
+		String configured = System.getProperty("pubex.fixtures");
+		if (configured != null) {
+			return Paths.get(configured);
+		}
+		for (String candidate : new String[] { "data/input/pdf", "../data/input/pdf" }) {
+			Path directory = Paths.get(candidate);
+			if (Files.isDirectory(directory)) {
+				return directory;
+			}
+		}
+		throw new IllegalStateException("Fixtures not found, run from the project root or set -Dpubex.fixtures");
+	}
+
+	static CollectionReaderDescription reader(String pattern) throws ResourceInitializationException {
+		return createReaderDescription(PdfReader.class, ResourceCollectionReaderBase.PARAM_LANGUAGE, "en",
+				ResourceCollectionReaderBase.PARAM_SOURCE_LOCATION, directory().toString(),
+				ResourceCollectionReaderBase.PARAM_PATTERNS, new String[] { "[+]/" + pattern });
+	}
+
+	/**
+	 * @return the extracted text of one PDF
+	 */
+	static String text(String document) throws ResourceInitializationException {
+		List<String> texts = texts(document);
+		if (texts.isEmpty()) {
+			throw new IllegalArgumentException("No such fixture: " + document);
+		}
+		return texts.get(0);
+	}
+
+	/**
+	 * @return the extracted texts of all PDFs
+	 */
+	static List<String> texts() throws ResourceInitializationException {
+		return texts("**/*.pdf");
+	}
+
+	private static List<String> texts(String pattern) throws ResourceInitializationException {
+		List<String> texts = new ArrayList<>();
+		for (JCas jcas : new JCasIterable(reader(pattern))) {
+			texts.add(jcas.getDocumentText());
+		}
+		return texts;
+	}
+
+	/**
+	 * Runs the engines on a fresh CAS with the given text.
+	 */
+	static JCas annotate(String text, AnalysisEngine... engines)
+			throws UIMAException, AnalysisEngineProcessException {
+		JCas jcas = JCasFactory.createJCas();
+		jcas.setDocumentText(text);
+		jcas.setDocumentLanguage("en");
+		for (AnalysisEngine engine : engines) {
+			engine.process(jcas);
+		}
+		return jcas;
+	}
+}
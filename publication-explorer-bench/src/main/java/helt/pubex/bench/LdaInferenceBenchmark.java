@@ -0,0 +1,83 @@
+package helt.pubex.bench;
+
+import cc.mallet.topics.ParallelTopicModel;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import helt.pubex.server.TopicInference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mallet topic inference for the text of one fixture. Uses
+ * data/models/model.mallet if it exists, otherwise a model trained on the
+ * fixtures during setup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class LdaInferenceBenchmark {
+
+	@Param({ Fixtures.DOCUMENT })
+	public String document;
+
+	@Param({ "20" })
+	public int topics;
+
+	private TopicInference.Inferencer inferencer;
+	private String text;
+
+	@Setup
+	public void setUp() throws Exception {
+		File modelLocation = new File(Fixtures.directory().toFile(), "../../models/model.mallet");
+		TopicInference inference = modelLocation.exists() ? TopicInference.load(modelLocation)
+				: new TopicInference(train(Fixtures.texts()));
+		inferencer = inference.newInferencer();
+		text = Fixtures.text(document);
+	}
+
+	private ParallelTopicModel train(List<String> texts) throws Exception {
+		Alphabet alphabet = new Alphabet();
+		InstanceList instances = new InstanceList(alphabet, null);
+		for (String text : texts) {
+			List<Integer> features = new ArrayList<>();
+			for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}]+")) {
+				if (word.length() > 3) {
+					features.add(alphabet.lookupIndex(word));
+				}
+			}
+			int[] indices = features.stream().mapToInt(Integer::intValue).toArray();
+			instances.add(new Instance(new FeatureSequence(alphabet, indices), null, null, null));
+		}
+		ParallelTopicModel model = new ParallelTopicModel(topics);
+		model.addInstances(instances);
+		model.setNumIterations(200);
+		model.setRandomSeed(42);
+		model.estimate();
+		return model;
+	}
+
+	@Benchmark
+	public double[] infer() {
+		return inferencer.infer(text);
+	}
+}
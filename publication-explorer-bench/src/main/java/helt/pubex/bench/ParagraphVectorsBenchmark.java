@@ -0,0 +1,101 @@
+package helt.pubex.bench;
+
+import helt.pubex.dl4j.Dl4jVectorizerService;
+import helt.pubex.dl4j.ParagraphVectorsStore;
+import org.deeplearning4j.models.paragraphvectors.ParagraphVectors;
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.wordstore.inmemory.AbstractCache;
+import org.deeplearning4j.text.documentiterator.LabelsSource;
+import org.deeplearning4j.text.sentenceiterator.CollectionSentenceIterator;
+import org.deeplearning4j.text.tokenization.tokenizer.preprocessor.CommonPreprocessor;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.DefaultTokenizerFactory;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paragraph vector inference for the lines of one fixture, one call per line
+ * versus {@link Dl4jVectorizerService#inferVectors(List)}. The model is trained
+ * on the lines of all fixtures during setup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ParagraphVectorsBenchmark {
+
+	@Param({ Fixtures.DOCUMENT })
+	public String document;
+
+	@Param({ "1", "4" })
+	public int parallelism;
+
+	private ParagraphVectors model;
+	private Dl4jVectorizerService service;
+	private List<String> paragraphs;
+
+	@Setup
+	public void setUp() throws Exception {
+		List<String> sentences = new ArrayList<>();
+		for (String text : Fixtures.texts()) {
+			sentences.addAll(lines(text));
+		}
+		TokenizerFactory tokenizerFactory = new DefaultTokenizerFactory();
+		tokenizerFactory.setTokenPreProcessor(new CommonPreprocessor());
+		ParagraphVectors trained = new ParagraphVectors.Builder().minWordFrequency(1).iterations(5).epochs(1)
+				.layerSize(100).learningRate(0.025).labelsSource(new LabelsSource("DOC_")).windowSize(5)
+				.iterate(new CollectionSentenceIterator(sentences)).trainWordVectors(true)
+				.vocabCache(new AbstractCache<VocabWord>()).tokenizerFactory(tokenizerFactory).sampling(0).build();
+		trained.fit();
+
+		Path output = Files.createTempDirectory("pubex-bench");
+		ParagraphVectorsStore store = new ParagraphVectorsStore(output.resolve("model"));
+		store.save(trained);
+		model = store.load(tokenizerFactory);
+		service = new Dl4jVectorizerService(Fixtures.directory(), output);
+		service.setParallelism(parallelism);
+		paragraphs = lines(Fixtures.text(document));
+	}
+
+	private static List<String> lines(String text) {
+		List<String> lines = new ArrayList<>();
+		for (String line : text.split("\\R")) {
+			if (line.trim().length() > 40) {
+				lines.add(line.trim());
+			}
+		}
+		return lines;
+	}
+
+	@Benchmark
+	public List<INDArray> inferEach() {
+		List<INDArray> vectors = new ArrayList<>(paragraphs.size());
+		for (String paragraph : paragraphs) {
+			vectors.add(model.inferVector(paragraph));
+		}
+		return vectors;
+	}
+
+	@Benchmark
+	public INDArray inferBatch() throws Exception {
+		return service.inferVectors(paragraphs);
+	}
+}
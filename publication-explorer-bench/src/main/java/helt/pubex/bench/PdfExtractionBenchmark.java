@@ -0,0 +1,92 @@
+package helt.pubex.bench;
+
+import de.tudarmstadt.ukp.dkpro.core.api.io.ResourceCollectionReaderBase;
+import helt.pubex.uima.ParallelPdfReader;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.collection.CollectionReader;
+import org.apache.uima.collection.CollectionReaderDescription;
+import org.apache.uima.fit.factory.CollectionReaderFactory;
+import org.apache.uima.util.CasCreationUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.uima.fit.factory.CollectionReaderFactory.createReaderDescription;
+
+/**
+ * Text extraction of a single PDF with DKPro's PdfReader and with the
+ * {@link ParallelPdfReader}, which extracts page ranges on the given number of
+ * threads, each including the creation of the reader. The split thresholds of
+ * the parallel reader are parameters, so that they can be tuned per machine.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PdfExtractionBenchmark {
+
+	@Param({ Fixtures.DOCUMENT })
+	public String document;
+
+	@Param({ "4" })
+	public int threads;
+
+	@Param({ "8" })
+	public int minPagesPerRange;
+
+	@Param({ "262144" })
+	public long minSplitBytes;
+
+	private CollectionReaderDescription description;
+	private CollectionReaderDescription parallelDescription;
+	private CAS cas;
+
+	@Setup
+	public void setUp() throws Exception {
+		description = Fixtures.reader(document);
+		parallelDescription = createReaderDescription(ParallelPdfReader.class,
+				ResourceCollectionReaderBase.PARAM_LANGUAGE, "en",
+				ResourceCollectionReaderBase.PARAM_SOURCE_LOCATION, Fixtures.directory().toString(),
+				ResourceCollectionReaderBase.PARAM_PATTERNS, new String[] { "[+]/" + document },
+				ParallelPdfReader.PARAM_THREADS, threads,
+				ParallelPdfReader.PARAM_MIN_PAGES_PER_RANGE, minPagesPerRange,
+				ParallelPdfReader.PARAM_MIN_SPLIT_BYTES, minSplitBytes);
+		CollectionReader reader = CollectionReaderFactory.createReader(description);
+		cas = CasCreationUtils.createCas(reader.getProcessingResourceMetaData());
+		reader.destroy();
+	}
+
+	@Benchmark
+	public int extract() throws Exception {
+		return extract(description);
+	}
+
+	@Benchmark
+	public int extractParallel() throws Exception {
+		return extract(parallelDescription);
+	}
+
+	private int extract(CollectionReaderDescription readerDescription) throws Exception {
+		cas.reset();
+		CollectionReader reader = CollectionReaderFactory.createReader(readerDescription);
+		try {
+			reader.typeSystemInit(cas.getTypeSystem());
+			reader.getNext(cas);
+			return cas.getDocumentText().length();
+		} finally {
+			reader.destroy();
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package helt.pubex.bench;
+
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Sentence;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+import helt.pubex.uima.Segmenter;
+import org.apache.uima.UIMAException;
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.fit.util.JCasUtil;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.jcas.tcas.Annotation;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.apache.uima.fit.factory.AnalysisEngineFactory.createEngine;
+
+/**
+ * Agreement of the segmenters with the reference segmenter (Stanford, unless
+ * given as first argument) on all fixtures, which complements the throughput
+ * measured by {@link SegmenterBenchmark}. Sentences are compared by their end
+ * offsets, tokens by their spans; the F1 score of each segmenter is printed.
+ *
+ * <pre>
+ * java -cp publication-explorer-bench/target/benchmarks.jar helt.pubex.bench.SegmenterAgreement [reference]
+ * </pre>
+ */
+public final class SegmenterAgreement {
+
+	private SegmenterAgreement() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		Segmenter reference = (args.length > 0) ? Segmenter.parse(args[0]) : Segmenter.STANFORD;
+		List<String> texts = Fixtures.texts();
+
+		Map<Segmenter, List<JCas>> segmented = new EnumMap<>(Segmenter.class);
+		for (Segmenter segmenter : Segmenter.values()) {
+			try {
+				segmented.put(segmenter, segment(segmenter, texts));
+			} catch (UIMAException e) {
+				// e.g. models which are not on the classpath
+				System.out.printf("%-15s unavailable: %s%n", segmenter, e);
+			}
+		}
+		if (!segmented.containsKey(reference)) {
+			throw new IllegalStateException("Reference segmenter " + reference + " is unavailable");
+		}
+
+		System.out.printf("%d documents, reference %s%n", texts.size(), reference);
+		System.out.printf("%-15s %10s %10s %12s %10s%n", "segmenter", "sentences", "sentenceF1", "tokens", "tokenF1");
+		for (Map.Entry<Segmenter, List<JCas>> entry : segmented.entrySet()) {
+			Agreement sentences = new Agreement();
+			Agreement tokens = new Agreement();
+			for (int i = 0; i < texts.size(); i++) {
+				JCas expected = segmented.get(reference).get(i);
+				JCas actual = entry.getValue().get(i);
+				sentences.add(ends(expected, Sentence.class), ends(actual, Sentence.class));
+				tokens.add(spans(expected, Token.class), spans(actual, Token.class));
+			}
+			System.out.printf("%-15s %10d %10.3f %12d %10.3f%n", entry.getKey(), sentences.found, sentences.f1(),
+					tokens.found, tokens.f1());
+		}
+	}
+
+	private static List<JCas> segment(Segmenter segmenter, List<String> texts) throws UIMAException {
+		AnalysisEngine engine = createEngine(segmenter.createDescription());
+		try {
+			List<JCas> documents = new ArrayList<>();
+			for (String text : texts) {
+				documents.add(Fixtures.annotate(text, engine));
+			}
+			return documents;
+		} finally {
+			engine.destroy();
+		}
+	}
+
+	private static Set<Long> ends(JCas jcas, Class<? extends Annotation> type) {
+		Set<Long> ends = new HashSet<>();
+		for (Annotation annotation : JCasUtil.select(jcas, type)) {
+			ends.add((long) annotation.getEnd());
+		}
+		return ends;
+	}
+
+	private static Set<Long> spans(JCas jcas, Class<? extends Annotation> type) {
+		Set<Long> spans = new HashSet<>();
+		for (Annotation annotation : JCasUtil.select(jcas, type)) {
+			spans.add(((long) annotation.getBegin() << 32) | annotation.getEnd());
+		}
+		return spans;
+	}
+
+	private static class Agreement {
+		private long expected;
+		private long found;
+		private long matched;
+
+		void add(Set<Long> expected, Set<Long> found) {
+			this.expected += expected.size();
+			this.found += found.size();
+			for (Long boundary : found) {
+				if (expected.contains(boundary)) {
+					matched++;
+				}
+			}
+		}
+
+		double f1() {
+			return (expected + found == 0) ? 1.0 : 2.0 * matched / (expected + found);
+		}
+	}
+}
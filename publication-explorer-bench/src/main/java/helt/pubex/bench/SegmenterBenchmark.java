@@ -0,0 +1,73 @@
+package helt.pubex.bench;
+
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+import helt.pubex.uima.Segmenter;
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.fit.util.JCasUtil;
+import org.apache.uima.jcas.JCas;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.uima.fit.factory.AnalysisEngineFactory.createEngine;
+
+/**
+ * The {@link Segmenter}s to choose from, on the text of one fixture. Their
+ * agreement is reported by {@link SegmenterAgreement}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SegmenterBenchmark {
+
+	@Param({ "stanford", "opennlp", "break-iterator" })
+	public String segmenter;
+
+	@Param({ Fixtures.DOCUMENT })
+	public String document;
+
+	private AnalysisEngine engine;
+	private JCas jcas;
+	private String text;
+
+	@Setup
+	public void setUp() throws Exception {
+		engine = createEngine(Segmenter.parse(segmenter).createDescription());
+		text = Fixtures.text(document);
+		jcas = JCasFactory.createJCas();
+	}
+
+	@Setup(Level.Invocation)
+	public void reset() {
+		jcas.reset();
+		jcas.setDocumentText(text);
+		jcas.setDocumentLanguage("en");
+	}
+
+	@Benchmark
+	public int segment() throws Exception {
+		engine.process(jcas);
+		return JCasUtil.select(jcas, Token.class).size();
+	}
+
+	@TearDown
+	public void tearDown() {
+		engine.destroy();
+	}
+}
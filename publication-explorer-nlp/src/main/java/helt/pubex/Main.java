@@ -1,5 +1,6 @@
 package helt.pubex;
 
+import cc.mallet.topics.ParallelTopicModel;
 import de.tudarmstadt.ukp.dkpro.core.api.io.JCasFileWriter_ImplBase;
 import de.tudarmstadt.ukp.dkpro.core.api.io.ResourceCollectionReaderBase;
 import de.tudarmstadt.ukp.dkpro.core.corenlp.CoreNlpNamedEntityRecognizer;
@@ -10,6 +11,17 @@ import de.tudarmstadt.ukp.dkpro.core.maltparser.MaltParser;
 import de.tudarmstadt.ukp.dkpro.core.opennlp.OpenNlpPosTagger;
 import de.tudarmstadt.ukp.dkpro.core.opennlp.OpenNlpSegmenter;
 import helt.pubex.dl4j.Dl4jVectorizerService;
+import helt.pubex.index.Hit;
+import helt.pubex.index.Query;
+import helt.pubex.index.SearchIndex;
+import helt.pubex.io.DocumentSink;
+import helt.pubex.io.JsonLinesDocumentSink;
+import helt.pubex.server.QueryServer;
+import helt.pubex.server.TopicInference;
+import helt.pubex.uima.DocumentBudget;
+import helt.pubex.uima.Segmenter;
+import helt.pubex.uima.TokenCorpus;
+import helt.pubex.uima.TopicModelTrainer;
 import helt.pubex.uima.UimaNlpTopicModellingService;
 
 import org.apache.uima.UIMAException;
@@ -17,11 +29,23 @@ import org.apache.uima.resource.ResourceInitializationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static org.apache.uima.fit.factory.AnalysisEngineFactory.createEngineDescription;
 import static org.apache.uima.fit.factory.CollectionReaderFactory.createReaderDescription;
@@ -29,6 +53,9 @@ import static org.apache.uima.fit.pipeline.SimplePipeline.runPipeline;
 
 public class Main {
 	public static final Logger LOG = LoggerFactory.getLogger("Main");
+	private static final File TOPIC_MODEL = new File("data/models/model.mallet");
+	private static final File CORPUS = new File("data/models/corpus.tokens");
+	private static final Path SEARCH_INDEX = Paths.get("data/output/index");
 
 	public static void main(String[] args)
 			throws UIMAException, IOException, InterruptedException, ExecutionException, URISyntaxException {
@@ -45,8 +72,20 @@ public class Main {
 		
 		if ("lda".equals(args[0])) {
 			nerAndTopicModelingExample(input);
+		} else if ("train".equals(args[0])) {
+			trainTopicModel(input);
+		} else if ("update".equals(args[0])) {
+			updateTopicModel(input);
+		} else if ("sweep".equals(args[0])) {
+			sweepTopicModels();
+		} else if ("infer".equals(args[0])) {
+			inferTopics(output);
 		} else if ("pv".equals(args[0])) {
 			mapParagraphVectors(input, output);
+		} else if ("search".equals(args[0])) {
+			search(String.join(" ", Arrays.asList(args).subList(1, args.length)));
+		} else if ("serve".equals(args[0])) {
+			serve(input, output);
 		} else {
 			// untested
 			basicExample();
@@ -56,20 +95,210 @@ public class Main {
 	private static void mapParagraphVectors(Path input, Path output)
 			throws ResourceInitializationException, IOException {
 		Dl4jVectorizerService service = new Dl4jVectorizerService(input, output);
+		service.setParallelism(Integer.getInteger("pubex.parallelism", Runtime.getRuntime().availableProcessors()));
+		service.setSegmenter(segmenter(Segmenter.OPENNLP));
+		service.setDeduplicate(deduplicate());
+		service.setMinWordFrequency(Integer.getInteger("pubex.minWordFrequency", 2));
+		service.setMaxVocabularySize(Integer.getInteger("pubex.maxVocabulary", 100_000));
 
 		service.extractSentencesFromData();
 		service.convertSentencesToVectors();
 	}
 
+	/**
+	 * Keeps the models loaded and answers queries over HTTP until the process is
+	 * stopped. Paragraph vectors are trained first if there is no model yet.
+	 */
+	private static void serve(Path input, Path output)
+			throws IOException, InterruptedException, ResourceInitializationException {
+		Dl4jVectorizerService vectors = new Dl4jVectorizerService(input, output);
+		// the server parallelizes over queries, each batch is inferred on one thread
+		vectors.setParallelism(1);
+
+		TopicInference topics = null;
+		if (TOPIC_MODEL.exists()) {
+			topics = TopicInference.load(TOPIC_MODEL);
+		} else {
+			LOG.info("No topic model at {}, topic queries are disabled", TOPIC_MODEL);
+		}
+
+		QueryServer server = new QueryServer(vectors, topics);
+		if (Files.isDirectory(SEARCH_INDEX)) {
+			server.setSearchIndex(new SearchIndex(SEARCH_INDEX));
+		}
+		server.setPort(Integer.getInteger("pubex.port", 8080));
+		server.setWorkers(Integer.getInteger("pubex.parallelism", Runtime.getRuntime().availableProcessors()));
+		server.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+		Thread.currentThread().join();
+	}
+
 	private static void nerAndTopicModelingExample(Path input)
 			throws IOException, InterruptedException, ExecutionException, UIMAException, URISyntaxException {
 		UimaNlpTopicModellingService service = new UimaNlpTopicModellingService();
+		service.setParallelism(Integer.getInteger("pubex.parallelism", 1));
+		service.setSegmenter(segmenter(null));
+		if (!deduplicate()) {
+			service.setDuplicateReport(null);
+		}
+		service.setBudget(documentBudget());
+		service.setDocumentSink(DocumentSink.tee(new JsonLinesDocumentSink(Paths.get(service.getOutputDirectory())),
+				new SearchIndex(SEARCH_INDEX)));
 
 		service.processDirectory(input);
 		LOG.info("processed data in {}", service.getOutputDirectory().toString());
 
 	}
 
+	/**
+	 * Prints the paragraphs of the search index which best match the words, and
+	 * the entity given with -Dpubex.entity.
+	 */
+	private static void search(String words) throws IOException {
+		Query query = Query.of(words);
+		String entity = System.getProperty("pubex.entity");
+		if (entity != null) {
+			query.entity(entity);
+		}
+		SearchIndex index = new SearchIndex(SEARCH_INDEX);
+		for (Hit hit : index.search(query, Integer.getInteger("pubex.k", 10))) {
+			System.out.println(hit);
+		}
+	}
+
+	/**
+	 * Retrains the topic model. An interrupted training resumes from its last
+	 * checkpoint when started again on the same documents. With
+	 * -Dpubex.fromCorpus=true the token corpus of the last run is used instead of
+	 * the documents.
+	 */
+	private static void trainTopicModel(Path input) throws IOException, UIMAException {
+		TopicModelTrainer trainer = topicModelTrainer(Integer.getInteger("pubex.topics", 10));
+		if (Boolean.getBoolean("pubex.fromCorpus")) {
+			trainer.addCorpus(CORPUS.toPath());
+			trainer.train(TOPIC_MODEL);
+			return;
+		}
+
+		UimaNlpTopicModellingService service = new UimaNlpTopicModellingService();
+		service.setParallelism(Integer.getInteger("pubex.parallelism", 1));
+		service.setSegmenter(segmenter(null));
+		if (!deduplicate()) {
+			service.setDuplicateReport(null);
+		}
+		service.setBudget(documentBudget());
+		service.setTopicModelTrainer(trainer);
+		service.preprocessDirectory(input);
+	}
+
+	/**
+	 * Trains one topic model per number of topics in -Dpubex.topics (comma
+	 * separated) on the token corpus and logs their log-likelihood per token.
+	 */
+	private static void sweepTopicModels() throws IOException {
+		Map<Integer, Double> likelihoods = new TreeMap<>();
+		for (String topics : System.getProperty("pubex.topics", "5,10,20,50").split(",")) {
+			int numTopics = Integer.parseInt(topics.trim());
+			TopicModelTrainer trainer = topicModelTrainer(numTopics);
+			trainer.addCorpus(CORPUS.toPath());
+			ParallelTopicModel model = trainer
+					.train(new File(TOPIC_MODEL.getParentFile(), "sweep/model-" + numTopics + ".mallet"));
+			likelihoods.put(numTopics, model.modelLogLikelihood() / model.totalTokens);
+		}
+		likelihoods.forEach(
+				(topics, likelihood) -> LOG.info(String.format("%d topics: LL/token %.5f", topics, likelihood)));
+	}
+
+	/**
+	 * Writes the topic proportions of every paragraph of the token corpus, one
+	 * tab separated line with document, paragraph and proportions each.
+	 */
+	private static void inferTopics(Path output) throws IOException {
+		TopicInference.Inferencer inferencer = TopicInference.load(TOPIC_MODEL).newInferencer();
+		Files.createDirectories(output);
+		Path target = output.resolve("paragraph-topics.tsv");
+		try (TokenCorpus corpus = TokenCorpus.open(CORPUS.toPath());
+				BufferedWriter writer = Files.newBufferedWriter(target, StandardCharsets.UTF_8)) {
+			List<String> vocabulary = corpus.getVocabulary();
+			corpus.forEach((document, paragraph, words) -> {
+				List<String> text = new ArrayList<>(words.length);
+				for (int word : words) {
+					text.add(vocabulary.get(word));
+				}
+				StringBuilder line = new StringBuilder(document).append('\t').append(paragraph);
+				for (double proportion : inferencer.infer(text)) {
+					line.append('\t').append(String.format(Locale.ROOT, "%.4f", proportion));
+				}
+				try {
+					writer.append(line).append('\n');
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		}
+		LOG.info("Wrote topic proportions to {}", target);
+	}
+
+	private static TopicModelTrainer topicModelTrainer(int numTopics) {
+		TopicModelTrainer trainer = new TopicModelTrainer();
+		trainer.setNumTopics(numTopics);
+		trainer.setIterations(Integer.getInteger("pubex.iterations", 1000));
+		trainer.setThreads(Integer.getInteger("pubex.threads", Runtime.getRuntime().availableProcessors()));
+		trainer.setOptimizeInterval(Integer.getInteger("pubex.optimizeInterval", 50));
+		trainer.setCheckpointInterval(Integer.getInteger("pubex.checkpointInterval", 50));
+		return trainer;
+	}
+
+	/**
+	 * @return the segmenter named by -Dpubex.segmenter (stanford, opennlp or
+	 *         break-iterator), or the default if it is not set
+	 */
+	private static Segmenter segmenter(Segmenter defaultSegmenter) {
+		String name = System.getProperty("pubex.segmenter");
+		return (name == null) ? defaultSegmenter : Segmenter.parse(name);
+	}
+
+	/**
+	 * @return false if -Dpubex.deduplicate=false disables skipping near-duplicate
+	 *         documents and paragraphs
+	 */
+	private static boolean deduplicate() {
+		return Boolean.parseBoolean(System.getProperty("pubex.deduplicate", "true"));
+	}
+
+	/**
+	 * @return the limits of a document given with -Dpubex.maxDocumentBytes,
+	 *         -Dpubex.maxDocumentCharacters, -Dpubex.maxDocumentMillis (by default
+	 *         10 minutes) and -Dpubex.maxAnnotatorMillis; 0 means no limit
+	 */
+	private static DocumentBudget documentBudget() {
+		DocumentBudget budget = new DocumentBudget();
+		budget.setMaxBytes(Long.getLong("pubex.maxDocumentBytes", 0));
+		budget.setMaxCharacters(Long.getLong("pubex.maxDocumentCharacters", 0));
+		budget.setMaxMillis(Long.getLong("pubex.maxDocumentMillis", TimeUnit.MINUTES.toMillis(10)));
+		budget.setMaxAnnotatorMillis(Long.getLong("pubex.maxAnnotatorMillis", 0));
+		return budget;
+	}
+
+	/**
+	 * Folds documents which are new since the topic model was last written into
+	 * it, without retraining.
+	 */
+	private static void updateTopicModel(Path input) throws IOException, UIMAException {
+		TopicModelTrainer trainer = new TopicModelTrainer();
+		trainer.setFoldInIterations(Integer.getInteger("pubex.foldInIterations", 100));
+
+		UimaNlpTopicModellingService service = new UimaNlpTopicModellingService();
+		service.setParallelism(Integer.getInteger("pubex.parallelism", 1));
+		service.setSegmenter(segmenter(null));
+		if (!deduplicate()) {
+			service.setDuplicateReport(null);
+		}
+		service.setBudget(documentBudget());
+		service.setTopicModelTrainer(trainer);
+		service.updateTopicModel(input);
+	}
+
 	public static void basicExample() throws UIMAException, IOException {
 		runPipeline(
 				createReaderDescription(TextReader.class, ResourceCollectionReaderBase.PARAM_SOURCE_LOCATION,
@@ -0,0 +1,78 @@
+package helt.pubex.dl4j;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Estimates the frequencies of tokens in a fixed amount of memory. An estimate
+ * is never below the true frequency; with conservative updates it is usually
+ * exact for frequent tokens and only rare tokens sharing all their counters
+ * with frequent ones are overestimated.
+ *
+ * Not thread-safe.
+ */
+class CountMinSketch {
+	private static final HashFunction HASH = Hashing.murmur3_128();
+
+	private final int depth;
+	private final int mask;
+	private final int[] counters;
+	private final int[] cells;
+
+	/**
+	 * @param width number of counters per row, rounded up to a power of two
+	 * @param depth number of rows, i.e. of hash functions
+	 */
+	CountMinSketch(int width, int depth) {
+		int columns = Integer.highestOneBit(Math.max(2, width - 1)) << 1;
+		this.depth = depth;
+		this.mask = columns - 1;
+		this.counters = new int[columns * depth];
+		this.cells = new int[depth];
+	}
+
+	void add(String token) {
+		locate(token);
+		int estimate = Integer.MAX_VALUE;
+		for (int row = 0; row < depth; row++) {
+			estimate = Math.min(estimate, counters[cells[row]]);
+		}
+		if (estimate == Integer.MAX_VALUE) {
+			return;
+		}
+		// conservative update: only the minimal counters would underestimate
+		for (int row = 0; row < depth; row++) {
+			if (counters[cells[row]] == estimate) {
+				counters[cells[row]] = estimate + 1;
+			}
+		}
+	}
+
+	/**
+	 * @return an upper bound of the number of times the token was added
+	 */
+	int estimate(String token) {
+		locate(token);
+		int estimate = Integer.MAX_VALUE;
+		for (int row = 0; row < depth; row++) {
+			estimate = Math.min(estimate, counters[cells[row]]);
+		}
+		return estimate;
+	}
+
+	/**
+	 * @return bytes used by the counters
+	 */
+	long memoryUsed() {
+		return 4L * counters.length;
+	}
+
+	private void locate(String token) {
+		long hash = HASH.hashUnencodedChars(token).asLong();
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32) | 1;
+		for (int row = 0; row < depth; row++) {
+			cells[row] = row * (mask + 1) + ((h1 + row * h2) & mask);
+		}
+	}
+}
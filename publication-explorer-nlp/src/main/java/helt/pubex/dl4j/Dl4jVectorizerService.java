@@ -2,36 +2,71 @@ package helt.pubex.dl4j;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
-import java.nio.charset.Charset;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
-import java.util.stream.Stream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.uima.resource.ResourceInitializationException;
 import org.deeplearning4j.models.paragraphvectors.ParagraphVectors;
 import org.deeplearning4j.models.word2vec.VocabWord;
 import org.deeplearning4j.models.word2vec.wordstore.inmemory.AbstractCache;
-import org.deeplearning4j.text.documentiterator.LabelsSource;
-import org.deeplearning4j.text.sentenceiterator.BasicLineIterator;
-import org.deeplearning4j.text.sentenceiterator.SentenceIterator;
 import org.deeplearning4j.text.tokenization.tokenizer.preprocessor.CommonPreprocessor;
 import org.deeplearning4j.text.tokenization.tokenizerfactory.DefaultTokenizerFactory;
 import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
+import org.nd4j.linalg.api.buffer.DataType;
 import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.api.ops.impl.reduce3.EuclideanDistance;
-import org.nd4j.linalg.util.MathUtils;
+import org.nd4j.linalg.factory.Nd4j;
+
+import com.google.common.base.Throwables;
+import com.google.common.base.Utf8;
+import com.google.common.collect.Lists;
 
 import helt.pubex.Main;
+import helt.pubex.uima.NearDuplicates;
+import helt.pubex.uima.Segmenter;
 import helt.pubex.uima.SentenceExtractor;
 
 public class Dl4jVectorizerService {
 
+	/**
+	 * Sentences outside of all paragraphs, e.g. of a PDF without paragraph
+	 * markup, are labelled in runs of at most this many sentences.
+	 */
+	private static final int MAX_UNPARAGRAPHED_RUN = 10;
+
+	/** Columns of the count-min sketch estimating word frequencies, 16 MB. */
+	private static final int SKETCH_WIDTH = 1 << 20;
+
+	/** Length of the paragraph vectors of newly trained models. */
+	private static final int LAYER_SIZE = 100;
+
 	private final Path input;
 	private final Path output;
-	private final Path sentencesLocation;
+	private final Path sentencesDirectory;
+	private final Path manifestLocation;
+	private final Path labelIndexLocation;
+	private final ParagraphVectorsStore modelStore;
+	private final Path indexLocation;
+	private final TokenizerFactory tokenizerFactory = new DefaultTokenizerFactory();
+	private ParagraphVectors model;
+	private HnswIndex index;
+	private LabelIndex labelIndex;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private int documentsPerShard = 16;
+	private Segmenter segmenter = Segmenter.OPENNLP;
+	private boolean deduplicate = true;
+	private int minWordFrequency = 2;
+	private int maxVocabularySize = 100_000;
 
 	public Dl4jVectorizerService(Path input, Path output) {
 		this.input = Objects.requireNonNull(input);
@@ -50,7 +85,79 @@ public class Dl4jVectorizerService {
 		if (!Files.exists(output)) {
 			throw new IllegalArgumentException("output does not exist: " + output);
 		}
-		sentencesLocation = Paths.get(output.toString(), "sentences.txt");
+		sentencesDirectory = Paths.get(output.toString(), "sentences");
+		manifestLocation = sentencesDirectory.resolve("manifest.tsv");
+		labelIndexLocation = sentencesDirectory.resolve("labels.idx");
+		modelStore = new ParagraphVectorsStore(Paths.get(output.toString(), "model"));
+		indexLocation = Paths.get(output.toString(), "model.hnsw");
+		tokenizerFactory.setTokenPreProcessor(new CommonPreprocessor());
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Number of threads used for sentence extraction and batch inference.
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	public int getDocumentsPerShard() {
+		return documentsPerShard;
+	}
+
+	public void setDocumentsPerShard(int documentsPerShard) {
+		this.documentsPerShard = documentsPerShard;
+	}
+
+	public Segmenter getSegmenter() {
+		return segmenter;
+	}
+
+	/**
+	 * Segmenter used for sentence extraction, by default OpenNLP.
+	 */
+	public void setSegmenter(Segmenter segmenter) {
+		this.segmenter = Objects.requireNonNull(segmenter);
+	}
+
+	public boolean isDeduplicate() {
+		return deduplicate;
+	}
+
+	/**
+	 * Whether sentence extraction skips near-duplicate documents and repeated
+	 * paragraphs, which are listed in duplicates.tsv next to the shards. On by
+	 * default.
+	 */
+	public void setDeduplicate(boolean deduplicate) {
+		this.deduplicate = deduplicate;
+	}
+
+	public int getMinWordFrequency() {
+		return minWordFrequency;
+	}
+
+	/**
+	 * Words occurring less often are left out of the model, by default those
+	 * occurring only once.
+	 */
+	public void setMinWordFrequency(int minWordFrequency) {
+		this.minWordFrequency = Math.max(1, minWordFrequency);
+	}
+
+	public int getMaxVocabularySize() {
+		return maxVocabularySize;
+	}
+
+	/**
+	 * Maximal number of words of the model. If more words occur at least
+	 * {@link #getMinWordFrequency()} times, only the most frequent are kept.
+	 */
+	public void setMaxVocabularySize(int maxVocabularySize) {
+		this.maxVocabularySize = Math.max(1, maxVocabularySize);
 	}
 
 	/**
@@ -58,28 +165,115 @@ public class Dl4jVectorizerService {
 	 * Uses a UIMA pipeline to extract the sentences from documents, and stores them
 	 * on disk. Is required for fitting the paragraph vectors.
 	 * 
+	 * The documents are split into groups of {@link #getDocumentsPerShard()},
+	 * which are segmented in parallel, each into its own shard file
+	 * (sentences-00000.txt, ...). The {@link SentenceManifest} records which lines
+	 * of which shard belong to which document, and is written last. The
+	 * {@link LabelIndex} of the paragraph runs is written just before it.
+	 * 
 	 * @throws ResourceInitializationException
 	 * @throws IOException
 	 */
 	public void extractSentencesFromData() throws ResourceInitializationException, IOException {
 		SentenceExtractor sentenceExtractor = new SentenceExtractor(input);
-		Stream<String> run = sentenceExtractor.run();
-		Files.deleteIfExists(sentencesLocation);
-		Files.createFile(sentencesLocation);
-
-		BufferedWriter bufferedWriter = Files.newBufferedWriter(sentencesLocation, Charset.defaultCharset());
-
-		run.forEach(x -> {
-			try {
-				bufferedWriter.append(x);
-				bufferedWriter.newLine();
-			} catch (IOException e) {
-				e.printStackTrace();
+		sentenceExtractor.setSegmenter(segmenter);
+		List<List<Path>> shards = Lists.partition(sentenceExtractor.listDocuments(), documentsPerShard);
+
+		Files.createDirectories(sentencesDirectory);
+		Files.deleteIfExists(manifestLocation);
+		Files.deleteIfExists(labelIndexLocation);
+		synchronized (this) {
+			labelIndex = null;
+		}
+		try (DirectoryStream<Path> stale = Files.newDirectoryStream(sentencesDirectory, "sentences-*.txt")) {
+			for (Path shard : stale) {
+				Files.delete(shard);
+			}
+		}
+
+		NearDuplicates nearDuplicates = null;
+		if (deduplicate) {
+			nearDuplicates = new NearDuplicates();
+			nearDuplicates.setReport(sentencesDirectory.resolve("duplicates.tsv"));
+			sentenceExtractor.setNearDuplicates(nearDuplicates);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		try {
+			List<Future<List<SentenceManifest.Entry>>> results = new ArrayList<>();
+			List<LabelIndex.ShardBuilder> labels = new ArrayList<>();
+			for (int i = 0; i < shards.size(); i++) {
+				LabelIndex.ShardBuilder shard = new LabelIndex.ShardBuilder(String.format("sentences-%05d.txt", i));
+				List<Path> documents = shards.get(i);
+				labels.add(shard);
+				results.add(executor.submit(() -> writeShard(sentenceExtractor, documents, shard)));
+			}
+
+			List<SentenceManifest.Entry> entries = new ArrayList<>();
+			for (Future<List<SentenceManifest.Entry>> result : results) {
+				entries.addAll(result.get());
 			}
-		});
-		
-		bufferedWriter.flush();
-		bufferedWriter.close();
+			LabelIndex.build(sentencesDirectory, labels).write(labelIndexLocation);
+			new SentenceManifest(entries).write(manifestLocation);
+			Main.LOG.info(String.format("Extracted sentences of %s documents into %s shards", entries.size(),
+					shards.size()));
+			if (nearDuplicates != null) {
+				Main.LOG.info(nearDuplicates.summary());
+			}
+			Main.LOG.info(sentenceExtractor.metricsSummary());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("sentence extraction was interrupted");
+		} catch (ExecutionException e) {
+			Throwables.propagateIfPossible(e.getCause(), IOException.class, ResourceInitializationException.class);
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+			if (nearDuplicates != null) {
+				nearDuplicates.close();
+			}
+		}
+	}
+
+	/**
+	 * Writes the sentences of the documents into a shard, one per line, and adds
+	 * the runs of consecutive sentences of the same paragraph to the label index.
+	 */
+	private List<SentenceManifest.Entry> writeShard(SentenceExtractor extractor, List<Path> documents,
+			LabelIndex.ShardBuilder labels) throws IOException, ResourceInitializationException {
+		String shardName = labels.getShard();
+		List<SentenceManifest.Entry> entries = new ArrayList<>();
+		long[] lines = { 0 };
+		try (BufferedWriter writer = Files.newBufferedWriter(sentencesDirectory.resolve(shardName),
+				StandardCharsets.UTF_8)) {
+			extractor.extract(documents, (documentUri, sentences) -> {
+				long firstLine = lines[0];
+				labels.startDocument(documentUri);
+				int paragraph = 0;
+				int bytes = 0;
+				int run = 0;
+				while (sentences.hasNext()) {
+					SentenceExtractor.Line line = sentences.next();
+					if (bytes > 0 && (line.getParagraph() != paragraph
+							|| (paragraph < 0 && run == MAX_UNPARAGRAPHED_RUN))) {
+						labels.addParagraph(paragraph, bytes);
+						bytes = 0;
+						run = 0;
+					}
+					paragraph = line.getParagraph();
+					run++;
+					// the line break is written explicitly, so that the byte lengths hold on every platform
+					writer.append(line.getText()).append('\n');
+					bytes += Utf8.encodedLength(line.getText()) + 1;
+					lines[0]++;
+				}
+				if (bytes > 0) {
+					labels.addParagraph(paragraph, bytes);
+				}
+				entries.add(new SentenceManifest.Entry(shardName, firstLine, lines[0] - firstLine, documentUri));
+			});
+		}
+		return entries;
 	}
 
 	/**
@@ -87,68 +281,247 @@ public class Dl4jVectorizerService {
 	 * enable us to compute distances between different documents (or subsets of
 	 * documents, like paragraphs).
 	 * 
-	 * TODO after fitting the vector space, serialize the stuff for later usage.
+	 * The fitted model is stored in the output directory and loaded from there on
+	 * later invocations. Delete it to train again. Nearest labels are looked up in
+	 * an {@link HnswIndex} instead of scanning all label vectors.
+	 * 
 	 * @throws IOException 
 	 * @throws ResourceInitializationException 
 	 */
 	public void convertSentencesToVectors() throws IOException, ResourceInitializationException {
-		Path inputSentences = sentencesLocation;
-		if(!Files.exists(sentencesLocation) || Files.size(sentencesLocation) == 0) {
-			extractSentencesFromData();
+		ParagraphVectors vec = getModel();
+		HnswIndex index = getIndex();
+
+		LabelIndex labels = getLabelIndex();
+
+		String text = "Abstract Data analysis often involves finding models that can explain patterns in data";
+		INDArray query = vec.inferVector(text);
+		for (HnswIndex.Neighbour neighbour : index.search(query.toFloatVector(), 5)) {
+			LabelIndex.Source source = (labels != null) ? labels.resolve(neighbour.getLabel()) : null;
+			if (source == null) {
+				Main.LOG.info(String.format("%s (cosine similarity %.3f)", neighbour.getLabel(),
+						neighbour.getSimilarity()));
+				continue;
+			}
+			String snippet = labels.text(source);
+			if (snippet.length() > 200) {
+				snippet = snippet.substring(0, 200) + "...";
+			}
+			Main.LOG.info(String.format("%s %s (cosine similarity %.3f)\n%s", neighbour.getLabel(), source,
+					neighbour.getSimilarity(), snippet));
 		}
+	}
 
-		SentenceIterator iter = new BasicLineIterator(inputSentences.toFile());
+	/**
+	 * Loads the nearest neighbour index over the label vectors of the model, and
+	 * adds the labels which are not yet part of it. The index is stored next to
+	 * the model and only rewritten if labels were added.
+	 */
+	private HnswIndex loadOrUpdateIndex(ParagraphVectors vec) throws IOException {
+		HnswIndex index;
+		if (Files.exists(indexLocation)) {
+			index = HnswIndex.load(indexLocation);
+		} else {
+			index = new HnswIndex(vec.getLayerSize(), 16, 200);
+		}
 
-		AbstractCache<VocabWord> cache = new AbstractCache<>();
+		int added = 0;
+		for (VocabWord word : vec.getVocab().vocabWords()) {
+			if (word.isLabel() && !index.contains(word.getLabel())) {
+				index.add(word.getLabel(), vec.getLookupTable().vector(word.getLabel()).toFloatVector());
+				added++;
+			}
+		}
+		if (added > 0) {
+			index.save(indexLocation);
+			Main.LOG.info(String.format("Added %s labels to the index %s", added, indexLocation));
+		}
+		return index;
+	}
+
+	/**
+	 * Infers a vector for the given text and looks up the most similar documents
+	 * in the index. Model and index are loaded on first use.
+	 * 
+	 * @return up to k labels with their cosine similarity, most similar first
+	 */
+	public List<HnswIndex.Neighbour> nearestLabels(String text, int k)
+			throws IOException, ResourceInitializationException {
+		HnswIndex index = getIndex();
+		return index.search(getModel().inferVector(text).toFloatVector(), k);
+	}
+
+	/**
+	 * Batch version of {@link #nearestLabels(String, int)}, see
+	 * {@link #inferVectors(List)}.
+	 * 
+	 * @return the neighbours of each text, in the order of the texts
+	 */
+	public List<List<HnswIndex.Neighbour>> nearestLabels(List<String> texts, int k)
+			throws IOException, ResourceInitializationException {
+		HnswIndex index = getIndex();
+		List<List<HnswIndex.Neighbour>> result = new ArrayList<>(texts.size());
+		if (texts.isEmpty()) {
+			return result;
+		}
+		INDArray vectors = inferVectors(texts);
+		for (int i = 0; i < texts.size(); i++) {
+			result.add(index.search(vectors.getRow(i).toFloatVector(), k));
+		}
+		return result;
+	}
 
-		TokenizerFactory t = new DefaultTokenizerFactory();
-		t.setTokenPreProcessor(new CommonPreprocessor());
+	/**
+	 * Infers the vectors of many texts at once. The texts are split into chunks
+	 * which are tokenized and inferred by {@link #getParallelism()} threads
+	 * sharing one model. Texts without any known word get a zero vector.
+	 * 
+	 * @return a matrix with one row per text, in the order of the texts
+	 */
+	public INDArray inferVectors(List<String> texts) throws IOException, ResourceInitializationException {
+		if (texts.isEmpty()) {
+			int columns;
+			synchronized (this) {
+				columns = (model == null) ? LAYER_SIZE : model.getLayerSize();
+			}
+			// Nd4j.create rejects a dimension of 0 in this version of ND4J
+			return Nd4j.zeros(DataType.FLOAT, 0, columns);
+		}
+
+		ParagraphVectors vec = getModel();
+		int columns = vec.getLayerSize();
+		long size = (long) texts.size() * columns;
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(String.format(
+					"%d vectors of length %d do not fit into one matrix", texts.size(), columns));
+		}
+		float[] data = new float[(int) size];
 
-		/*
-		 * if you don't have LabelAwareIterator handy, you can use synchronized labels
-		 * generator it will be used to label each document/sequence/line with it's own
-		 * label.
-		 * 
-		 * But if you have LabelAwareIterator ready, you can can provide it, for your
-		 * in-house labels
-		 */
-		LabelsSource source = new LabelsSource("DOC_");
+		if (parallelism == 1) {
+			inferRange(vec, texts, 0, texts.size(), data);
+			return Nd4j.create(data, new long[] { texts.size(), columns }, 'c');
+		}
 
+		// a few chunks per thread, so that threads finishing early can help out
+		int chunkSize = Math.max(1, (texts.size() + 4 * parallelism - 1) / (4 * parallelism));
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		try {
+			List<Future<?>> results = new ArrayList<>();
+			for (int start = 0; start < texts.size(); start += chunkSize) {
+				int from = start;
+				int to = Math.min(texts.size(), start + chunkSize);
+				results.add(executor.submit(() -> inferRange(vec, texts, from, to, data)));
+			}
+			for (Future<?> result : results) {
+				result.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("inference was interrupted");
+		} catch (ExecutionException e) {
+			Throwables.propagateIfPossible(e.getCause(), IOException.class);
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		return Nd4j.create(data, new long[] { texts.size(), columns }, 'c');
+	}
+
+	/**
+	 * Like {@link #inferVectors(List)}, but writes the matrix to the target file
+	 * in the format of {@link ParagraphVectorsStore}, so that it can be
+	 * memory-mapped later.
+	 */
+	public void inferVectors(List<String> texts, Path target) throws IOException, ResourceInitializationException {
+		ParagraphVectorsStore.writeMatrix(inferVectors(texts), target);
+	}
+
+	private void inferRange(ParagraphVectors vec, List<String> texts, int from, int to, float[] data) {
+		int columns = vec.getLayerSize();
+		for (int i = from; i < to; i++) {
+			List<VocabWord> document = tokenize(vec, texts.get(i));
+			if (!document.isEmpty()) {
+				System.arraycopy(vec.inferVector(document).toFloatVector(), 0, data, i * columns, columns);
+			}
+		}
+	}
+
+	private List<VocabWord> tokenize(ParagraphVectors vec, String text) {
+		List<VocabWord> document = new ArrayList<>();
+		for (String token : tokenizerFactory.create(text).getTokens()) {
+			VocabWord word = vec.getVocab().wordFor(token);
+			if (word != null) {
+				document.add(word);
+			}
+		}
+		return document;
+	}
+
+	private synchronized ParagraphVectors getModel() throws IOException, ResourceInitializationException {
+		if (model == null) {
+			model = loadOrTrainModel();
+		}
+		return model;
+	}
+
+	/**
+	 * @return the index resolving the labels of the model to their documents and
+	 *         paragraphs, or null if the sentences have not been extracted yet
+	 */
+	public synchronized LabelIndex getLabelIndex() throws IOException {
+		if (labelIndex == null && Files.exists(labelIndexLocation)) {
+			labelIndex = LabelIndex.read(labelIndexLocation);
+		}
+		return labelIndex;
+	}
+
+	private synchronized HnswIndex getIndex() throws IOException, ResourceInitializationException {
+		if (index == null) {
+			index = loadOrUpdateIndex(getModel());
+		}
+		return index;
+	}
+
+	private ParagraphVectors loadOrTrainModel() throws IOException, ResourceInitializationException {
+		if (modelStore.exists()) {
+			Main.LOG.info("Loading paragraph vectors from " + modelStore.getDirectory());
+			return modelStore.load(tokenizerFactory);
+		}
+
+		if (!Files.exists(manifestLocation) || !Files.exists(labelIndexLocation)) {
+			extractSentencesFromData();
+		}
+
+		// every paragraph run is a document labelled with its PAR_n and its document's DOC_n
+		LabelledParagraphIterator iter = new LabelledParagraphIterator(getLabelIndex());
+
+		// rare words are dropped before DL4J builds its vocabulary on the heap
+		VocabularyFilter vocabulary = VocabularyFilter.build(iter, tokenizerFactory, minWordFrequency,
+				maxVocabularySize, SKETCH_WIDTH);
+		DefaultTokenizerFactory trainingTokenizer = new DefaultTokenizerFactory();
+		trainingTokenizer.setTokenPreProcessor(vocabulary);
+
+		AbstractCache<VocabWord> cache = new AbstractCache<>();
+
+		// the word vectors are trained as well: without them DL4J flushes the last
+		// batch of a training thread through an unconfigured skip-gram and hangs
 		ParagraphVectors vec = new ParagraphVectors.Builder()
-				.minWordFrequency(1).iterations(5).epochs(1).layerSize(100)
-				.learningRate(0.025).labelsSource(source).windowSize(5).iterate(iter).trainWordVectors(false)
-				.vocabCache(cache).tokenizerFactory(t).sampling(0).build();
-
-		vec.fit();
-		
-		// TODO serialize the model to disk.
-		
-		
-		INDArray interactive_regression_lens = vec.inferVector("Interactive Regression Lens");
-		INDArray query = vec
-				.inferVector("Abstract Data analysis often involves finding models that can explain patterns in data");
-		Collection<String> strings = vec.nearestLabels(
-				"Abstract Data analysis often involves finding models that can explain patterns in data", 3);
-		for (String s : strings) {
-			INDArray neighbor = vec.inferVector(s);
-			EuclideanDistance euclideanDistance = new EuclideanDistance(query, neighbor);
-			double distance = MathUtils.euclideanDistance(query.toDoubleVector(), neighbor.toDoubleVector());
-			Main.LOG.info(String.format("Distance between\n%s\n%s\n%s", query, neighbor, distance));
-		}
-
-		double similarity1 = vec.similarity("DOC_9835", "DOC_12492");
-		Main.LOG.info("9836/12493 ('This is my house .'/'This is my world .') similarity: " + similarity1);
-
-		double similarity2 = vec.similarity("DOC_3720", "DOC_16392");
-		Main.LOG.info("3721/16393 ('This is my way .'/'This is my work .') similarity: " + similarity2);
-
-		double similarity3 = vec.similarity("DOC_6347", "DOC_3720");
-		Main.LOG.info("6348/3721 ('This is my case .'/'This is my way .') similarity: " + similarity3);
-
-		// likelihood in this case should be significantly lower
-		double similarityX = vec.similarity("DOC_3720", "DOC_9852");
-		Main.LOG.info("3721/9853 ('This is my way .'/'We now have one .') similarity: " + similarityX
-				+ "(should be significantly lower)");
+				.minWordFrequency(vocabulary.getThreshold()).iterations(5).epochs(1).layerSize(LAYER_SIZE)
+				.learningRate(0.025).windowSize(5).iterate(iter).trainWordVectors(true)
+				.vocabCache(cache).tokenizerFactory(trainingTokenizer).sampling(0).build();
+
+		try {
+			vec.fit();
+		} finally {
+			vocabulary.close();
+		}
+		// inference skips unknown words anyway
+		vec.setTokenizerFactory(tokenizerFactory);
+		modelStore.save(vec);
+		// the labels of an existing index refer to the previous model
+		Files.deleteIfExists(indexLocation);
+		Main.LOG.info("Stored paragraph vectors in " + modelStore.getDirectory());
+		return vec;
 	}
 
 }
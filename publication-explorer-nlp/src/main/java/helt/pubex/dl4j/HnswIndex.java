@@ -0,0 +1,440 @@
+package helt.pubex.dl4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Approximate nearest neighbour index for cosine similarity, based on
+ * hierarchical navigable small world graphs (Malkov and Yashunin, 2016).
+ *
+ * Vectors are normalized when added, so that the similarity of two nodes is
+ * their dot product. Nodes can be added at any time; queries run concurrently
+ * with each other, but not with additions.
+ */
+public class HnswIndex {
+
+	private static final int MAGIC = 0x50564831; // PVH1
+
+	private final int dimensions;
+	private final int m;
+	private final int maxConnections0;
+	private final int efConstruction;
+	private final double levelMultiplier;
+	private final Random random = new Random(42);
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final List<String> labels = new ArrayList<>();
+	private final List<float[]> vectors = new ArrayList<>();
+	/** Per node and level, the ids of the neighbours. */
+	private final List<int[][]> links = new ArrayList<>();
+	private final Map<String, Integer> ids = new HashMap<>();
+
+	private int efSearch = 64;
+	private int entryPoint = -1;
+	private int maxLevel = -1;
+
+	/**
+	 * @param dimensions     vector length
+	 * @param m              number of neighbours per node and level (twice as many
+	 *                       on the lowest level)
+	 * @param efConstruction size of the candidate list while inserting
+	 */
+	public HnswIndex(int dimensions, int m, int efConstruction) {
+		if (dimensions < 1 || m < 2 || efConstruction < 1) {
+			throw new IllegalArgumentException("invalid index parameters");
+		}
+		this.dimensions = dimensions;
+		this.m = m;
+		this.maxConnections0 = 2 * m;
+		this.efConstruction = efConstruction;
+		this.levelMultiplier = 1 / Math.log(m);
+	}
+
+	public int getDimensions() {
+		return dimensions;
+	}
+
+	public int getEfSearch() {
+		return efSearch;
+	}
+
+	/**
+	 * Size of the candidate list while querying. Larger values trade latency for
+	 * recall.
+	 */
+	public void setEfSearch(int efSearch) {
+		this.efSearch = efSearch;
+	}
+
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return labels.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public boolean contains(String label) {
+		lock.readLock().lock();
+		try {
+			return ids.containsKey(label);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return false if the label is already in the index, in which case the
+	 *         index is unchanged
+	 */
+	public boolean add(String label, float[] vector) {
+		float[] normalized = normalize(vector);
+		lock.writeLock().lock();
+		try {
+			if (ids.containsKey(label)) {
+				return false;
+			}
+			int node = labels.size();
+			int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+			int[][] nodeLinks = new int[level + 1][];
+			for (int l = 0; l <= level; l++) {
+				nodeLinks[l] = new int[0];
+			}
+			labels.add(label);
+			vectors.add(normalized);
+			links.add(nodeLinks);
+			ids.put(label, node);
+
+			if (entryPoint < 0) {
+				entryPoint = node;
+				maxLevel = level;
+				return true;
+			}
+
+			int current = entryPoint;
+			for (int l = maxLevel; l > level; l--) {
+				current = greedyClosest(normalized, current, l);
+			}
+			for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+				List<Candidate> candidates = searchLayer(normalized, current, efConstruction, l);
+				int[] neighbours = selectNeighbours(normalized, candidates, m);
+				nodeLinks[l] = neighbours;
+				for (int neighbour : neighbours) {
+					connect(neighbour, node, l);
+				}
+				current = candidates.get(0).node;
+			}
+
+			if (level > maxLevel) {
+				entryPoint = node;
+				maxLevel = level;
+			}
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return up to k labels with their cosine similarity to the query, most
+	 *         similar first
+	 */
+	public List<Neighbour> search(float[] query, int k) {
+		float[] normalized = normalize(query);
+		lock.readLock().lock();
+		try {
+			if (entryPoint < 0 || k < 1) {
+				return Collections.emptyList();
+			}
+			int current = entryPoint;
+			for (int l = maxLevel; l > 0; l--) {
+				current = greedyClosest(normalized, current, l);
+			}
+			List<Candidate> candidates = searchLayer(normalized, current, Math.max(efSearch, k), 0);
+			List<Neighbour> result = new ArrayList<>(Math.min(k, candidates.size()));
+			for (Candidate candidate : candidates.subList(0, Math.min(k, candidates.size()))) {
+				result.add(new Neighbour(labels.get(candidate.node), candidate.similarity));
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private int greedyClosest(float[] query, int start, int level) {
+		int current = start;
+		float best = dot(query, vectors.get(current));
+		boolean improved = true;
+		while (improved) {
+			improved = false;
+			for (int neighbour : links.get(current)[level]) {
+				float similarity = dot(query, vectors.get(neighbour));
+				if (similarity > best) {
+					best = similarity;
+					current = neighbour;
+					improved = true;
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * @return the ef most similar nodes found on the given level, most similar
+	 *         first
+	 */
+	private List<Candidate> searchLayer(float[] query, int start, int ef, int level) {
+		BitSet visited = new BitSet(labels.size());
+		PriorityQueue<Candidate> candidates = new PriorityQueue<>(Comparator.reverseOrder());
+		PriorityQueue<Candidate> results = new PriorityQueue<>();
+
+		Candidate first = new Candidate(start, dot(query, vectors.get(start)));
+		visited.set(start);
+		candidates.add(first);
+		results.add(first);
+
+		while (!candidates.isEmpty()) {
+			Candidate candidate = candidates.poll();
+			if (candidate.similarity < results.peek().similarity && results.size() >= ef) {
+				break;
+			}
+			int[][] nodeLinks = links.get(candidate.node);
+			if (level >= nodeLinks.length) {
+				continue;
+			}
+			for (int neighbour : nodeLinks[level]) {
+				if (visited.get(neighbour)) {
+					continue;
+				}
+				visited.set(neighbour);
+				float similarity = dot(query, vectors.get(neighbour));
+				if (results.size() < ef || similarity > results.peek().similarity) {
+					Candidate next = new Candidate(neighbour, similarity);
+					candidates.add(next);
+					results.add(next);
+					if (results.size() > ef) {
+						results.poll();
+					}
+				}
+			}
+		}
+
+		List<Candidate> sorted = new ArrayList<>(results);
+		sorted.sort(Comparator.reverseOrder());
+		return sorted;
+	}
+
+	/**
+	 * Neighbour selection heuristic of the paper: a candidate is only kept if it
+	 * is closer to the base than to every neighbour selected so far, which keeps
+	 * the graph connected across clusters. Remaining slots are filled with the
+	 * closest pruned candidates.
+	 *
+	 * @param candidates sorted, most similar first
+	 */
+	private int[] selectNeighbours(float[] base, List<Candidate> candidates, int max) {
+		List<Candidate> selected = new ArrayList<>(max);
+		List<Candidate> pruned = new ArrayList<>();
+		for (Candidate candidate : candidates) {
+			if (selected.size() >= max) {
+				break;
+			}
+			float[] vector = vectors.get(candidate.node);
+			boolean keep = true;
+			for (Candidate other : selected) {
+				if (dot(vector, vectors.get(other.node)) > candidate.similarity) {
+					keep = false;
+					break;
+				}
+			}
+			(keep ? selected : pruned).add(candidate);
+		}
+		for (int i = 0; i < pruned.size() && selected.size() < max; i++) {
+			selected.add(pruned.get(i));
+		}
+		int[] result = new int[selected.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = selected.get(i).node;
+		}
+		return result;
+	}
+
+	private void connect(int node, int neighbour, int level) {
+		int[][] nodeLinks = links.get(node);
+		int[] current = nodeLinks[level];
+		int max = (level == 0) ? maxConnections0 : m;
+		if (current.length < max) {
+			int[] extended = new int[current.length + 1];
+			System.arraycopy(current, 0, extended, 0, current.length);
+			extended[current.length] = neighbour;
+			nodeLinks[level] = extended;
+			return;
+		}
+
+		float[] base = vectors.get(node);
+		List<Candidate> candidates = new ArrayList<>(current.length + 1);
+		for (int existing : current) {
+			candidates.add(new Candidate(existing, dot(base, vectors.get(existing))));
+		}
+		candidates.add(new Candidate(neighbour, dot(base, vectors.get(neighbour))));
+		candidates.sort(Comparator.reverseOrder());
+		nodeLinks[level] = selectNeighbours(base, candidates, max);
+	}
+
+	/**
+	 * Writes the index to a temporary file which then replaces the target.
+	 */
+	public void save(Path target) throws IOException {
+		Path temp = Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName().toString(),
+				".tmp");
+		lock.readLock().lock();
+		try {
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024))) {
+				out.writeInt(MAGIC);
+				out.writeInt(dimensions);
+				out.writeInt(m);
+				out.writeInt(efConstruction);
+				out.writeInt(labels.size());
+				out.writeInt(entryPoint);
+				out.writeInt(maxLevel);
+				for (int node = 0; node < labels.size(); node++) {
+					out.writeUTF(labels.get(node));
+					for (float value : vectors.get(node)) {
+						out.writeFloat(value);
+					}
+					int[][] nodeLinks = links.get(node);
+					out.writeByte(nodeLinks.length);
+					for (int[] level : nodeLinks) {
+						out.writeShort(level.length);
+						for (int neighbour : level) {
+							out.writeInt(neighbour);
+						}
+					}
+				}
+			}
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			lock.readLock().unlock();
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	public static HnswIndex load(Path source) throws IOException {
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(Files.newInputStream(source), 64 * 1024))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not an index file: " + source);
+			}
+			HnswIndex index = new HnswIndex(in.readInt(), in.readInt(), in.readInt());
+			int size = in.readInt();
+			index.entryPoint = in.readInt();
+			index.maxLevel = in.readInt();
+			for (int node = 0; node < size; node++) {
+				String label = in.readUTF();
+				float[] vector = new float[index.dimensions];
+				for (int i = 0; i < vector.length; i++) {
+					vector[i] = in.readFloat();
+				}
+				int[][] nodeLinks = new int[in.readByte()][];
+				for (int l = 0; l < nodeLinks.length; l++) {
+					nodeLinks[l] = new int[in.readShort()];
+					for (int i = 0; i < nodeLinks[l].length; i++) {
+						nodeLinks[l][i] = in.readInt();
+					}
+				}
+				index.labels.add(label);
+				index.vectors.add(vector);
+				index.links.add(nodeLinks);
+				index.ids.put(label, node);
+			}
+			return index;
+		}
+	}
+
+	private float[] normalize(float[] vector) {
+		if (vector.length != dimensions) {
+			throw new IllegalArgumentException(
+					"expected " + dimensions + " dimensions, got " + vector.length);
+		}
+		double norm = 0;
+		for (float value : vector) {
+			norm += value * value;
+		}
+		norm = Math.sqrt(norm);
+		float[] result = new float[vector.length];
+		if (norm > 0) {
+			for (int i = 0; i < vector.length; i++) {
+				result[i] = (float) (vector[i] / norm);
+			}
+		}
+		return result;
+	}
+
+	private static float dot(float[] a, float[] b) {
+		float sum = 0;
+		for (int i = 0; i < a.length; i++) {
+			sum += a[i] * b[i];
+		}
+		return sum;
+	}
+
+	private static final class Candidate implements Comparable<Candidate> {
+		final int node;
+		final float similarity;
+
+		Candidate(int node, float similarity) {
+			this.node = node;
+			this.similarity = similarity;
+		}
+
+		@Override
+		public int compareTo(Candidate other) {
+			return Float.compare(similarity, other.similarity);
+		}
+	}
+
+	public static final class Neighbour {
+		private final String label;
+		private final double similarity;
+
+		public Neighbour(String label, double similarity) {
+			this.label = label;
+			this.similarity = similarity;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+
+		/**
+		 * @return cosine similarity to the query
+		 */
+		public double getSimilarity() {
+			return similarity;
+		}
+
+		@Override
+		public String toString() {
+			return label + " (" + similarity + ")";
+		}
+	}
+}
@@ -0,0 +1,386 @@
+package helt.pubex.dl4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static helt.pubex.io.VarInts.readVarInt;
+import static helt.pubex.io.VarInts.readVarLong;
+import static helt.pubex.io.VarInts.writeVarInt;
+import static helt.pubex.io.VarInts.writeVarLong;
+
+/**
+ * Maps the labels of the paragraph vectors to their source in the sentence
+ * shards written by {@link Dl4jVectorizerService#extractSentencesFromData()}.
+ *
+ * The sentences of a document are stored as runs of consecutive lines which
+ * start in the same paragraph. Every run is labelled PAR_n, numbered through
+ * the whole index, and every document DOC_n, both in reading order, so a label
+ * is resolved to its document URI, paragraph index and byte range in the shard
+ * by an array lookup. On disk the index holds the shard names, and per
+ * document its URI, shard and byte offset followed by the paragraph index and
+ * byte length of each run, all numbers as varints. Runs of a document are
+ * contiguous in its shard, so their offsets are not stored.
+ */
+public class LabelIndex {
+	public static final String DOCUMENT_PREFIX = "DOC_";
+	public static final String PARAGRAPH_PREFIX = "PAR_";
+	private static final int MAGIC = 0x50584c42;
+	private static final int FORMAT = 1;
+
+	private final Path directory;
+	private final List<String> shards;
+	private final String[] uris;
+	private final int[] documentShard;
+	private final int[] firstParagraph;
+	private final int[] paragraphs;
+	private final long[] offsets;
+	private final int[] lengths;
+	private final int[] runDocument;
+
+	private LabelIndex(Path directory, List<String> shards, String[] uris, int[] documentShard, int[] firstParagraph,
+			int[] paragraphs, long[] offsets, int[] lengths) {
+		this.directory = directory;
+		this.shards = shards;
+		this.uris = uris;
+		this.documentShard = documentShard;
+		this.firstParagraph = firstParagraph;
+		this.paragraphs = paragraphs;
+		this.offsets = offsets;
+		this.lengths = lengths;
+		runDocument = new int[paragraphs.length];
+		for (int d = 0; d < uris.length; d++) {
+			Arrays.fill(runDocument, firstParagraph[d], firstParagraph[d + 1], d);
+		}
+	}
+
+	public int documentCount() {
+		return uris.length;
+	}
+
+	/**
+	 * @return number of paragraph runs, i.e. of PAR_n labels
+	 */
+	public int paragraphCount() {
+		return paragraphs.length;
+	}
+
+	public static String documentLabel(int document) {
+		return DOCUMENT_PREFIX + document;
+	}
+
+	public static String paragraphLabel(int run) {
+		return PARAGRAPH_PREFIX + run;
+	}
+
+	/**
+	 * @return the document of the paragraph run
+	 */
+	public int document(int run) {
+		return runDocument[run];
+	}
+
+	/**
+	 * @return the source of a DOC_n or PAR_n label, or null if the index does not
+	 *         contain it
+	 */
+	public Source resolve(String label) {
+		if (label.startsWith(PARAGRAPH_PREFIX)) {
+			int run = parse(label, PARAGRAPH_PREFIX.length());
+			if (run < 0 || run >= paragraphs.length) {
+				return null;
+			}
+			int document = document(run);
+			return new Source(label, uris[document], paragraphs[run], shards.get(documentShard[document]),
+					offsets[run], lengths[run]);
+		}
+		if (label.startsWith(DOCUMENT_PREFIX)) {
+			int document = parse(label, DOCUMENT_PREFIX.length());
+			if (document < 0 || document >= uris.length) {
+				return null;
+			}
+			int first = firstParagraph[document];
+			int end = firstParagraph[document + 1];
+			long offset = (first < end) ? offsets[first] : 0;
+			long length = (first < end) ? offsets[end - 1] + lengths[end - 1] - offset : 0;
+			return new Source(label, uris[document], -1, shards.get(documentShard[document]), offset,
+					(int) Math.min(Integer.MAX_VALUE, length));
+		}
+		return null;
+	}
+
+	private static int parse(String label, int start) {
+		try {
+			return Integer.parseInt(label.substring(start));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Reads the sentences of the source from its shard.
+	 *
+	 * @return the sentences, separated by blanks
+	 */
+	public String text(Source source) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(source.getLength());
+		try (FileChannel channel = FileChannel.open(directory.resolve(source.getShard()), StandardOpenOption.READ)) {
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, source.getOffset() + buffer.position()) < 0) {
+					throw new IOException("Shard " + source.getShard() + " is shorter than its label index");
+				}
+			}
+		}
+		return new String(buffer.array(), StandardCharsets.UTF_8).trim().replace('\n', ' ');
+	}
+
+	/**
+	 * @return the shard directory
+	 */
+	Path getDirectory() {
+		return directory;
+	}
+
+	String shard(int document) {
+		return shards.get(documentShard[document]);
+	}
+
+	long offset(int run) {
+		return offsets[run];
+	}
+
+	int length(int run) {
+		return lengths[run];
+	}
+
+	/**
+	 * Reads an index; its shards are expected in the same directory.
+	 */
+	public static LabelIndex read(Path location) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(location)))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(location + " is not a label index");
+			}
+			int format = readVarInt(in);
+			if (format != FORMAT) {
+				throw new IOException("Unsupported label index format " + format + " in " + location);
+			}
+			int shardCount = readVarInt(in);
+			List<String> shards = new ArrayList<>(shardCount);
+			for (int i = 0; i < shardCount; i++) {
+				shards.add(in.readUTF());
+			}
+
+			int documents = readVarInt(in);
+			String[] uris = new String[documents];
+			int[] documentShard = new int[documents];
+			int[] firstParagraph = new int[documents + 1];
+			int[] paragraphs = new int[16];
+			long[] offsets = new long[16];
+			int[] lengths = new int[16];
+			int runs = 0;
+			for (int d = 0; d < documents; d++) {
+				uris[d] = in.readUTF();
+				documentShard[d] = readVarInt(in);
+				long offset = readVarLong(in);
+				int count = readVarInt(in);
+				firstParagraph[d] = runs;
+				if (runs + count > paragraphs.length) {
+					int capacity = Math.max(runs + count, paragraphs.length * 2);
+					paragraphs = Arrays.copyOf(paragraphs, capacity);
+					offsets = Arrays.copyOf(offsets, capacity);
+					lengths = Arrays.copyOf(lengths, capacity);
+				}
+				for (int p = 0; p < count; p++) {
+					paragraphs[runs] = readVarInt(in) - 1;
+					lengths[runs] = readVarInt(in);
+					offsets[runs] = offset;
+					offset += lengths[runs];
+					runs++;
+				}
+			}
+			firstParagraph[documents] = runs;
+			return new LabelIndex(location.toAbsolutePath().getParent(), shards, uris, documentShard, firstParagraph,
+					Arrays.copyOf(paragraphs, runs), Arrays.copyOf(offsets, runs), Arrays.copyOf(lengths, runs));
+		}
+	}
+
+	/**
+	 * Writes the index atomically.
+	 */
+	public void write(Path location) throws IOException {
+		Path temp = Files.createTempFile(location.toAbsolutePath().getParent(), "labels", ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				out.writeInt(MAGIC);
+				writeVarInt(out, FORMAT);
+				writeVarInt(out, shards.size());
+				for (String shard : shards) {
+					out.writeUTF(shard);
+				}
+				writeVarInt(out, uris.length);
+				for (int d = 0; d < uris.length; d++) {
+					int first = firstParagraph[d];
+					int end = firstParagraph[d + 1];
+					out.writeUTF(uris[d]);
+					writeVarInt(out, documentShard[d]);
+					writeVarLong(out, (first < end) ? offsets[first] : 0);
+					writeVarInt(out, end - first);
+					for (int run = first; run < end; run++) {
+						writeVarInt(out, paragraphs[run] + 1);
+						writeVarInt(out, lengths[run]);
+					}
+				}
+			}
+			Files.move(temp, location, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Where a label's sentences come from.
+	 */
+	public static class Source {
+		private final String label;
+		private final String documentUri;
+		private final int paragraph;
+		private final String shard;
+		private final long offset;
+		private final int length;
+
+		Source(String label, String documentUri, int paragraph, String shard, long offset, int length) {
+			this.label = label;
+			this.documentUri = documentUri;
+			this.paragraph = paragraph;
+			this.shard = shard;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+
+		public String getDocumentUri() {
+			return documentUri;
+		}
+
+		/**
+		 * @return index of the paragraph among the paragraphs of the document, or
+		 *         -1 for a whole document or sentences outside of all paragraphs
+		 */
+		public int getParagraph() {
+			return paragraph;
+		}
+
+		public String getShard() {
+			return shard;
+		}
+
+		/**
+		 * @return byte offset of the first sentence in the shard
+		 */
+		public long getOffset() {
+			return offset;
+		}
+
+		/**
+		 * @return number of bytes of the sentences, including line breaks
+		 */
+		public int getLength() {
+			return length;
+		}
+
+		@Override
+		public String toString() {
+			return (paragraph < 0) ? documentUri : documentUri + "#" + paragraph;
+		}
+	}
+
+	/**
+	 * Collects the runs of a shard while it is written. Documents and runs are
+	 * added in the order of their lines.
+	 */
+	public static class ShardBuilder {
+		private final String shard;
+		private final List<String> uris = new ArrayList<>();
+		private final List<Long> documentOffsets = new ArrayList<>();
+		private final List<Integer> firstParagraph = new ArrayList<>();
+		private final List<Integer> paragraphs = new ArrayList<>();
+		private final List<Integer> lengths = new ArrayList<>();
+		private long offset = 0;
+
+		public ShardBuilder(String shard) {
+			this.shard = shard;
+		}
+
+		public String getShard() {
+			return shard;
+		}
+
+		public void startDocument(String uri) {
+			uris.add(uri);
+			documentOffsets.add(offset);
+			firstParagraph.add(paragraphs.size());
+		}
+
+		/**
+		 * @param length bytes of the lines of the run, including line breaks
+		 */
+		public void addParagraph(int paragraph, int length) {
+			paragraphs.add(paragraph);
+			lengths.add(length);
+			offset += length;
+		}
+	}
+
+	/**
+	 * @param shards the builders of all shards, in reading order
+	 */
+	public static LabelIndex build(Path directory, List<ShardBuilder> shards) {
+		List<String> names = new ArrayList<>();
+		List<String> uris = new ArrayList<>();
+		List<Integer> documentShard = new ArrayList<>();
+		List<Integer> firstParagraph = new ArrayList<>();
+		List<Integer> paragraphs = new ArrayList<>();
+		List<Long> offsets = new ArrayList<>();
+		List<Integer> lengths = new ArrayList<>();
+		for (ShardBuilder shard : shards) {
+			names.add(shard.shard);
+			for (int d = 0; d < shard.uris.size(); d++) {
+				uris.add(shard.uris.get(d));
+				documentShard.add(names.size() - 1);
+				firstParagraph.add(paragraphs.size());
+				int end = (d + 1 < shard.uris.size()) ? shard.firstParagraph.get(d + 1) : shard.paragraphs.size();
+				long offset = shard.documentOffsets.get(d);
+				for (int run = shard.firstParagraph.get(d); run < end; run++) {
+					paragraphs.add(shard.paragraphs.get(run));
+					offsets.add(offset);
+					lengths.add(shard.lengths.get(run));
+					offset += shard.lengths.get(run);
+				}
+			}
+		}
+		firstParagraph.add(paragraphs.size());
+		return new LabelIndex(directory.toAbsolutePath(), names, uris.toArray(new String[0]), toArray(documentShard),
+				toArray(firstParagraph), toArray(paragraphs), offsets.stream().mapToLong(Long::longValue).toArray(),
+				toArray(lengths));
+	}
+
+	private static int[] toArray(List<Integer> values) {
+		return values.stream().mapToInt(Integer::intValue).toArray();
+	}
+}
@@ -0,0 +1,126 @@
+package helt.pubex.dl4j;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.deeplearning4j.text.documentiterator.LabelAwareIterator;
+import org.deeplearning4j.text.documentiterator.LabelledDocument;
+import org.deeplearning4j.text.documentiterator.LabelsSource;
+
+/**
+ * Reads the sentence shards as one document per paragraph run of a
+ * {@link LabelIndex}, labelled with the run's PAR_n and its document's DOC_n
+ * label, so that the paragraph vectors learn a vector for every paragraph and
+ * every document. The shards are read sequentially.
+ */
+public class LabelledParagraphIterator implements LabelAwareIterator {
+
+	private final LabelIndex index;
+	private final LabelsSource labels;
+
+	private int run = 0;
+	private String shard;
+	private DataInputStream in;
+	private long position;
+
+	public LabelledParagraphIterator(LabelIndex index) {
+		this.index = index;
+		List<String> all = new ArrayList<>(index.documentCount() + index.paragraphCount());
+		for (int d = 0; d < index.documentCount(); d++) {
+			all.add(LabelIndex.documentLabel(d));
+		}
+		for (int r = 0; r < index.paragraphCount(); r++) {
+			all.add(LabelIndex.paragraphLabel(r));
+		}
+		labels = new LabelsSource(all);
+	}
+
+	@Override
+	public boolean hasNextDocument() {
+		return run < index.paragraphCount();
+	}
+
+	@Override
+	public LabelledDocument nextDocument() {
+		if (!hasNextDocument()) {
+			throw new NoSuchElementException();
+		}
+		int document = index.document(run);
+		LabelledDocument labelled = new LabelledDocument();
+		labelled.setLabels(Arrays.asList(LabelIndex.documentLabel(document), LabelIndex.paragraphLabel(run)));
+		try {
+			labelled.setContent(read(index.shard(document), index.offset(run), index.length(run)));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		run++;
+		return labelled;
+	}
+
+	private String read(String nextShard, long offset, int length) throws IOException {
+		if (!nextShard.equals(shard) || offset < position) {
+			close();
+			in = new DataInputStream(new BufferedInputStream(Files.newInputStream(index.getDirectory().resolve(nextShard))));
+			shard = nextShard;
+			position = 0;
+		}
+		while (position < offset) {
+			long skipped = in.skip(offset - position);
+			if (skipped <= 0) {
+				throw new IOException("Shard " + shard + " is shorter than its label index");
+			}
+			position += skipped;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		position += length;
+		return new String(bytes, StandardCharsets.UTF_8).trim().replace('\n', ' ');
+	}
+
+	@Override
+	public boolean hasNext() {
+		return hasNextDocument();
+	}
+
+	@Override
+	public LabelledDocument next() {
+		return nextDocument();
+	}
+
+	@Override
+	public void reset() {
+		close();
+		run = 0;
+	}
+
+	@Override
+	public LabelsSource getLabelsSource() {
+		return labels;
+	}
+
+	@Override
+	public void shutdown() {
+		close();
+	}
+
+	private void close() {
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			} finally {
+				in = null;
+				shard = null;
+			}
+		}
+	}
+}
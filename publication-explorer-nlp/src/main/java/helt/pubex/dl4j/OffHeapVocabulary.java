@@ -0,0 +1,252 @@
+package helt.pubex.dl4j;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Map of tokens to counts outside of the Java heap, an open addressing hash
+ * table with linear probing in one direct buffer and the characters of the
+ * tokens in another. Tokens cannot be removed one by one, only all tokens
+ * below a count at once, see {@link #retainAtLeast(int)}.
+ *
+ * Lookups may run concurrently, but not concurrently with updates.
+ */
+class OffHeapVocabulary {
+	/** Slot layout: hash (0 for an empty slot), key offset, key length, count. */
+	private static final int SLOT_BYTES = 16;
+
+	private ByteBuffer slots;
+	private ByteBuffer keys;
+	private int mask;
+	private int size = 0;
+
+	/**
+	 * @param expectedSize number of tokens to make room for
+	 */
+	OffHeapVocabulary(int expectedSize) {
+		allocate(Math.max(16, expectedSize), 8 * Math.max(16, expectedSize));
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean contains(String token) {
+		return find(token, hash(token)) >= 0;
+	}
+
+	/**
+	 * @return the count of the token, or 0 if it is not in the vocabulary
+	 */
+	int count(String token) {
+		int slot = find(token, hash(token));
+		return (slot < 0) ? 0 : slots.getInt(slot * SLOT_BYTES + 12);
+	}
+
+	/**
+	 * Adds the token or replaces its count.
+	 */
+	void put(String token, int count) {
+		int hash = hash(token);
+		int slot = find(token, hash);
+		if (slot >= 0) {
+			slots.putInt(slot * SLOT_BYTES + 12, count);
+			return;
+		}
+		if (2 * (size + 1) > mask + 1) {
+			rehash(2 * (mask + 1), keys.capacity());
+			slot = find(token, hash);
+		}
+		insert(-slot - 1, hash, token, count);
+	}
+
+	/**
+	 * Removes all tokens counted less than the given number and compacts the
+	 * buffers.
+	 */
+	void retainAtLeast(int minCount) {
+		int retained = 0;
+		long keyBytes = 0;
+		for (int slot = 0; slot <= mask; slot++) {
+			int base = slot * SLOT_BYTES;
+			if (slots.getInt(base) != 0 && slots.getInt(base + 12) >= minCount) {
+				retained++;
+				keyBytes += 2L * slots.getInt(base + 8);
+			}
+		}
+		ByteBuffer oldSlots = slots;
+		ByteBuffer oldKeys = keys;
+		int oldMask = mask;
+		allocate(Math.max(16, retained), Math.max(128, keyBytes));
+		for (int slot = 0; slot <= oldMask; slot++) {
+			int base = slot * SLOT_BYTES;
+			if (oldSlots.getInt(base) != 0 && oldSlots.getInt(base + 12) >= minCount) {
+				copy(oldSlots, oldKeys, base);
+			}
+		}
+	}
+
+	/**
+	 * @return the smallest count such that at most maxSize tokens are counted at
+	 *         least that often, at least minCount
+	 */
+	int threshold(int maxSize, int minCount) {
+		if (size <= maxSize) {
+			return minCount;
+		}
+		int[] counts = new int[size];
+		int i = 0;
+		for (int slot = 0; slot <= mask; slot++) {
+			if (slots.getInt(slot * SLOT_BYTES) != 0) {
+				counts[i++] = slots.getInt(slot * SLOT_BYTES + 12);
+			}
+		}
+		Arrays.sort(counts);
+		// counts[size - maxSize - 1] is the largest count that has to go
+		return Math.max(minCount, counts[size - maxSize - 1] + 1);
+	}
+
+	/**
+	 * @return bytes allocated outside of the heap
+	 */
+	long memoryUsed() {
+		return (slots == null) ? 0 : (long) slots.capacity() + keys.capacity();
+	}
+
+	/**
+	 * Releases the buffers; the vocabulary cannot be used afterwards.
+	 */
+	void clear() {
+		slots = null;
+		keys = null;
+		size = 0;
+	}
+
+	private void allocate(int expectedSize, long keyBytes) {
+		int capacity = Integer.highestOneBit(Math.max(8, 2 * expectedSize - 1)) << 1;
+		if ((long) capacity * SLOT_BYTES > Integer.MAX_VALUE || keyBytes > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Vocabulary of " + expectedSize + " tokens is too large");
+		}
+		slots = ByteBuffer.allocateDirect(capacity * SLOT_BYTES);
+		keys = ByteBuffer.allocateDirect((int) keyBytes);
+		keys.limit(0);
+		mask = capacity - 1;
+		size = 0;
+	}
+
+	private void rehash(int capacity, long keyBytes) {
+		ByteBuffer oldSlots = slots;
+		ByteBuffer oldKeys = keys;
+		int oldMask = mask;
+		allocate(capacity / 2, keyBytes);
+		for (int slot = 0; slot <= oldMask; slot++) {
+			if (oldSlots.getInt(slot * SLOT_BYTES) != 0) {
+				copy(oldSlots, oldKeys, slot * SLOT_BYTES);
+			}
+		}
+	}
+
+	/**
+	 * Copies the entry at the base offset of the old buffers into the current
+	 * ones.
+	 */
+	private void copy(ByteBuffer oldSlots, ByteBuffer oldKeys, int base) {
+		int hash = oldSlots.getInt(base);
+		int offset = oldSlots.getInt(base + 4);
+		int length = oldSlots.getInt(base + 8);
+		int slot = hash & mask;
+		while (slots.getInt(slot * SLOT_BYTES) != 0) {
+			slot = (slot + 1) & mask;
+		}
+		int keyOffset = appendKey(oldKeys, offset, 2 * length);
+		writeSlot(slot, hash, keyOffset, length, oldSlots.getInt(base + 12));
+	}
+
+	private void insert(int slot, int hash, String token, int count) {
+		int offset = reserveKey(2 * token.length());
+		for (int i = 0; i < token.length(); i++) {
+			keys.putChar(offset + 2 * i, token.charAt(i));
+		}
+		writeSlot(slot, hash, offset, token.length(), count);
+	}
+
+	private void writeSlot(int slot, int hash, int offset, int length, int count) {
+		int base = slot * SLOT_BYTES;
+		slots.putInt(base, hash);
+		slots.putInt(base + 4, offset);
+		slots.putInt(base + 8, length);
+		slots.putInt(base + 12, count);
+		size++;
+	}
+
+	private int appendKey(ByteBuffer source, int offset, int bytes) {
+		int target = reserveKey(bytes);
+		ByteBuffer from = source.duplicate();
+		from.limit(offset + bytes).position(offset);
+		ByteBuffer to = keys.duplicate();
+		to.position(target);
+		to.put(from);
+		return target;
+	}
+
+	/**
+	 * Extends the used part of the key buffer, growing it if necessary.
+	 *
+	 * @return offset of the reserved bytes
+	 */
+	private int reserveKey(int bytes) {
+		int offset = keys.limit();
+		if ((long) offset + bytes > keys.capacity()) {
+			long capacity = Math.max(2L * keys.capacity(), (long) offset + bytes);
+			if (capacity > Integer.MAX_VALUE) {
+				capacity = Integer.MAX_VALUE;
+				if ((long) offset + bytes > capacity) {
+					throw new IllegalStateException("Vocabulary keys exceed 2 GB");
+				}
+			}
+			ByteBuffer grown = ByteBuffer.allocateDirect((int) capacity);
+			ByteBuffer used = keys.duplicate();
+			used.position(0).limit(offset);
+			grown.put(used);
+			keys = grown;
+		}
+		keys.limit(offset + bytes);
+		return offset;
+	}
+
+	/**
+	 * @return the slot of the token, or -(empty slot)-1 where it would be inserted
+	 */
+	private int find(String token, int hash) {
+		int slot = hash & mask;
+		while (true) {
+			int base = slot * SLOT_BYTES;
+			int slotHash = slots.getInt(base);
+			if (slotHash == 0) {
+				return -slot - 1;
+			}
+			if (slotHash == hash && equalsKey(token, slots.getInt(base + 4), slots.getInt(base + 8))) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private boolean equalsKey(String token, int offset, int length) {
+		if (length != token.length()) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (keys.getChar(offset + 2 * i) != token.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int hash(String token) {
+		int h = token.hashCode() * 0x9E3779B9;
+		h ^= h >>> 16;
+		return (h == 0) ? 1 : h;
+	}
+}
@@ -0,0 +1,334 @@
+package helt.pubex.dl4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.deeplearning4j.models.embeddings.inmemory.InMemoryLookupTable;
+import org.deeplearning4j.models.embeddings.loader.VectorsConfiguration;
+import org.deeplearning4j.models.paragraphvectors.ParagraphVectors;
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.wordstore.VocabCache;
+import org.deeplearning4j.models.word2vec.wordstore.inmemory.AbstractCache;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * Saves a trained {@link ParagraphVectors} model in a compact binary layout and
+ * loads it back with the weight matrices memory-mapped.
+ *
+ * A model is a directory with the vectors configuration (config.json), the
+ * vocabulary including labels and Huffman codes (vocab.bin), and one file per
+ * weight matrix (syn0.bin, syn1.bin, syn1neg.bin). A matrix file is a 64 byte
+ * header followed by the raw floats in row-major order. Every save writes a new
+ * version directory inside the store directory, and the file CURRENT names the
+ * version to load. Replacing CURRENT is atomic, so readers see either the old
+ * or the new model, also if the writer dies halfway.
+ *
+ * Matrices are mapped copy-on-write and wrapped without copying into off-heap
+ * ND4J buffers. Processes which load the same model therefore share the pages
+ * of the file system cache, and loading does not depend on the matrix size. A
+ * single matrix is limited to 2 GB.
+ */
+public class ParagraphVectorsStore {
+
+	private static final int VOCAB_MAGIC = 0x50564f31; // PVO1
+	private static final int MATRIX_MAGIC = 0x50564d31; // PVM1
+	private static final int MATRIX_HEADER_SIZE = 64;
+
+	private static final String CONFIG = "config.json";
+	private static final String VOCAB = "vocab.bin";
+	private static final String SYN0 = "syn0.bin";
+	private static final String SYN1 = "syn1.bin";
+	private static final String SYN1_NEG = "syn1neg.bin";
+	private static final String CURRENT = "CURRENT";
+	private static final String VERSION_PREFIX = "version-";
+
+	/**
+	 * The mapping must live as long as the ND4J buffer that points into it. The
+	 * keys are compared by identity: ND4J's equals() compares the contents of
+	 * buffers, and equal buffers must keep their own mappings.
+	 */
+	private static final Map<DataBuffer, MappedByteBuffer> MAPPINGS = new MapMaker().weakKeys().makeMap();
+
+	private final Path directory;
+
+	public ParagraphVectorsStore(Path directory) {
+		this.directory = directory;
+	}
+
+	public boolean exists() throws IOException {
+		return current() != null;
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Writes the model into a new version directory and then points CURRENT at
+	 * it. The previous version is kept for readers which are still loading it,
+	 * older ones are deleted.
+	 */
+	public void save(ParagraphVectors vectors) throws IOException {
+		Files.createDirectories(directory);
+		Path previous = current();
+		Path version = Files.createTempDirectory(directory, VERSION_PREFIX);
+		Path pointer = null;
+		try {
+			Files.write(version.resolve(CONFIG), vectors.getConfiguration().toJson().getBytes(StandardCharsets.UTF_8));
+			writeVocab(vectors.getVocab(), version.resolve(VOCAB));
+
+			InMemoryLookupTable<?> table = (InMemoryLookupTable<?>) vectors.getLookupTable();
+			writeMatrix(table.getSyn0(), version.resolve(SYN0));
+			if (table.getSyn1() != null) {
+				writeMatrix(table.getSyn1(), version.resolve(SYN1));
+			}
+			if (table.getSyn1Neg() != null) {
+				writeMatrix(table.getSyn1Neg(), version.resolve(SYN1_NEG));
+			}
+
+			pointer = Files.createTempFile(directory, CURRENT, ".tmp");
+			Files.write(pointer, version.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+			Files.move(pointer, directory.resolve(CURRENT), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e) {
+			delete(version);
+			throw e;
+		} finally {
+			if (pointer != null) {
+				Files.deleteIfExists(pointer);
+			}
+		}
+		prune(version, previous);
+	}
+
+	public ParagraphVectors load(TokenizerFactory tokenizerFactory) throws IOException {
+		Path version = current();
+		if (version == null) {
+			throw new IOException("No paragraph vectors in " + directory);
+		}
+		VectorsConfiguration configuration = VectorsConfiguration
+				.fromJson(new String(Files.readAllBytes(version.resolve(CONFIG)), StandardCharsets.UTF_8));
+		AbstractCache<VocabWord> vocab = readVocab(version.resolve(VOCAB));
+
+		INDArray syn0 = mapMatrix(version.resolve(SYN0));
+		InMemoryLookupTable<VocabWord> table = new InMemoryLookupTable.Builder<VocabWord>().cache(vocab)
+				.vectorLength(syn0.columns()).useAdaGrad(false).negative(configuration.getNegative())
+				.useHierarchicSoftmax(configuration.isUseHierarchicSoftmax()).build();
+		table.setLearningRate(configuration.getLearningRate());
+		table.setSyn0(syn0);
+		if (Files.exists(version.resolve(SYN1))) {
+			table.setSyn1(mapMatrix(version.resolve(SYN1)));
+		}
+		if (Files.exists(version.resolve(SYN1_NEG))) {
+			table.setSyn1Neg(mapMatrix(version.resolve(SYN1_NEG)));
+		}
+
+		ParagraphVectors vectors = new ParagraphVectors.Builder(configuration).vocabCache(vocab).lookupTable(table)
+				.tokenizerFactory(tokenizerFactory).resetModel(false).build();
+		vectors.extractLabels();
+		return vectors;
+	}
+
+	/**
+	 * @return the version directory named by CURRENT, the store directory itself
+	 *         for a model saved before versions were introduced, or null
+	 */
+	private Path current() throws IOException {
+		Path pointer = directory.resolve(CURRENT);
+		if (Files.isRegularFile(pointer)) {
+			String name = new String(Files.readAllBytes(pointer), StandardCharsets.UTF_8).trim();
+			Path version = directory.resolve(name);
+			if (Files.isRegularFile(version.resolve(CONFIG))) {
+				return version;
+			}
+		}
+		return Files.isRegularFile(directory.resolve(CONFIG)) ? directory : null;
+	}
+
+	/**
+	 * Deletes the versions other than the current and the previous one, which
+	 * includes those of interrupted saves, and the files of an unversioned model.
+	 */
+	private void prune(Path current, Path previous) throws IOException {
+		try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+			for (Path child : children) {
+				String name = child.getFileName().toString();
+				if (name.startsWith(VERSION_PREFIX) && !child.equals(current) && !child.equals(previous)) {
+					delete(child);
+				}
+			}
+		}
+		if (directory.equals(previous)) {
+			return;
+		}
+		for (String file : new String[] { CONFIG, VOCAB, SYN0, SYN1, SYN1_NEG }) {
+			Files.deleteIfExists(directory.resolve(file));
+		}
+	}
+
+	private static void writeVocab(VocabCache<VocabWord> vocab, Path target) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(target), 64 * 1024))) {
+			out.writeInt(VOCAB_MAGIC);
+			out.writeLong(vocab.totalWordOccurrences());
+			out.writeInt(vocab.numWords());
+			for (VocabWord word : vocab.vocabWords()) {
+				out.writeUTF(word.getLabel());
+				out.writeInt(word.getIndex());
+				out.writeLong((long) word.getElementFrequency());
+				out.writeBoolean(word.isLabel());
+
+				List<Byte> codes = word.getCodes();
+				List<Integer> points = word.getPoints();
+				int codeLength = (codes == null) ? 0 : codes.size();
+				int pointsLength = (points == null) ? 0 : points.size();
+				out.writeShort(codeLength);
+				for (int i = 0; i < codeLength; i++) {
+					out.writeByte(codes.get(i));
+				}
+				out.writeShort(pointsLength);
+				for (int i = 0; i < pointsLength; i++) {
+					out.writeInt(points.get(i));
+				}
+			}
+		}
+	}
+
+	private static AbstractCache<VocabWord> readVocab(Path source) throws IOException {
+		AbstractCache<VocabWord> vocab = new AbstractCache<>();
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(Files.newInputStream(source), 64 * 1024))) {
+			if (in.readInt() != VOCAB_MAGIC) {
+				throw new IOException("Not a vocabulary file: " + source);
+			}
+			long totalOccurrences = in.readLong();
+			int size = in.readInt();
+			for (int i = 0; i < size; i++) {
+				String label = in.readUTF();
+				int index = in.readInt();
+				VocabWord word = new VocabWord(in.readLong(), label);
+				word.setIndex(index);
+				word.markAsLabel(in.readBoolean());
+
+				int codeLength = in.readShort();
+				List<Byte> codes = new ArrayList<>(codeLength);
+				for (int c = 0; c < codeLength; c++) {
+					codes.add(in.readByte());
+				}
+				int pointsLength = in.readShort();
+				int[] points = new int[pointsLength];
+				for (int p = 0; p < pointsLength; p++) {
+					points[p] = in.readInt();
+				}
+				word.setCodes(codes);
+				word.setPoints(points);
+				word.setCodeLength((short) codeLength);
+
+				vocab.addToken(word);
+				vocab.addWordToIndex(index, label);
+			}
+			vocab.setTotalWordOccurences(totalOccurrences);
+		}
+		return vocab;
+	}
+
+	/**
+	 * Writes the header and the matrix in native byte order, row by row.
+	 */
+	static void writeMatrix(INDArray matrix, Path target) throws IOException {
+		long rows = matrix.rows();
+		int columns = matrix.columns();
+		try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer header = ByteBuffer.allocate(MATRIX_HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+			header.putInt(MATRIX_MAGIC).putLong(rows).putInt(columns)
+					.put((byte) (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 1 : 0));
+			header.position(0);
+			channel.write(header);
+
+			ByteBuffer row = ByteBuffer.allocate(columns * Float.BYTES).order(ByteOrder.nativeOrder());
+			for (long r = 0; r < rows; r++) {
+				row.clear();
+				row.asFloatBuffer().put(matrix.getRow(r).toFloatVector());
+				while (row.hasRemaining()) {
+					channel.write(row);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Maps a matrix written by {@link #writeMatrix(INDArray, Path)}. Falls back to
+	 * an on-heap copy if the file was written with a different byte order.
+	 */
+	static INDArray mapMatrix(Path source) throws IOException {
+		// A private mapping needs a writable channel, the file itself is never written.
+		try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer header = ByteBuffer.allocate(MATRIX_HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+			while (header.hasRemaining() && channel.read(header) >= 0) {
+				// read the complete header
+			}
+			header.flip();
+			if (header.remaining() < MATRIX_HEADER_SIZE || header.getInt() != MATRIX_MAGIC) {
+				throw new IOException("Not a matrix file: " + source);
+			}
+			long rows = header.getLong();
+			int columns = header.getInt();
+			ByteOrder order = (header.get() == 1) ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+
+			long bytes = rows * columns * Float.BYTES;
+			if (bytes > Integer.MAX_VALUE) {
+				throw new IOException("Matrix too large to be mapped: " + source);
+			}
+			// Copy-on-write: pages stay shared with other processes until written to.
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.PRIVATE, MATRIX_HEADER_SIZE, bytes);
+			mapped.order(order);
+			long[] shape = { rows, columns };
+
+			if (order != ByteOrder.nativeOrder()) {
+				float[] data = new float[(int) (rows * columns)];
+				mapped.asFloatBuffer().get(data);
+				return Nd4j.create(data, shape, 'c');
+			}
+
+			DataBuffer buffer = Nd4j.createBuffer(mapped, DataType.FLOAT, (int) (rows * columns));
+			MAPPINGS.put(buffer, mapped);
+			return Nd4j.create(buffer, shape);
+		}
+	}
+
+	private static void delete(Path path) throws IOException {
+		if (!Files.exists(path)) {
+			return;
+		}
+		if (Files.isDirectory(path)) {
+			try (DirectoryStream<Path> children = Files.newDirectoryStream(path)) {
+				for (Path child : children) {
+					delete(child);
+				}
+			}
+		}
+		Files.delete(path);
+	}
+}
@@ -0,0 +1,101 @@
+package helt.pubex.dl4j;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Index of the sharded sentence files written by
+ * {@link Dl4jVectorizerService#extractSentencesFromData()}.
+ * 
+ * Each entry maps a document to the range of lines it occupies in its shard.
+ * The order of the entries is the order in which the sentences are read for
+ * training. On disk this is a tab separated file with the columns shard,
+ * first line, line count and document URI.
+ */
+public class SentenceManifest {
+
+	private final List<Entry> entries;
+
+	public SentenceManifest(List<Entry> entries) {
+		this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+	}
+
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return the shard file names, in reading order
+	 */
+	public List<String> getShards() {
+		Set<String> shards = new LinkedHashSet<>();
+		for (Entry entry : entries) {
+			shards.add(entry.getShard());
+		}
+		return new ArrayList<>(shards);
+	}
+
+	/**
+	 * Writes the manifest atomically, so that a reader never sees a manifest of
+	 * an unfinished extraction.
+	 */
+	public void write(Path location) throws IOException {
+		Path temp = Files.createTempFile(location.toAbsolutePath().getParent(), "manifest", ".tmp");
+		try {
+			try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+				for (Entry entry : entries) {
+					writer.append(entry.getShard()).append('\t')
+							.append(Long.toString(entry.getFirstLine())).append('\t')
+							.append(Long.toString(entry.getLineCount())).append('\t')
+							.append(entry.getDocumentUri());
+					writer.newLine();
+				}
+			}
+			Files.move(temp, location, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	public static class Entry {
+		private final String shard;
+		private final long firstLine;
+		private final long lineCount;
+		private final String documentUri;
+
+		public Entry(String shard, long firstLine, long lineCount, String documentUri) {
+			this.shard = shard;
+			this.firstLine = firstLine;
+			this.lineCount = lineCount;
+			this.documentUri = documentUri;
+		}
+
+		public String getShard() {
+			return shard;
+		}
+
+		/**
+		 * @return zero based line number within the shard
+		 */
+		public long getFirstLine() {
+			return firstLine;
+		}
+
+		public long getLineCount() {
+			return lineCount;
+		}
+
+		public String getDocumentUri() {
+			return documentUri;
+		}
+	}
+}
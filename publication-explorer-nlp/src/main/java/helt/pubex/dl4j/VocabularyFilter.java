@@ -0,0 +1,125 @@
+package helt.pubex.dl4j;
+
+import java.io.Closeable;
+
+import org.deeplearning4j.text.documentiterator.LabelAwareIterator;
+import org.deeplearning4j.text.tokenization.tokenizer.TokenPreProcess;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
+
+import helt.pubex.Main;
+
+/**
+ * Prunes the vocabulary of the paragraph vectors before DL4J builds it. The
+ * PDFs yield many tokens which occur only once or twice (OCR errors, formulas,
+ * hyphenated words), and every word in the vocabulary costs a
+ * {@code VocabWord} on the heap and a row in each weight matrix.
+ *
+ * {@link #build} estimates the token frequencies in a first pass over the
+ * corpus with a {@link CountMinSketch}, and collects the tokens estimated at
+ * least {@code minFrequency} times in an {@link OffHeapVocabulary} in a second
+ * pass. If more than {@code maxSize} tokens qualify, the threshold is raised
+ * until at most that many remain. As a token pre-processor the filter then
+ * replaces every other token by the empty string, which DL4J skips, so that
+ * its vocabulary cache only ever sees the kept tokens. The estimates may be too
+ * high, so the threshold should also be passed to the model as its minimal
+ * word frequency.
+ */
+public class VocabularyFilter implements TokenPreProcess, Closeable {
+	private static final int SKETCH_DEPTH = 4;
+
+	private final TokenPreProcess preProcessor;
+	private final OffHeapVocabulary vocabulary;
+	private final int threshold;
+
+	private VocabularyFilter(TokenPreProcess preProcessor, OffHeapVocabulary vocabulary, int threshold) {
+		this.preProcessor = preProcessor;
+		this.vocabulary = vocabulary;
+		this.threshold = threshold;
+	}
+
+	/**
+	 * @param documents    the corpus, read twice
+	 * @param tokenizer    tokenizer of the model, with its pre-processor
+	 * @param minFrequency tokens estimated less often are dropped
+	 * @param maxSize      maximal number of tokens kept
+	 * @param sketchWidth  counters per row of the sketch, which uses 16 bytes
+	 *                     per column
+	 */
+	public static VocabularyFilter build(LabelAwareIterator documents, TokenizerFactory tokenizer, int minFrequency,
+			int maxSize, int sketchWidth) {
+		CountMinSketch sketch = new CountMinSketch(sketchWidth, SKETCH_DEPTH);
+		long tokens = 0;
+		documents.reset();
+		while (documents.hasNextDocument()) {
+			for (String token : tokenizer.create(documents.nextDocument().getContent()).getTokens()) {
+				if (!token.isEmpty()) {
+					sketch.add(token);
+					tokens++;
+				}
+			}
+		}
+
+		OffHeapVocabulary vocabulary = new OffHeapVocabulary(Math.min(maxSize, 1 << 16));
+		int threshold = Math.max(1, minFrequency);
+		documents.reset();
+		while (documents.hasNextDocument()) {
+			for (String token : tokenizer.create(documents.nextDocument().getContent()).getTokens()) {
+				if (token.isEmpty()) {
+					continue;
+				}
+				int estimate = sketch.estimate(token);
+				if (estimate >= threshold && !vocabulary.contains(token)) {
+					vocabulary.put(token, estimate);
+					// prune in batches rather than with every token over the limit
+					if (vocabulary.size() > 2 * maxSize) {
+						threshold = vocabulary.threshold(maxSize, threshold);
+						vocabulary.retainAtLeast(threshold);
+					}
+				}
+			}
+		}
+		documents.reset();
+		threshold = vocabulary.threshold(maxSize, threshold);
+		vocabulary.retainAtLeast(threshold);
+
+		Main.LOG.info(String.format("Kept %s words occurring at least %s times in %s tokens "
+				+ "(sketch %s MB, vocabulary %s MB off-heap)", vocabulary.size(), threshold, tokens,
+				sketch.memoryUsed() >> 20, vocabulary.memoryUsed() >> 20));
+		return new VocabularyFilter(tokenizer.getTokenPreProcessor(), vocabulary, threshold);
+	}
+
+	/**
+	 * @return the minimal estimated frequency of the kept tokens
+	 */
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @return number of kept tokens
+	 */
+	public int size() {
+		return vocabulary.size();
+	}
+
+	/**
+	 * @return whether the token, after pre-processing, is kept
+	 */
+	public boolean contains(String token) {
+		return vocabulary.contains(token);
+	}
+
+	@Override
+	public String preProcess(String token) {
+		String processed = (preProcessor != null) ? preProcessor.preProcess(token) : token;
+		return (processed.isEmpty() || vocabulary.contains(processed)) ? processed : "";
+	}
+
+	/**
+	 * Releases the off-heap vocabulary.
+	 */
+	@Override
+	public void close() {
+		vocabulary.clear();
+	}
+}
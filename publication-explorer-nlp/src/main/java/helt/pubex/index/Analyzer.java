@@ -0,0 +1,52 @@
+package helt.pubex.index;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import helt.pubex.models.DocumentAnnotation;
+
+/**
+ * Turns text and named entities into index terms. Text terms are the lowercased
+ * runs of letters and digits. An entity is indexed under its type and text,
+ * e.g. "PERSON:geoffrey hinton", and under its text alone, ":geoffrey hinton",
+ * to find it whatever its type is. As text terms contain no colon, the two
+ * kinds never collide.
+ */
+final class Analyzer {
+	private static final String NOUN = "POS_NOUN";
+
+	private Analyzer() {
+	}
+
+	static List<String> terms(String text) {
+		List<String> terms = new ArrayList<>();
+		int begin = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean inTerm = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (inTerm && begin < 0) {
+				begin = i;
+			} else if (!inTerm && begin >= 0) {
+				terms.add(text.substring(begin, i).toLowerCase(Locale.ROOT));
+				begin = -1;
+			}
+		}
+		return terms;
+	}
+
+	/**
+	 * @return whether annotations of the type are named entities; nouns are
+	 *         covered by the text terms already
+	 */
+	static boolean isEntity(String type) {
+		return !NOUN.equals(type);
+	}
+
+	/**
+	 * @param type entity type, or null for any type
+	 */
+	static String entity(String type, String text) {
+		String normalized = DocumentAnnotation.normalizeWhitespace(text).toLowerCase(Locale.ROOT);
+		return (type == null) ? ":" + normalized : type.toUpperCase(Locale.ROOT) + ":" + normalized;
+	}
+}
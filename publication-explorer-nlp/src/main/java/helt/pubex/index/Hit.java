@@ -0,0 +1,36 @@
+package helt.pubex.index;
+
+/**
+ * A paragraph matching a {@link Query}.
+ */
+public class Hit {
+	private final String url;
+	private final int paragraph;
+	private final double score;
+
+	Hit(String url, int paragraph, double score) {
+		this.url = url;
+		this.paragraph = paragraph;
+		this.score = score;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	/**
+	 * @return index of the paragraph in the content of the document
+	 */
+	public int getParagraph() {
+		return paragraph;
+	}
+
+	public double getScore() {
+		return score;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s#%d (%.3f)", url, paragraph, score);
+	}
+}
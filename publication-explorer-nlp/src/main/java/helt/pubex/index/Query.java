@@ -0,0 +1,56 @@
+package helt.pubex.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Terms and entities to search for. A paragraph matches if it contains any of
+ * them, see {@link SearchIndex#search(Query, int)}.
+ */
+public class Query {
+	private final Set<String> terms = new LinkedHashSet<>();
+
+	/**
+	 * @return a query for the words of the text
+	 */
+	public static Query of(String text) {
+		return new Query().text(text);
+	}
+
+	public Query text(String text) {
+		terms.addAll(Analyzer.terms(text));
+		return this;
+	}
+
+	/**
+	 * Adds an entity of any type.
+	 */
+	public Query entity(String text) {
+		return entity(null, text);
+	}
+
+	/**
+	 * @param type entity type as assigned by the NER, e.g. PERSON, or null for
+	 *             any type
+	 */
+	public Query entity(String type, String text) {
+		terms.add(Analyzer.entity(type, text));
+		return this;
+	}
+
+	public boolean isEmpty() {
+		return terms.isEmpty();
+	}
+
+	List<String> getTerms() {
+		return Collections.unmodifiableList(new ArrayList<>(terms));
+	}
+
+	@Override
+	public String toString() {
+		return terms.toString();
+	}
+}
@@ -0,0 +1,608 @@
+package helt.pubex.index;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import helt.pubex.io.DocumentSink;
+import helt.pubex.models.AnnotationTable;
+import helt.pubex.models.Document;
+
+/**
+ * Embedded inverted index of the paragraphs and named entities of documents,
+ * kept in a directory.
+ *
+ * The index consists of immutable {@link Segment}s, listed in order in the file
+ * "segments". Accepted documents are buffered; every full buffer is turned into
+ * a segment on one of the flush threads, so segments are built in parallel,
+ * and published in the order the documents were accepted. Whenever there are
+ * more than {@link #setMergeFactor(int) mergeFactor} segments, the adjacent
+ * segments with the smallest total size are merged in the background. The
+ * segment list is replaced atomically, so readers always see a consistent
+ * index.
+ *
+ * A document is identified by its URL: indexing a URL again supersedes the
+ * older version, which is left out of results and dropped when its segment is
+ * merged. Paragraphs are scored with BM25.
+ *
+ * One process at a time may add documents; any number may search.
+ */
+public class SearchIndex implements DocumentSink {
+	private static final Logger LOG = LoggerFactory.getLogger(SearchIndex.class);
+	private static final String SEGMENTS = "segments";
+	private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.seg");
+	private static final double K1 = 1.2;
+	private static final double B = 0.75;
+
+	private final Path directory;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int maxBufferedDocuments = 256;
+	private int mergeFactor = 10;
+
+	private volatile Snapshot snapshot;
+	private long loadedModified = -1;
+
+	// writer state, created with the first document
+	private ExecutorService flushExecutor;
+	private ExecutorService mergeExecutor;
+	private Semaphore flushPermits;
+	private final AtomicInteger nextSegment = new AtomicInteger();
+	private List<Document> buffer = new ArrayList<>();
+	private long nextFlush = 0;
+	private long nextPublish = 0;
+	private final Map<Long, Segment> flushed = new HashMap<>();
+	private boolean merging = false;
+	private boolean closed = false;
+	private volatile IOException failure;
+
+	/**
+	 * Opens the index in the directory, which is created when the first document
+	 * is added.
+	 */
+	public SearchIndex(Path directory) throws IOException {
+		this.directory = directory;
+		this.snapshot = new Snapshot(Collections.<Segment>emptyList());
+		refresh();
+	}
+
+	/**
+	 * Number of threads building segments.
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Number of documents per newly built segment.
+	 */
+	public void setMaxBufferedDocuments(int maxBufferedDocuments) {
+		this.maxBufferedDocuments = maxBufferedDocuments;
+	}
+
+	/**
+	 * Number of segments above which segments are merged.
+	 */
+	public void setMergeFactor(int mergeFactor) {
+		this.mergeFactor = mergeFactor;
+	}
+
+	/**
+	 * Rereads the segment list if another process has changed it since. Has no
+	 * effect once this index has accepted documents.
+	 */
+	public synchronized void refresh() throws IOException {
+		if (flushExecutor != null) {
+			return;
+		}
+		Path list = directory.resolve(SEGMENTS);
+		long modified;
+		List<String> names;
+		try {
+			modified = Files.getLastModifiedTime(list).toMillis();
+			if (modified == loadedModified) {
+				return;
+			}
+			names = Files.readAllLines(list, StandardCharsets.UTF_8);
+		} catch (NoSuchFileException e) {
+			return;
+		}
+		Map<String, Segment> loaded = new HashMap<>();
+		for (Segment segment : snapshot.segments) {
+			loaded.put(segment.getName(), segment);
+		}
+		List<Segment> segments = new ArrayList<>();
+		for (String name : names) {
+			if (!name.isEmpty()) {
+				Segment segment = loaded.get(name);
+				segments.add((segment == null) ? Segment.read(directory.resolve(name)) : segment);
+			}
+		}
+		snapshot = new Snapshot(segments);
+		loadedModified = modified;
+		LOG.info("Opened index {} with {} documents in {} segments", directory, snapshot.documents,
+				segments.size());
+	}
+
+	@Override
+	public void accept(Document document) throws IOException {
+		checkFailure();
+		List<Document> full = null;
+		synchronized (this) {
+			if (closed) {
+				throw new IllegalStateException("index is closed");
+			}
+			if (flushExecutor == null) {
+				startWriting();
+			}
+			buffer.add(document);
+			if (buffer.size() >= maxBufferedDocuments) {
+				full = buffer;
+				buffer = new ArrayList<>();
+			}
+		}
+		if (full != null) {
+			flush(full);
+		}
+	}
+
+	/**
+	 * Indexes the buffered documents and waits until all segments are written and
+	 * merged down to {@link #setMergeFactor(int) mergeFactor} segments.
+	 */
+	@Override
+	public void close() throws IOException {
+		List<Document> rest;
+		synchronized (this) {
+			if (closed || flushExecutor == null) {
+				closed = true;
+				return;
+			}
+			closed = true;
+			rest = buffer;
+			buffer = new ArrayList<>();
+		}
+		if (!rest.isEmpty()) {
+			flush(rest);
+		}
+		try {
+			flushExecutor.shutdown();
+			flushExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			synchronized (this) {
+				// each merge starts the next one until there are few enough segments
+				while (merging) {
+					wait();
+				}
+			}
+			mergeExecutor.shutdown();
+			mergeExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while closing the index");
+		}
+		checkFailure();
+		LOG.info("Index {} has {} documents in {} segments", directory, snapshot.documents,
+				snapshot.segments.size());
+	}
+
+	/**
+	 * @return the k best scoring paragraphs containing any of the terms of the
+	 *         query, best first
+	 */
+	public List<Hit> search(Query query, int k) {
+		Snapshot current = snapshot;
+		List<String> terms = query.getTerms();
+		if (terms.isEmpty() || current.paragraphs == 0 || k <= 0) {
+			return Collections.emptyList();
+		}
+		double averageLength = Math.max(1.0, (double) current.length / current.paragraphs);
+		double[] idf = new double[terms.size()];
+		for (int t = 0; t < terms.size(); t++) {
+			long frequency = 0;
+			for (int s = 0; s < current.segments.size(); s++) {
+				frequency += current.frequency(s, terms.get(t));
+			}
+			idf[t] = Math.log(1 + (current.paragraphs - frequency + 0.5) / (frequency + 0.5));
+		}
+
+		PriorityQueue<Hit> best = new PriorityQueue<>(k + 1, (a, b) -> Double.compare(a.getScore(), b.getScore()));
+		for (int s = 0; s < current.segments.size(); s++) {
+			Segment segment = current.segments.get(s);
+			double[] scores = null;
+			for (int t = 0; t < terms.size(); t++) {
+				int term = segment.find(terms.get(t));
+				if (term < 0) {
+					continue;
+				}
+				if (scores == null) {
+					scores = new double[segment.paragraphCount()];
+				}
+				Segment.Postings postings = segment.postings(term);
+				while (postings.next()) {
+					int frequency = postings.frequency();
+					double norm = K1 * (1 - B + B * segment.length(postings.paragraph()) / averageLength);
+					scores[postings.paragraph()] += idf[t] * frequency * (K1 + 1) / (frequency + norm);
+				}
+			}
+			if (scores == null) {
+				continue;
+			}
+			boolean[] live = current.live.get(s);
+			for (int d = 0; d < segment.documentCount(); d++) {
+				if (!live[d]) {
+					continue;
+				}
+				int first = segment.firstParagraph(d);
+				int last = segment.firstParagraph(d + 1);
+				for (int p = first; p < last; p++) {
+					if (scores[p] > 0 && (best.size() < k || scores[p] > best.peek().getScore())) {
+						best.add(new Hit(segment.url(d), p - first, scores[p]));
+						if (best.size() > k) {
+							best.poll();
+						}
+					}
+				}
+			}
+		}
+		List<Hit> hits = new ArrayList<>(best);
+		hits.sort((a, b) -> Double.compare(b.getScore(), a.getScore()));
+		return hits;
+	}
+
+	/**
+	 * @return number of searchable documents
+	 */
+	public int size() {
+		return snapshot.documents;
+	}
+
+	private void startWriting() throws IOException {
+		Files.createDirectories(directory);
+		// segments which are not listed are leftovers of an interrupted run
+		Set<String> listed = new HashSet<>();
+		for (Segment segment : snapshot.segments) {
+			listed.add(segment.getName());
+		}
+		int next = 0;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*")) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				Matcher matcher = SEGMENT_NAME.matcher(name);
+				if (matcher.matches()) {
+					next = Math.max(next, Integer.parseInt(matcher.group(1)) + 1);
+				}
+				if (!listed.contains(name)) {
+					Files.delete(file);
+				}
+			}
+		}
+		nextSegment.set(next);
+		flushExecutor = Executors.newFixedThreadPool(Math.max(1, threads),
+				new ThreadFactoryBuilder().setNameFormat("index-flush-%d").setDaemon(true).build());
+		mergeExecutor = Executors.newSingleThreadExecutor(
+				new ThreadFactoryBuilder().setNameFormat("index-merge").setDaemon(true).build());
+		// bounds the buffers waiting for a flush thread
+		flushPermits = new Semaphore(2 * Math.max(1, threads));
+	}
+
+	private void flush(List<Document> documents) throws IOException {
+		try {
+			flushPermits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for the index");
+		}
+		long sequence;
+		synchronized (this) {
+			sequence = nextFlush++;
+		}
+		flushExecutor.execute(() -> {
+			Segment segment = null;
+			try {
+				segment = write(documents);
+			} catch (IOException | RuntimeException e) {
+				LOG.error("Indexing {} documents failed", documents.size(), e);
+				failure = (e instanceof IOException) ? (IOException) e : new IOException(e);
+			} finally {
+				flushPermits.release();
+				publish(sequence, segment);
+			}
+		});
+	}
+
+	/**
+	 * Inverts the documents and writes them as a new segment. Of documents with
+	 * the same URL, the last one is kept.
+	 */
+	private Segment write(List<Document> documents) throws IOException {
+		Map<String, Document> byUrl = new LinkedHashMap<>();
+		for (Document document : documents) {
+			byUrl.remove(document.getUrl());
+			byUrl.put(document.getUrl(), document);
+		}
+
+		Path location = directory.resolve(String.format("segment-%06d.seg", nextSegment.getAndIncrement()));
+		Segment.Writer writer = new Segment.Writer(location);
+		try {
+			TreeMap<String, PostingsBuffer> postings = new TreeMap<>();
+			int paragraph = 0;
+			for (Document document : byUrl.values()) {
+				List<String> content = (document.getContent() == null) ? Collections.<String>emptyList()
+						: document.getContent();
+				List<List<String>> entities = entities(document, content.size());
+				int[] lengths = new int[content.size()];
+				for (int p = 0; p < content.size(); p++, paragraph++) {
+					List<String> terms = Analyzer.terms(content.get(p));
+					lengths[p] = terms.size();
+					terms.addAll(entities.get(p));
+					Map<String, Integer> frequencies = new HashMap<>();
+					for (String term : terms) {
+						frequencies.merge(term, 1, Integer::sum);
+					}
+					for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+						postings.computeIfAbsent(entry.getKey(), t -> new PostingsBuffer()).add(paragraph,
+								entry.getValue());
+					}
+				}
+				writer.addDocument(document.getUrl(), lengths);
+			}
+			for (Map.Entry<String, PostingsBuffer> entry : postings.entrySet()) {
+				writer.startTerm(entry.getKey());
+				PostingsBuffer buffer = entry.getValue();
+				for (int i = 0; i < buffer.size; i++) {
+					writer.addPosting(buffer.paragraphs[i], buffer.frequencies[i]);
+				}
+			}
+			writer.commit();
+		} finally {
+			writer.close();
+		}
+		return Segment.read(location);
+	}
+
+	/**
+	 * @return per paragraph the terms of the named entities in it
+	 */
+	private static List<List<String>> entities(Document document, int paragraphs) {
+		List<List<String>> entities = new ArrayList<>(paragraphs);
+		for (int p = 0; p < paragraphs; p++) {
+			entities.add(new ArrayList<>());
+		}
+		AnnotationTable table = document.getAnnotationTable();
+		if (table == null) {
+			return entities;
+		}
+		for (int i = 0; i < table.size(); i++) {
+			String type = table.getType(i);
+			int p = table.getContentIndex(i);
+			if (Analyzer.isEntity(type) && p >= 0 && p < paragraphs) {
+				String text = table.getCoveredText(i, document.getContent());
+				entities.get(p).add(Analyzer.entity(type, text));
+				entities.get(p).add(Analyzer.entity(null, text));
+			}
+		}
+		return entities;
+	}
+
+	/**
+	 * Appends flushed segments to the segment list in the order their documents
+	 * were accepted. A failed flush leaves a gap.
+	 */
+	private synchronized void publish(long sequence, Segment segment) {
+		flushed.put(sequence, segment);
+		List<Segment> added = new ArrayList<>();
+		while (flushed.containsKey(nextPublish)) {
+			Segment next = flushed.remove(nextPublish++);
+			if (next != null) {
+				added.add(next);
+			}
+		}
+		if (added.isEmpty()) {
+			return;
+		}
+		List<Segment> segments = new ArrayList<>(snapshot.segments);
+		segments.addAll(added);
+		commit(segments);
+		maybeMerge();
+	}
+
+	/**
+	 * Starts merging the adjacent segments with the smallest total size if there
+	 * are too many segments and no merge is running.
+	 */
+	private synchronized void maybeMerge() {
+		List<Segment> segments = snapshot.segments;
+		if (merging || failure != null || segments.size() <= mergeFactor) {
+			return;
+		}
+		int width = Math.max(2, mergeFactor);
+		int start = 0;
+		long smallest = Long.MAX_VALUE;
+		for (int i = 0; i + width <= segments.size(); i++) {
+			long size = 0;
+			for (int j = i; j < i + width; j++) {
+				size += segments.get(j).size();
+			}
+			if (size < smallest) {
+				smallest = size;
+				start = i;
+			}
+		}
+		List<Segment> run = new ArrayList<>(segments.subList(start, start + width));
+		// documents superseded by later segments are dropped by the merge; the
+		// segments after the run stay after the merged segment
+		List<boolean[]> live = new ArrayList<>(snapshot.live.subList(start, start + width));
+		merging = true;
+		mergeExecutor.execute(() -> merge(run, live));
+	}
+
+	private void merge(List<Segment> run, List<boolean[]> live) {
+		Path location = directory.resolve(String.format("segment-%06d.seg", nextSegment.getAndIncrement()));
+		Segment merged = null;
+		try {
+			long start = System.currentTimeMillis();
+			Segment.merge(run, live, location);
+			merged = Segment.read(location);
+			LOG.debug("Merged {} segments into {} in {} ms", run.size(), merged.getName(),
+					System.currentTimeMillis() - start);
+		} catch (IOException | RuntimeException e) {
+			LOG.error("Merging index segments failed", e);
+			failure = (e instanceof IOException) ? (IOException) e : new IOException(e);
+		}
+		synchronized (this) {
+			merging = false;
+			notifyAll();
+			if (merged == null) {
+				return;
+			}
+			List<Segment> segments = new ArrayList<>(snapshot.segments);
+			int start = segments.indexOf(run.get(0));
+			segments.subList(start, start + run.size()).clear();
+			segments.add(start, merged);
+			commit(segments);
+			for (Segment segment : run) {
+				try {
+					// searches still holding the old segments have them in memory
+					Files.deleteIfExists(directory.resolve(segment.getName()));
+				} catch (IOException e) {
+					LOG.warn("Cannot delete merged segment {}", segment.getName(), e);
+				}
+			}
+			maybeMerge();
+		}
+	}
+
+	/**
+	 * Writes the segment list and makes it visible to searches.
+	 */
+	private synchronized void commit(List<Segment> segments) {
+		List<String> names = new ArrayList<>();
+		for (Segment segment : segments) {
+			names.add(segment.getName());
+		}
+		try {
+			Path temp = directory.resolve(SEGMENTS + ".tmp");
+			Files.write(temp, names, StandardCharsets.UTF_8);
+			Files.move(temp, directory.resolve(SEGMENTS), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			LOG.error("Cannot write the segment list of {}", directory, e);
+			failure = e;
+			return;
+		}
+		snapshot = new Snapshot(segments);
+	}
+
+	private void checkFailure() throws IOException {
+		if (failure != null) {
+			throw new IOException("Writing the index " + directory + " failed", failure);
+		}
+	}
+
+	/**
+	 * The segments searched at one point in time, with the documents which are
+	 * not superseded by a later segment and the statistics of their paragraphs.
+	 */
+	private static final class Snapshot {
+		private final List<Segment> segments;
+		private final List<boolean[]> live;
+		// per segment whether each paragraph is live, null if all are
+		private final List<boolean[]> liveParagraphs;
+		private int documents;
+		private long paragraphs;
+		private long length;
+
+		Snapshot(List<Segment> segments) {
+			this.segments = Collections.unmodifiableList(new ArrayList<>(segments));
+			this.live = new ArrayList<>(Collections.nCopies(segments.size(), (boolean[]) null));
+			this.liveParagraphs = new ArrayList<>(Collections.nCopies(segments.size(), (boolean[]) null));
+			Set<String> seen = new HashSet<>();
+			for (int s = segments.size() - 1; s >= 0; s--) {
+				Segment segment = segments.get(s);
+				boolean[] alive = new boolean[segment.documentCount()];
+				boolean[] aliveParagraphs = new boolean[segment.paragraphCount()];
+				boolean superseded = false;
+				for (int d = 0; d < alive.length; d++) {
+					alive[d] = seen.add(segment.url(d));
+					superseded |= !alive[d];
+					if (alive[d]) {
+						documents++;
+						for (int p = segment.firstParagraph(d); p < segment.firstParagraph(d + 1); p++) {
+							aliveParagraphs[p] = true;
+							paragraphs++;
+							length += segment.length(p);
+						}
+					}
+				}
+				live.set(s, alive);
+				liveParagraphs.set(s, superseded ? aliveParagraphs : null);
+			}
+		}
+
+		/**
+		 * @return number of live paragraphs of the segment containing the term
+		 */
+		int frequency(int s, String term) {
+			Segment segment = segments.get(s);
+			int ordinal = segment.find(term);
+			if (ordinal < 0) {
+				return 0;
+			}
+			boolean[] alive = liveParagraphs.get(s);
+			if (alive == null) {
+				return segment.frequency(ordinal);
+			}
+			int frequency = 0;
+			Segment.Postings postings = segment.postings(ordinal);
+			while (postings.next()) {
+				if (alive[postings.paragraph()]) {
+					frequency++;
+				}
+			}
+			return frequency;
+		}
+	}
+
+	private static final class PostingsBuffer {
+		private int[] paragraphs = new int[4];
+		private int[] frequencies = new int[4];
+		private int size;
+
+		void add(int paragraph, int frequency) {
+			if (size == paragraphs.length) {
+				paragraphs = Arrays.copyOf(paragraphs, size * 2);
+				frequencies = Arrays.copyOf(frequencies, size * 2);
+			}
+			paragraphs[size] = paragraph;
+			frequencies[size] = frequency;
+			size++;
+		}
+	}
+}
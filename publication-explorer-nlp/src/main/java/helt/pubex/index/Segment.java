@@ -0,0 +1,375 @@
+package helt.pubex.index;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import static helt.pubex.io.VarInts.readVarInt;
+import static helt.pubex.io.VarInts.writeVarInt;
+
+/**
+ * An immutable part of the {@link SearchIndex}: a set of documents with the
+ * postings of their terms, one posting per paragraph containing the term.
+ *
+ * Paragraphs are numbered through the segment in document order. A segment
+ * file consists of
+ * <ul>
+ * <li>magic number and format version,</li>
+ * <li>the documents: their URL and the number of terms of each paragraph,</li>
+ * <li>the sorted term dictionary: term, number of postings and their size in
+ * bytes,</li>
+ * <li>the postings of all terms in dictionary order: per posting the distance
+ * to the previous paragraph and the frequency of the term, both as varints.</li>
+ * </ul>
+ * The whole file is kept in memory; postings are decoded when they are read.
+ */
+final class Segment {
+	private static final int MAGIC = 0x50584958;
+	private static final int FORMAT = 1;
+
+	private final String name;
+	private final byte[] data;
+	private final String[] urls;
+	private final int[] firstParagraph;
+	private final int[] lengths;
+	private final long totalLength;
+	private final String[] terms;
+	private final int[] frequencies;
+	private final int[] offsets;
+
+	private Segment(String name, byte[] data, String[] urls, int[] firstParagraph, int[] lengths, String[] terms,
+			int[] frequencies, int[] offsets) {
+		this.name = name;
+		this.data = data;
+		this.urls = urls;
+		this.firstParagraph = firstParagraph;
+		this.lengths = lengths;
+		this.terms = terms;
+		this.frequencies = frequencies;
+		this.offsets = offsets;
+		long total = 0;
+		for (int length : lengths) {
+			total += length;
+		}
+		this.totalLength = total;
+	}
+
+	static Segment read(Path location) throws IOException {
+		byte[] data = Files.readAllBytes(location);
+		ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+		DataInputStream in = new DataInputStream(bytes);
+		if (in.readInt() != MAGIC) {
+			throw new IOException(location + " is not an index segment");
+		}
+		int format = readVarInt(in);
+		if (format != FORMAT) {
+			throw new IOException("Unsupported segment format " + format + " in " + location);
+		}
+
+		int documents = readVarInt(in);
+		String[] urls = new String[documents];
+		int[] firstParagraph = new int[documents + 1];
+		int[] lengths = new int[16];
+		int paragraphs = 0;
+		for (int d = 0; d < documents; d++) {
+			urls[d] = in.readUTF();
+			firstParagraph[d] = paragraphs;
+			int count = readVarInt(in);
+			if (paragraphs + count > lengths.length) {
+				lengths = Arrays.copyOf(lengths, Math.max(paragraphs + count, lengths.length * 2));
+			}
+			for (int p = 0; p < count; p++) {
+				lengths[paragraphs++] = readVarInt(in);
+			}
+		}
+		firstParagraph[documents] = paragraphs;
+
+		int termCount = readVarInt(in);
+		String[] terms = new String[termCount];
+		int[] frequencies = new int[termCount];
+		int[] sizes = new int[termCount];
+		for (int t = 0; t < termCount; t++) {
+			terms[t] = in.readUTF();
+			frequencies[t] = readVarInt(in);
+			sizes[t] = readVarInt(in);
+		}
+		int[] offsets = new int[termCount + 1];
+		offsets[0] = data.length - bytes.available();
+		for (int t = 0; t < termCount; t++) {
+			offsets[t + 1] = offsets[t] + sizes[t];
+		}
+		if (offsets[termCount] != data.length) {
+			throw new IOException("Truncated segment " + location);
+		}
+		return new Segment(location.getFileName().toString(), data, urls, firstParagraph,
+				Arrays.copyOf(lengths, paragraphs), terms, frequencies, offsets);
+	}
+
+	String getName() {
+		return name;
+	}
+
+	/**
+	 * @return size of the segment file in bytes
+	 */
+	long size() {
+		return data.length;
+	}
+
+	int documentCount() {
+		return urls.length;
+	}
+
+	String url(int document) {
+		return urls[document];
+	}
+
+	int firstParagraph(int document) {
+		return firstParagraph[document];
+	}
+
+	int paragraphCount() {
+		return lengths.length;
+	}
+
+	/**
+	 * @return number of text terms of the paragraph
+	 */
+	int length(int paragraph) {
+		return lengths[paragraph];
+	}
+
+	long totalLength() {
+		return totalLength;
+	}
+
+	int termCount() {
+		return terms.length;
+	}
+
+	String term(int term) {
+		return terms[term];
+	}
+
+	/**
+	 * @return the ordinal of the term, or a negative number if the segment does
+	 *         not contain it
+	 */
+	int find(String term) {
+		return Arrays.binarySearch(terms, term);
+	}
+
+	/**
+	 * @return number of paragraphs containing the term
+	 */
+	int frequency(int term) {
+		return frequencies[term];
+	}
+
+	Postings postings(int term) {
+		return new Postings(data, offsets[term], offsets[term + 1]);
+	}
+
+	/**
+	 * Cursor over the postings of a term, in paragraph order.
+	 */
+	static final class Postings {
+		private final byte[] data;
+		private final int end;
+		private int position;
+		private int paragraph = 0;
+		private int frequency;
+
+		private Postings(byte[] data, int begin, int end) {
+			this.data = data;
+			this.position = begin;
+			this.end = end;
+		}
+
+		boolean next() {
+			if (position >= end) {
+				return false;
+			}
+			paragraph += readVarInt();
+			frequency = readVarInt();
+			return true;
+		}
+
+		int paragraph() {
+			return paragraph;
+		}
+
+		int frequency() {
+			return frequency;
+		}
+
+		private int readVarInt() {
+			int value = 0;
+			for (int shift = 0;; shift += 7) {
+				int b = data[position++];
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merges the live documents of the segments, in the given order, into a new
+	 * segment.
+	 *
+	 * @param live per segment and document whether the document is kept
+	 */
+	static void merge(List<Segment> segments, List<boolean[]> live, Path location) throws IOException {
+		Writer writer = new Writer(location);
+		try {
+			// new paragraph number of every old paragraph, -1 if it is dropped
+			int[][] paragraphs = new int[segments.size()][];
+			int next = 0;
+			for (int s = 0; s < segments.size(); s++) {
+				Segment segment = segments.get(s);
+				paragraphs[s] = new int[segment.paragraphCount()];
+				Arrays.fill(paragraphs[s], -1);
+				for (int d = 0; d < segment.documentCount(); d++) {
+					if (!live.get(s)[d]) {
+						continue;
+					}
+					int first = segment.firstParagraph[d];
+					int last = segment.firstParagraph[d + 1];
+					writer.addDocument(segment.urls[d], Arrays.copyOfRange(segment.lengths, first, last));
+					for (int p = first; p < last; p++) {
+						paragraphs[s][p] = next++;
+					}
+				}
+			}
+
+			// k-way merge of the term dictionaries; postings of a term are appended
+			// in segment order, which keeps the new paragraph numbers ascending
+			PriorityQueue<int[]> cursors = new PriorityQueue<>(Math.max(1, segments.size()),
+					(a, b) -> segments.get(a[0]).terms[a[1]].compareTo(segments.get(b[0]).terms[b[1]]));
+			for (int s = 0; s < segments.size(); s++) {
+				if (segments.get(s).termCount() > 0) {
+					cursors.add(new int[] { s, 0 });
+				}
+			}
+			while (!cursors.isEmpty()) {
+				String term = segments.get(cursors.peek()[0]).terms[cursors.peek()[1]];
+				int[][] matching = new int[segments.size()][];
+				while (!cursors.isEmpty() && segments.get(cursors.peek()[0]).terms[cursors.peek()[1]].equals(term)) {
+					int[] cursor = cursors.poll();
+					matching[cursor[0]] = new int[] { cursor[1] };
+					if (cursor[1] + 1 < segments.get(cursor[0]).termCount()) {
+						cursors.add(new int[] { cursor[0], cursor[1] + 1 });
+					}
+				}
+				writer.startTerm(term);
+				for (int s = 0; s < segments.size(); s++) {
+					if (matching[s] == null) {
+						continue;
+					}
+					Postings postings = segments.get(s).postings(matching[s][0]);
+					while (postings.next()) {
+						int paragraph = paragraphs[s][postings.paragraph()];
+						if (paragraph >= 0) {
+							writer.addPosting(paragraph, postings.frequency());
+						}
+					}
+				}
+			}
+			writer.commit();
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Writes a segment: first all documents, then the terms in ascending order
+	 * with their postings in ascending paragraph order. Terms without postings
+	 * are left out. The file appears at its location only on {@link #commit()}.
+	 */
+	static final class Writer {
+		private final Path location;
+		private final Path temp;
+		private final ByteArrayOutputStream documentBytes = new ByteArrayOutputStream();
+		private final DataOutputStream documents = new DataOutputStream(documentBytes);
+		private final ByteArrayOutputStream dictionaryBytes = new ByteArrayOutputStream();
+		private final DataOutputStream dictionary = new DataOutputStream(dictionaryBytes);
+		private final ByteArrayOutputStream postings = new ByteArrayOutputStream();
+		private int documentCount = 0;
+		private int termCount = 0;
+		private String term;
+		private int termFrequency;
+		private int termStart;
+		private int lastParagraph;
+		private boolean committed = false;
+
+		Writer(Path location) {
+			this.location = location;
+			this.temp = location.resolveSibling(location.getFileName() + ".tmp");
+		}
+
+		void addDocument(String url, int[] paragraphLengths) throws IOException {
+			documents.writeUTF(url);
+			writeVarInt(documents, paragraphLengths.length);
+			for (int length : paragraphLengths) {
+				writeVarInt(documents, length);
+			}
+			documentCount++;
+		}
+
+		void startTerm(String term) throws IOException {
+			finishTerm();
+			this.term = term;
+			termFrequency = 0;
+			termStart = postings.size();
+			lastParagraph = 0;
+		}
+
+		void addPosting(int paragraph, int frequency) throws IOException {
+			writeVarInt(postings, paragraph - lastParagraph);
+			writeVarInt(postings, frequency);
+			lastParagraph = paragraph;
+			termFrequency++;
+		}
+
+		private void finishTerm() throws IOException {
+			if (term != null && termFrequency > 0) {
+				dictionary.writeUTF(term);
+				writeVarInt(dictionary, termFrequency);
+				writeVarInt(dictionary, postings.size() - termStart);
+				termCount++;
+			}
+			term = null;
+		}
+
+		void commit() throws IOException {
+			finishTerm();
+			try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(temp))) {
+				out.writeInt(MAGIC);
+				writeVarInt(out, FORMAT);
+				writeVarInt(out, documentCount);
+				documentBytes.writeTo(out);
+				writeVarInt(out, termCount);
+				dictionaryBytes.writeTo(out);
+				postings.writeTo(out);
+			}
+			Files.move(temp, location, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			committed = true;
+		}
+
+		void close() throws IOException {
+			if (!committed) {
+				Files.deleteIfExists(temp);
+			}
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package helt.pubex.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import helt.pubex.models.Document;
+
+/**
+ * Destination of the documents produced by the pipeline.
+ */
+public interface DocumentSink extends Closeable {
+
+	/**
+	 * Hands a document to the sink. May block if the sink cannot keep up.
+	 */
+	void accept(Document document) throws IOException;
+
+	/**
+	 * Writes all accepted documents and releases the resources of the sink.
+	 */
+	@Override
+	void close() throws IOException;
+
+	/**
+	 * @return a sink which hands every document to all of the sinks, in order,
+	 *         and closes all of them
+	 */
+	static DocumentSink tee(DocumentSink... sinks) {
+		List<DocumentSink> targets = Arrays.asList(sinks.clone());
+		return new DocumentSink() {
+			@Override
+			public void accept(Document document) throws IOException {
+				for (DocumentSink sink : targets) {
+					sink.accept(document);
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				IOException failure = null;
+				for (DocumentSink sink : targets) {
+					try {
+						sink.close();
+					} catch (IOException e) {
+						if (failure == null) {
+							failure = e;
+						} else {
+							failure.addSuppressed(e);
+						}
+					}
+				}
+				if (failure != null) {
+					throw failure;
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,280 @@
+package helt.pubex.io;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.common.io.CountingOutputStream;
+
+import helt.pubex.models.Document;
+
+/**
+ * Writes documents as gzip compressed JSON lines into rolling files
+ * documents-00000.jsonl.gz, documents-00001.jsonl.gz, ... of a directory.
+ *
+ * Documents are serialized by a background thread with Jackson's streaming
+ * generator. The generator is flushed whenever a batch is complete or the
+ * flush interval has passed, and the file is rolled over once it exceeds the
+ * maximum size. A file is written under a temporary name and only renamed when
+ * it is complete. The queue between the pipeline and the writer is bounded, so
+ * {@link #accept(Document)} blocks when the disk cannot keep up.
+ */
+public class JsonLinesDocumentSink implements DocumentSink {
+	private static final Logger LOG = LoggerFactory.getLogger(JsonLinesDocumentSink.class);
+	private static final Pattern FILE_NAME = Pattern.compile("documents-(\\d+)\\.jsonl\\.gz");
+	private static final Document END = new Document();
+
+	private final Path directory;
+	private final ObjectWriter writer;
+	private final BlockingQueue<Document> queue;
+	private final Thread thread;
+	private int batchSize = 256;
+	private long flushIntervalMillis = 5_000;
+	private long maxFileBytes = 128L * 1024 * 1024;
+
+	private volatile Throwable failure;
+	private boolean closed = false;
+
+	private int fileIndex;
+	private Path currentTemp;
+	private CountingOutputStream currentBytes;
+	private JsonGenerator generator;
+
+	public JsonLinesDocumentSink(Path directory) throws IOException {
+		this(directory, new ObjectMapper(), 1024);
+	}
+
+	/**
+	 * @param queueCapacity number of documents which may wait for the writer
+	 */
+	public JsonLinesDocumentSink(Path directory, ObjectMapper om, int queueCapacity) throws IOException {
+		this.directory = directory;
+		this.writer = om.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+		this.queue = new ArrayBlockingQueue<>(queueCapacity);
+		Files.createDirectories(directory);
+		fileIndex = nextFileIndex(directory);
+
+		thread = new Thread(this::write, "document-sink");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Number of documents after which the output is flushed.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Maximum time a written document stays in the buffers.
+	 */
+	public void setFlushIntervalMillis(long flushIntervalMillis) {
+		this.flushIntervalMillis = flushIntervalMillis;
+	}
+
+	/**
+	 * Compressed size after which a new file is started.
+	 */
+	public void setMaxFileBytes(long maxFileBytes) {
+		this.maxFileBytes = maxFileBytes;
+	}
+
+	@Override
+	public void accept(Document document) throws IOException {
+		if (closed) {
+			throw new IllegalStateException("sink is closed");
+		}
+		try {
+			while (!queue.offer(document, 100, TimeUnit.MILLISECONDS)) {
+				checkWriter();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for the document sink");
+		}
+		checkWriter();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		boolean ended = false;
+		try {
+			// the writer either makes room or has died
+			while (thread.isAlive() && !ended) {
+				ended = queue.offer(END, 100, TimeUnit.MILLISECONDS);
+			}
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while closing the document sink");
+		}
+		if (!ended) {
+			checkWriter();
+		}
+		checkFailure();
+	}
+
+	private void checkFailure() throws IOException {
+		if (failure != null) {
+			throw new IOException("Writing documents to " + directory + " failed", failure);
+		}
+	}
+
+	/**
+	 * Fails if the writer thread has failed or is gone, as documents handed to
+	 * it would never be written.
+	 */
+	private void checkWriter() throws IOException {
+		checkFailure();
+		if (!thread.isAlive()) {
+			checkFailure();
+			throw new IOException("The writer of " + directory + " has stopped");
+		}
+	}
+
+	/**
+	 * Runs on the writer thread.
+	 */
+	private void write() {
+		List<Document> batch = new ArrayList<>(batchSize);
+		long lastFlush = System.currentTimeMillis();
+		int unflushed = 0;
+		try {
+			while (true) {
+				long wait = (unflushed == 0) ? flushIntervalMillis
+						: Math.max(1, lastFlush + flushIntervalMillis - System.currentTimeMillis());
+				Document first = queue.poll(wait, TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					queue.drainTo(batch, batchSize - 1);
+				}
+
+				boolean end = false;
+				for (Document document : batch) {
+					if (document == END) {
+						end = true;
+						break;
+					}
+					writeDocument(document);
+					unflushed++;
+				}
+				batch.clear();
+
+				if (end) {
+					finishFile();
+					return;
+				}
+				// Every flush ends a compressed block, so flush only per batch or
+				// interval rather than per document.
+				if (unflushed >= batchSize
+						|| (unflushed > 0 && System.currentTimeMillis() - lastFlush >= flushIntervalMillis)) {
+					generator.flush();
+					unflushed = 0;
+				}
+				if (unflushed == 0) {
+					lastFlush = System.currentTimeMillis();
+				}
+				if (currentBytes != null && currentBytes.getCount() >= maxFileBytes) {
+					finishFile();
+					unflushed = 0;
+				}
+			}
+		} catch (InterruptedException e) {
+			failure = new InterruptedIOException("document sink was interrupted");
+		} catch (Throwable e) {
+			failure = e;
+		} finally {
+			if (failure != null) {
+				abandonFile();
+				queue.clear();
+			}
+		}
+	}
+
+	private void writeDocument(Document document) throws IOException {
+		if (generator == null) {
+			startFile();
+		}
+		writer.writeValue(generator, document);
+		generator.writeRaw('\n');
+	}
+
+	private void startFile() throws IOException {
+		currentTemp = directory.resolve(fileName(fileIndex) + ".tmp");
+		currentBytes = new CountingOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(currentTemp), 64 * 1024));
+		// syncFlush makes flush() push the compressed data written so far
+		OutputStream out = new GZIPOutputStream(currentBytes, 64 * 1024, true);
+		generator = writer.getFactory().createGenerator(out);
+		generator.setRootValueSeparator(null);
+	}
+
+	private void finishFile() throws IOException {
+		if (generator == null) {
+			return;
+		}
+		generator.close();
+		Path target = directory.resolve(fileName(fileIndex));
+		Files.move(currentTemp, target, StandardCopyOption.ATOMIC_MOVE);
+		LOG.info("Wrote {} ({} bytes)", target, currentBytes.getCount());
+		generator = null;
+		currentBytes = null;
+		currentTemp = null;
+		fileIndex++;
+	}
+
+	private void abandonFile() {
+		if (generator == null) {
+			return;
+		}
+		try {
+			generator.close();
+		} catch (IOException e) {
+			// already failing
+		}
+		LOG.error("Incomplete output left in {}", currentTemp);
+		generator = null;
+	}
+
+	private static String fileName(int index) {
+		return String.format("documents-%05d.jsonl.gz", index);
+	}
+
+	private static int nextFileIndex(Path directory) throws IOException {
+		int next = 0;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "documents-*.jsonl.gz")) {
+			for (Path file : files) {
+				Matcher matcher = FILE_NAME.matcher(file.getFileName().toString());
+				if (matcher.matches()) {
+					next = Math.max(next, Integer.parseInt(matcher.group(1)) + 1);
+				}
+			}
+		}
+		return next;
+	}
+}
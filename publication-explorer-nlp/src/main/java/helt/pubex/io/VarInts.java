@@ -0,0 +1,61 @@
+package helt.pubex.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Variable length encoding of unsigned numbers used by the binary files of
+ * the project: seven bits per byte, least significant first, the high bit set
+ * on every byte but the last. Negative ints are written as their unsigned 32
+ * bit value.
+ */
+public final class VarInts {
+
+	private VarInts() {
+	}
+
+	public static void writeVarInt(OutputStream out, int value) throws IOException {
+		writeVarLong(out, value & 0xFFFFFFFFL);
+	}
+
+	public static void writeVarLong(OutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	/**
+	 * @throws EOFException if the stream ends within the number
+	 * @throws IOException  if the number does not fit into 32 bits
+	 */
+	public static int readVarInt(InputStream in) throws IOException {
+		long value = readVarLong(in);
+		if ((value & ~0xFFFFFFFFL) != 0) {
+			throw new IOException("Malformed varint");
+		}
+		return (int) value;
+	}
+
+	/**
+	 * @throws EOFException if the stream ends within the number
+	 * @throws IOException  if the number has more than ten bytes
+	 */
+	public static long readVarLong(InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException("Truncated varint");
+			}
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+}
@@ -0,0 +1,209 @@
+package helt.pubex.models;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The annotations of a {@link Document} stored column-wise: for annotation i
+ * the index of the content element it lies in, its begin and end offset within
+ * that element and the id of its type in an {@link AnnotationTypes}
+ * dictionary. The covered text is not stored but taken from the content when
+ * it is asked for.
+ *
+ * In JSON a table is written as one object of parallel arrays, with the type
+ * ids renumbered against a "types" array of the names the table uses.
+ */
+@JsonSerialize(using = AnnotationTable.Serializer.class)
+@JsonDeserialize(using = AnnotationTable.Deserializer.class)
+public class AnnotationTable {
+
+    private final AnnotationTypes types;
+    private int size;
+    private int[] contentIndex;
+    private int[] begin;
+    private int[] end;
+    private int[] type;
+
+    public AnnotationTable() {
+        this(AnnotationTypes.shared(), 16);
+    }
+
+    public AnnotationTable(AnnotationTypes types, int capacity) {
+        this.types = types;
+        this.contentIndex = new int[capacity];
+        this.begin = new int[capacity];
+        this.end = new int[capacity];
+        this.type = new int[capacity];
+    }
+
+    /**
+     * @param contentIndex index of the content element the annotation lies in
+     * @param begin        begin offset within that element
+     * @param end          end offset within that element
+     * @param type         name of the annotation type
+     */
+    public void add(int contentIndex, int begin, int end, String type) {
+        append(contentIndex, begin, end, types.id(type));
+    }
+
+    private void append(int contentIndex, int begin, int end, int typeId) {
+        if (size == this.begin.length) {
+            int capacity = Math.max(16, size + (size >> 1));
+            this.contentIndex = Arrays.copyOf(this.contentIndex, capacity);
+            this.begin = Arrays.copyOf(this.begin, capacity);
+            this.end = Arrays.copyOf(this.end, capacity);
+            this.type = Arrays.copyOf(this.type, capacity);
+        }
+        this.contentIndex[size] = contentIndex;
+        this.begin[size] = begin;
+        this.end[size] = end;
+        this.type[size] = typeId;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getContentIndex(int i) {
+        checkIndex(i);
+        return contentIndex[i];
+    }
+
+    public int getBegin(int i) {
+        checkIndex(i);
+        return begin[i];
+    }
+
+    public int getEnd(int i) {
+        checkIndex(i);
+        return end[i];
+    }
+
+    public int getTypeId(int i) {
+        checkIndex(i);
+        return type[i];
+    }
+
+    public String getType(int i) {
+        return types.name(getTypeId(i));
+    }
+
+    public AnnotationTypes getTypes() {
+        return types;
+    }
+
+    /**
+     * @return the text of annotation i with whitespace normalized
+     */
+    public String getCoveredText(int i, List<String> content) {
+        return DocumentAnnotation.normalizeWhitespace(content.get(getContentIndex(i)).substring(begin[i], end[i]));
+    }
+
+    /**
+     * @param documentId id of the document of the table, the prefix of the
+     *                   annotation ids
+     * @return one {@link DocumentAnnotation} per row, for consumers which need
+     *         objects
+     */
+    public List<DocumentAnnotation> toAnnotations(String documentId, List<String> content) {
+        List<DocumentAnnotation> annotations = new ArrayList<>(size);
+        DocumentAnnotation.Builder builder = DocumentAnnotation.builder().documentId(documentId);
+        for (int i = 0; i < size; i++) {
+            annotations.add(builder.reset().contentIndex(contentIndex[i]).extent(begin[i], end[i])
+                    .content(getCoveredText(i, content)).type(getType(i)).create());
+        }
+        return annotations;
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Index " + i + ", size " + size);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AnnotationTable [" + size + " annotations]";
+    }
+
+    static class Serializer extends JsonSerializer<AnnotationTable> {
+
+        @Override
+        public void serialize(AnnotationTable table, JsonGenerator gen, SerializerProvider serializers)
+                throws IOException {
+            // renumber the shared ids so that the output does not depend on this process
+            Map<Integer, Integer> local = new HashMap<>();
+            List<String> names = new ArrayList<>();
+            int[] localType = new int[table.size];
+            for (int i = 0; i < table.size; i++) {
+                Integer id = local.get(table.type[i]);
+                if (id == null) {
+                    id = names.size();
+                    local.put(table.type[i], id);
+                    names.add(table.types.name(table.type[i]));
+                }
+                localType[i] = id;
+            }
+
+            gen.writeStartObject();
+            gen.writeArrayFieldStart("types");
+            for (String name : names) {
+                gen.writeString(name);
+            }
+            gen.writeEndArray();
+            gen.writeFieldName("content");
+            gen.writeArray(table.contentIndex, 0, table.size);
+            gen.writeFieldName("begin");
+            gen.writeArray(table.begin, 0, table.size);
+            gen.writeFieldName("end");
+            gen.writeArray(table.end, 0, table.size);
+            gen.writeFieldName("type");
+            gen.writeArray(localType, 0, table.size);
+            gen.writeEndObject();
+        }
+    }
+
+    static class Deserializer extends JsonDeserializer<AnnotationTable> {
+
+        @Override
+        public AnnotationTable deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+            Columns columns = p.readValueAs(Columns.class);
+            int size = columns.begin.length;
+            if (columns.content.length != size || columns.end.length != size || columns.type.length != size) {
+                throw ctxt.instantiationException(AnnotationTable.class, "columns differ in length");
+            }
+            AnnotationTypes types = AnnotationTypes.shared();
+            int[] ids = new int[columns.types.length];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = types.id(columns.types[i]);
+            }
+            AnnotationTable table = new AnnotationTable(types, size);
+            for (int i = 0; i < size; i++) {
+                table.append(columns.content[i], columns.begin[i], columns.end[i], ids[columns.type[i]]);
+            }
+            return table;
+        }
+    }
+
+    static class Columns {
+        public String[] types = {};
+        public int[] content = {};
+        public int[] begin = {};
+        public int[] end = {};
+        public int[] type = {};
+    }
+}
@@ -0,0 +1,51 @@
+package helt.pubex.models;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary of annotation type names. Every distinct name is normalized and
+ * stored once and referred to by its id, which stays valid for the lifetime of
+ * the dictionary.
+ */
+public class AnnotationTypes {
+
+    private static final AnnotationTypes SHARED = new AnnotationTypes();
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final List<String> names = new ArrayList<>();
+
+    /**
+     * @return the dictionary used by all tables of this process
+     */
+    public static AnnotationTypes shared() {
+        return SHARED;
+    }
+
+    public int id(String type) {
+        Integer id = ids.get(type);
+        if (id != null) {
+            return id;
+        }
+        return ids.computeIfAbsent(type, t -> {
+            synchronized (names) {
+                names.add(DocumentAnnotation.normalizeWhitespace(t));
+                return names.size() - 1;
+            }
+        });
+    }
+
+    public String name(int id) {
+        synchronized (names) {
+            return names.get(id);
+        }
+    }
+
+    public int size() {
+        synchronized (names) {
+            return names.size();
+        }
+    }
+}
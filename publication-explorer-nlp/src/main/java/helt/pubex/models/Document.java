@@ -14,6 +14,7 @@ public class Document {
     String url;
     String language;
     List<DocumentAnnotation> annotations = new ArrayList<>();
+    AnnotationTable annotationTable;
 
     public Document() {
         // for jackson and other POJO BEAN processors
@@ -27,6 +28,7 @@ public class Document {
         this.url = builder.url;
         this.language = builder.language;
         this.annotations = builder.annotations;
+        this.annotationTable = builder.annotationTable;
     }
 
     public static Builder builder() {
@@ -41,6 +43,13 @@ public class Document {
         return annotations;
     }
 
+    /**
+     * @return the annotations in columnar form, relative to {@link #getContent()}
+     */
+    public AnnotationTable getAnnotationTable() {
+        return annotationTable;
+    }
+
     public String getUrl() {
         return url;
     }
@@ -59,6 +68,7 @@ public class Document {
         public String url = null;
         public String language = "english";
         public List<DocumentAnnotation> annotations = new ArrayList<>();
+        public AnnotationTable annotationTable = null;
         public String title = "This article has no title";
 
         public Builder setId(String id) {
@@ -96,6 +106,11 @@ public class Document {
             return this;
         }
 
+        public Builder setAnnotationTable(AnnotationTable annotationTable) {
+            this.annotationTable = annotationTable;
+            return this;
+        }
+
         public Builder setTitle(String title) {
             this.title = title;
             return this;
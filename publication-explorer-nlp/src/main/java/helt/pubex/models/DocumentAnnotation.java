@@ -1,7 +1,6 @@
 package helt.pubex.models;
 
 import java.util.Objects;
-import java.util.UUID;
 
 public class DocumentAnnotation {
 
@@ -19,15 +18,66 @@ public class DocumentAnnotation {
     }
 
     public DocumentAnnotation(Builder builder) {
+        this.start = builder.start;
+        this.end = builder.end;
+        this.coveredText = normalizeWhitespace(builder.content);
+        this.type = normalizeWhitespace(builder.type);
+        this.contentIndex = builder.contentIndex;
         if (builder.id == null) {
-            this.id = UUID.randomUUID().toString();
+            // deterministic, so that the same annotation gets the same id in every run;
+            // the offsets are relative to the content element, so its index is part of it
+            StringBuilder id = new StringBuilder();
+            if (builder.documentId != null) {
+                id.append(builder.documentId).append('/');
+            }
+            if (builder.contentIndex != null) {
+                id.append(builder.contentIndex).append('/');
+            }
+            this.id = id.append(builder.start).append('-').append(builder.end).append('/').append(this.type)
+                    .toString();
         } else {
             this.id = builder.id;
         }
-        this.start = builder.start;
-        this.end = builder.end;
-        this.coveredText = builder.content.replaceAll("\\s+", " ").trim();
-        this.type = builder.type.replaceAll("\\s+", " ").trim();
+    }
+
+    /**
+     * Replaces every run of whitespace by a single space and trims the result,
+     * like {@code s.replaceAll("\\s+", " ").trim()}. Returns s itself if it
+     * is already normalized.
+     */
+    public static String normalizeWhitespace(String s) {
+        int length = s.length();
+        boolean normalized = length == 0 || (s.charAt(0) > ' ' && s.charAt(length - 1) > ' ');
+        for (int i = 0; normalized && i < length; i++) {
+            char c = s.charAt(i);
+            if (isWhitespace(c) && (c != ' ' || isWhitespace(s.charAt(i + 1)))) {
+                normalized = false;
+            }
+        }
+        if (normalized) {
+            return s;
+        }
+
+        StringBuilder sb = new StringBuilder(length);
+        boolean inWhitespace = false;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (isWhitespace(c)) {
+                if (!inWhitespace) {
+                    sb.append(' ');
+                }
+                inWhitespace = true;
+            } else {
+                sb.append(c);
+                inWhitespace = false;
+            }
+        }
+        return sb.toString().trim();
+    }
+
+    // the characters of the regex class \s
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
     }
 
     public static Builder builder() {
@@ -94,13 +144,19 @@ public class DocumentAnnotation {
         return Objects.hash(id, coveredText, type, start, end, contentIndex);
     }
 
+    /**
+     * Builds annotations. A builder may be reused: {@link #create()} does not
+     * change it and {@link #reset()} clears it for the next annotation.
+     */
     public static class Builder {
 
-        private String id = UUID.randomUUID().toString();
+        private String id;
+        private String documentId;
         private String type;
         private String content;
         private long start = Long.MAX_VALUE;
         private long end = Long.MIN_VALUE;
+        private Integer contentIndex;
 
         Builder() {
         }
@@ -110,12 +166,29 @@ public class DocumentAnnotation {
             return this;
         }
 
+        /**
+         * Id of the document, used as the prefix of the generated annotation id.
+         */
+        public Builder documentId(String documentId) {
+            this.documentId = documentId;
+            return this;
+        }
+
         public Builder extent(int begin, int end) {
             this.start = begin;
             this.end = end;
             return this;
         }
 
+        /**
+         * Index of the content element the offsets are relative to, part of the
+         * generated annotation id. May be null for offsets into the whole text.
+         */
+        public Builder contentIndex(Integer contentIndex) {
+            this.contentIndex = contentIndex;
+            return this;
+        }
+
         public Builder type(String value) {
             this.type = value;
             return this;
@@ -126,6 +199,19 @@ public class DocumentAnnotation {
             return this;
         }
 
+        /**
+         * Clears everything except the document id.
+         */
+        public Builder reset() {
+            id = null;
+            type = null;
+            content = null;
+            start = Long.MAX_VALUE;
+            end = Long.MIN_VALUE;
+            contentIndex = null;
+            return this;
+        }
+
         public DocumentAnnotation create() {
             return new DocumentAnnotation(this);
         }
@@ -0,0 +1,111 @@
+package helt.pubex.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Bounded queue of requests which are processed in batches by a fixed number of
+ * worker threads.
+ *
+ * A worker waits for the first request and then takes whatever else is queued,
+ * up to the batch size, so batches grow with the load without delaying single
+ * requests. Each worker owns its own {@link Processor}, which therefore does not
+ * need to be thread-safe. Requests beyond the queue capacity are rejected
+ * immediately.
+ */
+class BatchingExecutor<I, O> {
+
+	interface Processor<I, O> {
+		/**
+		 * @return one result per input, in the same order
+		 */
+		List<O> process(List<I> batch) throws Exception;
+	}
+
+	private final BlockingQueue<Request<I, O>> queue;
+	private final List<Thread> workers = new ArrayList<>();
+	private final int maxBatchSize;
+	private volatile boolean running = true;
+
+	BatchingExecutor(String name, int threads, int capacity, int maxBatchSize,
+			Supplier<? extends Processor<I, O>> processors) {
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.maxBatchSize = maxBatchSize;
+		for (int i = 0; i < threads; i++) {
+			Processor<I, O> processor = processors.get();
+			Thread worker = new Thread(() -> work(processor), name + "-" + i);
+			worker.setDaemon(true);
+			workers.add(worker);
+		}
+		workers.forEach(Thread::start);
+	}
+
+	/**
+	 * @throws RejectedExecutionException if the queue is full or the executor
+	 *                                    was shut down
+	 */
+	CompletableFuture<O> submit(I input) {
+		Request<I, O> request = new Request<>(input);
+		if (!running || !queue.offer(request)) {
+			throw new RejectedExecutionException("queue is full");
+		}
+		return request.result;
+	}
+
+	int getQueueSize() {
+		return queue.size();
+	}
+
+	void shutdown() {
+		running = false;
+		workers.forEach(Thread::interrupt);
+		List<Request<I, O>> remaining = new ArrayList<>();
+		queue.drainTo(remaining);
+		for (Request<I, O> request : remaining) {
+			request.result.completeExceptionally(new RejectedExecutionException("shut down"));
+		}
+	}
+
+	private void work(Processor<I, O> processor) {
+		List<Request<I, O>> batch = new ArrayList<>(maxBatchSize);
+		List<I> inputs = new ArrayList<>(maxBatchSize);
+		while (running) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			queue.drainTo(batch, maxBatchSize - 1);
+			for (Request<I, O> request : batch) {
+				inputs.add(request.input);
+			}
+
+			try {
+				List<O> outputs = processor.process(inputs);
+				for (int i = 0; i < batch.size(); i++) {
+					batch.get(i).result.complete(outputs.get(i));
+				}
+			} catch (Exception | LinkageError e) {
+				for (Request<I, O> request : batch) {
+					request.result.completeExceptionally(e);
+				}
+			}
+			batch.clear();
+			inputs.clear();
+		}
+	}
+
+	private static final class Request<I, O> {
+		final I input;
+		final CompletableFuture<O> result = new CompletableFuture<>();
+
+		Request(I input) {
+			this.input = input;
+		}
+	}
+}
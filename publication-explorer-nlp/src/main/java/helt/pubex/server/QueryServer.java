@@ -0,0 +1,463 @@
+package helt.pubex.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.uima.resource.ResourceInitializationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import helt.pubex.dl4j.Dl4jVectorizerService;
+import helt.pubex.dl4j.HnswIndex;
+import helt.pubex.dl4j.LabelIndex;
+import helt.pubex.index.Hit;
+import helt.pubex.index.Query;
+import helt.pubex.index.SearchIndex;
+
+/**
+ * Long-running HTTP service which keeps the paragraph vectors and the topic
+ * model loaded and answers queries on the loopback interface.
+ *
+ * <ul>
+ * <li>{@code /similar?text=...&k=10}: labels of the most similar documents
+ * (DOC_n) and paragraphs (PAR_n) with their document URI, and for paragraphs
+ * their index and text, see {@link LabelIndex}</li>
+ * <li>{@code /topics?text=...}: topic proportions of the text</li>
+ * <li>{@code /search?text=...&entity=...&type=...&k=10}: best matching
+ * paragraphs of the {@link SearchIndex}; text, entity and its type are
+ * optional</li>
+ * <li>{@code /health}</li>
+ * </ul>
+ * Instead of the {@code text} parameter, the text can be sent as the body of a
+ * POST request, up to a maximal size (413 otherwise). Queries are collected in
+ * bounded queues and answered in batches, see {@link BatchingExecutor}; if a
+ * queue is full the server answers 503 right away instead of piling up work,
+ * and a query which is not answered in time gets a 504. Requests are handled
+ * by a fixed number of threads.
+ */
+public class QueryServer {
+	private static final Logger LOG = LoggerFactory.getLogger(QueryServer.class);
+
+	private static final int DEFAULT_K = 10;
+	private static final int MAX_K = 1000;
+
+	private final ObjectMapper om = new ObjectMapper();
+	private final Dl4jVectorizerService vectors;
+	private final TopicInference topics;
+	private SearchIndex searchIndex;
+	private LabelIndex labelIndex;
+	private int port = 8080;
+	private int workers = Runtime.getRuntime().availableProcessors();
+	private int queueCapacity = 256;
+	private int maxBatchSize = 32;
+	private long timeoutMillis = 30_000;
+	private int handlerThreads = 4 * Runtime.getRuntime().availableProcessors();
+	private int maxBodyBytes = 1024 * 1024;
+
+	private HttpServer server;
+	private ExecutorService handlers;
+	private BatchingExecutor<SimilarityQuery, List<HnswIndex.Neighbour>> similarityExecutor;
+	private BatchingExecutor<String, double[]> topicExecutor;
+	private BatchingExecutor<SearchQuery, List<Hit>> searchExecutor;
+
+	/**
+	 * @param vectors service with a trained model, or null to disable similarity
+	 *                queries
+	 * @param topics  topic model, or null to disable topic queries
+	 */
+	public QueryServer(Dl4jVectorizerService vectors, TopicInference topics) {
+		this.vectors = vectors;
+		this.topics = topics;
+	}
+
+	/**
+	 * Index answering search queries, which are disabled without one. The index
+	 * is refreshed when another process has written to it.
+	 */
+	public void setSearchIndex(SearchIndex searchIndex) {
+		this.searchIndex = searchIndex;
+	}
+
+	/**
+	 * Port to listen on, 0 picks a free port (see {@link #getPort()}).
+	 */
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * @return the port the server listens on, once it is started
+	 */
+	public int getPort() {
+		return (server == null) ? port : server.getAddress().getPort();
+	}
+
+	/**
+	 * Number of threads per query type which process batches.
+	 */
+	public void setWorkers(int workers) {
+		this.workers = workers;
+	}
+
+	/**
+	 * Number of queries per query type which may wait for a worker.
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	public void setTimeoutMillis(long timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Number of threads which parse requests and wait for their results.
+	 */
+	public void setHandlerThreads(int handlerThreads) {
+		this.handlerThreads = handlerThreads;
+	}
+
+	/**
+	 * Maximal size of a POST body in bytes.
+	 */
+	public void setMaxBodyBytes(int maxBodyBytes) {
+		this.maxBodyBytes = maxBodyBytes;
+	}
+
+	public void start() throws IOException, ResourceInitializationException {
+		if (vectors != null) {
+			// load model and index now rather than with the first query
+			vectors.nearestLabels(Collections.<String>emptyList(), 1);
+			labelIndex = vectors.getLabelIndex();
+			similarityExecutor = new BatchingExecutor<>("similarity", workers, queueCapacity, maxBatchSize,
+					() -> this::similar);
+		}
+		if (topics != null) {
+			topicExecutor = new BatchingExecutor<>("topics", workers, queueCapacity, maxBatchSize, () -> {
+				TopicInference.Inferencer inferencer = topics.newInferencer();
+				return batch -> {
+					List<double[]> result = new ArrayList<>(batch.size());
+					for (String text : batch) {
+						result.add(inferencer.infer(text));
+					}
+					return result;
+				};
+			});
+		}
+		if (searchIndex != null) {
+			searchExecutor = new BatchingExecutor<>("search", workers, queueCapacity, maxBatchSize, () -> this::search);
+		}
+
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		// Handler threads only parse, enqueue and wait, the work is bounded by the
+		// queues of the batching executors.
+		handlers = Executors.newFixedThreadPool(handlerThreads,
+				new ThreadFactoryBuilder().setNameFormat("http-%d").setDaemon(true).build());
+		server.setExecutor(handlers);
+		server.createContext("/health", exchange -> respond(exchange, 200, "ok"));
+		server.createContext("/similar", limitBody(this::handleSimilar));
+		server.createContext("/topics", limitBody(this::handleTopics));
+		server.createContext("/search", limitBody(this::handleSearch));
+		server.start();
+		LOG.info("Query server listening on {}", server.getAddress());
+	}
+
+	public void stop() {
+		if (server != null) {
+			server.stop(1);
+			handlers.shutdownNow();
+		}
+		if (similarityExecutor != null) {
+			similarityExecutor.shutdown();
+		}
+		if (topicExecutor != null) {
+			topicExecutor.shutdown();
+		}
+		if (searchExecutor != null) {
+			searchExecutor.shutdown();
+		}
+	}
+
+	/**
+	 * @return number of searches waiting for a worker
+	 */
+	int getQueuedSearches() {
+		return (searchExecutor == null) ? 0 : searchExecutor.getQueueSize();
+	}
+
+	private List<List<HnswIndex.Neighbour>> similar(List<SimilarityQuery> batch) throws Exception {
+		List<String> texts = new ArrayList<>(batch.size());
+		int k = 1;
+		for (SimilarityQuery query : batch) {
+			texts.add(query.text);
+			k = Math.max(k, query.k);
+		}
+		List<List<HnswIndex.Neighbour>> neighbours = vectors.nearestLabels(texts, k);
+		for (int i = 0; i < batch.size(); i++) {
+			List<HnswIndex.Neighbour> list = neighbours.get(i);
+			neighbours.set(i, list.subList(0, Math.min(batch.get(i).k, list.size())));
+		}
+		return neighbours;
+	}
+
+	private List<List<Hit>> search(List<SearchQuery> batch) throws IOException {
+		searchIndex.refresh();
+		List<List<Hit>> hits = new ArrayList<>(batch.size());
+		for (SearchQuery query : batch) {
+			hits.add(searchIndex.search(query.query, query.k));
+		}
+		return hits;
+	}
+
+	private void handleSimilar(HttpExchange exchange) throws IOException {
+		if (similarityExecutor == null) {
+			respond(exchange, 404, "no paragraph vectors loaded");
+			return;
+		}
+		Map<String, String> parameters = parameters(exchange);
+		String text = text(exchange, parameters);
+		if (text == null) {
+			respond(exchange, 400, "missing text");
+			return;
+		}
+		int k;
+		try {
+			k = Integer.parseInt(parameters.getOrDefault("k", Integer.toString(DEFAULT_K)));
+		} catch (NumberFormatException e) {
+			respond(exchange, 400, "k is not a number");
+			return;
+		}
+		k = Math.max(1, Math.min(MAX_K, k));
+
+		List<HnswIndex.Neighbour> neighbours = await(exchange, similarityExecutor, new SimilarityQuery(text, k));
+		if (neighbours != null) {
+			List<Map<String, Object>> json = new ArrayList<>();
+			for (HnswIndex.Neighbour neighbour : neighbours) {
+				Map<String, Object> entry = new LinkedHashMap<>();
+				entry.put("label", neighbour.getLabel());
+				entry.put("similarity", neighbour.getSimilarity());
+				LabelIndex.Source source = (labelIndex != null) ? labelIndex.resolve(neighbour.getLabel()) : null;
+				if (source != null) {
+					entry.put("document", source.getDocumentUri());
+					if (source.getParagraph() >= 0) {
+						entry.put("paragraph", source.getParagraph());
+					}
+					// whole documents would make the response huge
+					if (source.getLabel().startsWith(LabelIndex.PARAGRAPH_PREFIX)) {
+						entry.put("text", labelIndex.text(source));
+					}
+				}
+				json.add(entry);
+			}
+			respondJson(exchange, json);
+		}
+	}
+
+	private void handleTopics(HttpExchange exchange) throws IOException {
+		if (topicExecutor == null) {
+			respond(exchange, 404, "no topic model loaded");
+			return;
+		}
+		String text = text(exchange, parameters(exchange));
+		if (text == null) {
+			respond(exchange, 400, "missing text");
+			return;
+		}
+		double[] distribution = await(exchange, topicExecutor, text);
+		if (distribution != null) {
+			respondJson(exchange, distribution);
+		}
+	}
+
+	private void handleSearch(HttpExchange exchange) throws IOException {
+		if (searchExecutor == null) {
+			respond(exchange, 404, "no search index loaded");
+			return;
+		}
+		Map<String, String> parameters = parameters(exchange);
+		Query query = new Query();
+		String text = text(exchange, parameters);
+		if (text != null) {
+			query.text(text);
+		}
+		if (parameters.containsKey("entity")) {
+			query.entity(parameters.get("type"), parameters.get("entity"));
+		}
+		if (query.isEmpty()) {
+			respond(exchange, 400, "missing text or entity");
+			return;
+		}
+		int k;
+		try {
+			k = Integer.parseInt(parameters.getOrDefault("k", Integer.toString(DEFAULT_K)));
+		} catch (NumberFormatException e) {
+			respond(exchange, 400, "k is not a number");
+			return;
+		}
+		List<Hit> hits = await(exchange, searchExecutor, new SearchQuery(query, Math.max(1, Math.min(MAX_K, k))));
+		if (hits != null) {
+			List<Map<String, Object>> json = new ArrayList<>();
+			for (Hit hit : hits) {
+				Map<String, Object> entry = new LinkedHashMap<>();
+				entry.put("url", hit.getUrl());
+				entry.put("paragraph", hit.getParagraph());
+				entry.put("score", hit.getScore());
+				json.add(entry);
+			}
+			respondJson(exchange, json);
+		}
+	}
+
+	/**
+	 * Submits the query and waits for the result. If there is no result, the
+	 * error response has already been sent.
+	 */
+	private <I, O> O await(HttpExchange exchange, BatchingExecutor<I, O> executor, I input) throws IOException {
+		CompletableFuture<O> result;
+		try {
+			result = executor.submit(input);
+		} catch (RejectedExecutionException e) {
+			respond(exchange, 503, "busy, try again later");
+			return null;
+		}
+		try {
+			return result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			respond(exchange, 503, "shutting down");
+		} catch (TimeoutException e) {
+			result.cancel(false);
+			respond(exchange, 504, "timed out");
+		} catch (ExecutionException e) {
+			LOG.error("Query failed", e.getCause());
+			respond(exchange, 500, String.valueOf(e.getCause()));
+		}
+		return null;
+	}
+
+	/**
+	 * @throws BodyTooLargeException if the POST body exceeds the maximal size
+	 */
+	private String text(HttpExchange exchange, Map<String, String> parameters) throws IOException {
+		if ("POST".equals(exchange.getRequestMethod())) {
+			String length = exchange.getRequestHeaders().getFirst("Content-Length");
+			if (length != null && length.matches("\\d+")
+					&& (length.length() > 18 || Long.parseLong(length) > maxBodyBytes)) {
+				throw new BodyTooLargeException();
+			}
+			try (InputStream in = exchange.getRequestBody()) {
+				ByteArrayOutputStream body = new ByteArrayOutputStream();
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					if (body.size() + read > maxBodyBytes) {
+						throw new BodyTooLargeException();
+					}
+					body.write(buffer, 0, read);
+				}
+				return new String(body.toByteArray(), StandardCharsets.UTF_8);
+			}
+		}
+		return parameters.get("text");
+	}
+
+	/**
+	 * Answers 413 for requests whose body is too large.
+	 */
+	private static HttpHandler limitBody(HttpHandler handler) {
+		return exchange -> {
+			try {
+				handler.handle(exchange);
+			} catch (BodyTooLargeException e) {
+				respond(exchange, 413, "request body too large");
+			}
+		};
+	}
+
+	private static Map<String, String> parameters(HttpExchange exchange) throws UnsupportedEncodingException {
+		Map<String, String> parameters = new HashMap<>();
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query == null) {
+			return parameters;
+		}
+		for (String pair : query.split("&")) {
+			int separator = pair.indexOf('=');
+			if (separator > 0) {
+				parameters.put(URLDecoder.decode(pair.substring(0, separator), "UTF-8"),
+						URLDecoder.decode(pair.substring(separator + 1), "UTF-8"));
+			}
+		}
+		return parameters;
+	}
+
+	private void respondJson(HttpExchange exchange, Object value) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		send(exchange, 200, om.writeValueAsBytes(value));
+	}
+
+	private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		send(exchange, status, message.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	private static final class BodyTooLargeException extends IOException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	private static final class SearchQuery {
+		final Query query;
+		final int k;
+
+		SearchQuery(Query query, int k) {
+			this.query = query;
+			this.k = k;
+		}
+	}
+
+	private static final class SimilarityQuery {
+		final String text;
+		final int k;
+
+		SimilarityQuery(String text, int k) {
+			this.text = text;
+			this.k = k;
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package helt.pubex.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import cc.mallet.topics.ParallelTopicModel;
+import cc.mallet.topics.TopicInferencer;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.Instance;
+
+/**
+ * Topic inference for free text against the Mallet model written by the LDA
+ * trainer of the UIMA pipeline.
+ *
+ * The pipeline feeds the model with lowercased nouns only. Instead of tagging
+ * the text, words which are not in the model's alphabet are dropped, which
+ * removes most non-nouns as well.
+ */
+public class TopicInference {
+
+	private static final int ITERATIONS = 100;
+	private static final int THINNING = 10;
+	private static final int BURN_IN = 10;
+
+	private final ParallelTopicModel model;
+
+	public TopicInference(ParallelTopicModel model) {
+		this.model = model;
+	}
+
+	public static TopicInference load(File modelLocation) throws IOException {
+		try {
+			return new TopicInference(ParallelTopicModel.read(modelLocation));
+		} catch (Exception e) {
+			throw new IOException("Could not read topic model " + modelLocation, e);
+		}
+	}
+
+	public int getNumTopics() {
+		return model.getNumTopics();
+	}
+
+	/**
+	 * @return a new inferencer; Mallet's inferencer is not thread-safe, so every
+	 *         thread needs its own
+	 */
+	public Inferencer newInferencer() {
+		return new Inferencer(model.getInferencer(), model.getAlphabet());
+	}
+
+	public static final class Inferencer {
+		private final TopicInferencer inferencer;
+		private final Alphabet alphabet;
+
+		private Inferencer(TopicInferencer inferencer, Alphabet alphabet) {
+			this.inferencer = inferencer;
+			this.alphabet = alphabet;
+			this.inferencer.setRandomSeed(42);
+		}
+
+		/**
+		 * @return the topic proportions of the text
+		 */
+		public double[] infer(String text) {
+			return infer(Arrays.asList(text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")));
+		}
+
+		/**
+		 * @return the topic proportions of the lowercased words
+		 */
+		public double[] infer(Iterable<String> words) {
+			List<Integer> features = new ArrayList<>();
+			for (String word : words) {
+				int index = word.isEmpty() ? -1 : alphabet.lookupIndex(word, false);
+				if (index >= 0) {
+					features.add(index);
+				}
+			}
+			int[] indices = new int[features.size()];
+			for (int i = 0; i < indices.length; i++) {
+				indices[i] = features.get(i);
+			}
+			Instance instance = new Instance(new FeatureSequence(alphabet, indices), null, null, null);
+			return inferencer.getSampledDistribution(instance, ITERATIONS, THINNING, BURN_IN);
+		}
+	}
+}
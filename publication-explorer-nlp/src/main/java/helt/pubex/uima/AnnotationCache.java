@@ -0,0 +1,255 @@
+package helt.pubex.uima;
+
+import de.tudarmstadt.ukp.dkpro.core.api.metadata.type.DocumentMetaData;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.CASException;
+import org.apache.uima.cas.impl.Serialization;
+import org.apache.uima.fit.util.JCasUtil;
+import org.apache.uima.resource.metadata.MetaDataObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent store of annotated CASes, in UIMA's compressed binary format
+ * (form 4), which can only be read into a CAS with the same type system.
+ *
+ * An entry is keyed by the SHA-256 of the source file's content. Entries live in
+ * a sub-directory named after a fingerprint of the annotator configuration, so
+ * a change of segmenter, tagger, NER model or their parameters starts from an
+ * empty cache. The cache holds the CAS as it leaves the annotators, i.e. before
+ * the LDA stage, which is cheap and always runs again.
+ */
+class AnnotationCache {
+	private static final Logger LOG = LoggerFactory.getLogger(AnnotationCache.class);
+	private static final String SUFFIX = ".bcas";
+
+	private final Path directory;
+	private final String fingerprint;
+	private final List<Hit> hits = new ArrayList<>();
+	private final Map<String, String> missesByUri = new ConcurrentHashMap<>();
+
+	public AnnotationCache(Path root, String fingerprint) throws IOException {
+		this.fingerprint = fingerprint;
+		this.directory = root.resolve(fingerprint);
+		Files.createDirectories(directory);
+	}
+
+	/**
+	 * @param configuration descriptions and settings which influence the cached
+	 *                      annotations
+	 * @return a short hex digest of the given configuration
+	 */
+	public static String fingerprint(Object... configuration) throws IOException {
+		MessageDigest digest = sha256();
+		for (Object part : configuration) {
+			String text;
+			if (part instanceof MetaDataObject) {
+				StringWriter writer = new StringWriter();
+				try {
+					((MetaDataObject) part).toXML(writer);
+				} catch (SAXException e) {
+					throw new IOException(e);
+				}
+				text = writer.toString();
+			} else {
+				text = String.valueOf(part);
+			}
+			digest.update(text.getBytes(StandardCharsets.UTF_8));
+		}
+		return hex(digest.digest()).substring(0, 16);
+	}
+
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * A cached document, i.e. the entry and the file it is restored for.
+	 */
+	public static class Hit {
+		private final String key;
+		private final Path directory;
+		private final Path file;
+
+		Hit(String key, Path directory, Path file) {
+			this.key = key;
+			this.directory = directory;
+			this.file = file;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public Path getFile() {
+			return file;
+		}
+	}
+
+	/**
+	 * Splits the files into cached documents, which are remembered as hits, and
+	 * documents which need to be annotated.
+	 *
+	 * @param directory the source location of the reader, which the metadata of
+	 *                  the restored documents refers to
+	 * @param files     files below the directory
+	 * @return the files which are not in the cache
+	 */
+	public List<Path> partition(Path directory, List<Path> files) throws IOException {
+		hits.clear();
+		missesByUri.clear();
+
+		List<Path> misses = new ArrayList<>();
+		for (Path file : files) {
+			String key = contentHash(file);
+			if (Files.exists(entry(key))) {
+				hits.add(new Hit(key, directory, file));
+			} else {
+				misses.add(file);
+				missesByUri.put(file.toUri().toString(), key);
+			}
+		}
+		LOG.info("Annotation cache {}: {} cached, {} to annotate", directory, hits.size(), misses.size());
+		return misses;
+	}
+
+	/**
+	 * @return the cached documents found by the last
+	 *         {@link #partition(Path, List)}
+	 */
+	public List<Hit> getHits() {
+		return hits;
+	}
+
+	/**
+	 * Restores the cached document into the CAS. The entry may have been stored
+	 * for another file with the same content, e.g. before the file was renamed,
+	 * so the document metadata is pointed at the file of the hit.
+	 */
+	public void load(Hit hit, CAS cas) throws IOException {
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(entry(hit.key)))) {
+			Serialization.deserializeCAS(cas, in);
+		}
+		DocumentMetaData metaData;
+		try {
+			metaData = JCasUtil.selectSingle(cas.getJCas(), DocumentMetaData.class);
+		} catch (CASException | IllegalArgumentException e) {
+			throw new IOException("Cache entry " + hit.key + " has no document metadata", e);
+		}
+		String base = hit.directory.toAbsolutePath().toFile().toURI().toString();
+		String id = hit.directory.relativize(hit.file).toString().replace(File.separatorChar, '/');
+		metaData.setDocumentUri(base + joint(metaData) + id);
+		metaData.setDocumentId(id);
+		metaData.setDocumentBaseUri(base);
+		metaData.setCollectionId(base);
+		metaData.setDocumentTitle(hit.file.getFileName().toString());
+	}
+
+	/**
+	 * @return what the reader put between the base URI and the id of the cached
+	 *         document to form its URI, so that restored and freshly read
+	 *         documents of the same file get the same URI
+	 */
+	private static String joint(DocumentMetaData metaData) {
+		String uri = metaData.getDocumentUri();
+		String base = metaData.getDocumentBaseUri();
+		String id = metaData.getDocumentId();
+		if (uri != null && base != null && id != null && uri.length() >= base.length() + id.length()
+				&& uri.startsWith(base) && uri.endsWith(id)) {
+			return uri.substring(base.length(), uri.length() - id.length());
+		}
+		return "";
+	}
+
+	/**
+	 * Stores a freshly annotated CAS. CASes whose source was not seen by
+	 * {@link #partition(Path, List)} are ignored.
+	 */
+	public void store(CAS cas) throws IOException {
+		String uri;
+		try {
+			uri = JCasUtil.selectSingle(cas.getJCas(), DocumentMetaData.class).getDocumentUri();
+		} catch (CASException | IllegalArgumentException e) {
+			LOG.warn("Not caching document without metadata", e);
+			return;
+		}
+		String key = (uri == null) ? null : missesByUri.get(normalize(uri));
+		if (key == null) {
+			LOG.warn("Not caching {}, it was not part of the partitioned input", uri);
+			return;
+		}
+
+		Path target = entry(key);
+		Path temp = Files.createTempFile(directory, key, ".tmp");
+		try {
+			try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+				Serialization.serializeWithCompression(cas, out);
+			}
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	private Path entry(String key) {
+		return directory.resolve(key + SUFFIX);
+	}
+
+	private static String normalize(String uri) {
+		try {
+			return Paths.get(URI.create(uri)).toUri().toString();
+		} catch (IllegalArgumentException | FileSystemNotFoundException e) {
+			return uri;
+		}
+	}
+
+	private static String contentHash(Path file) throws IOException {
+		MessageDigest digest = sha256();
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+			while (in.read(buffer) != -1) {
+				// digest is updated while reading
+			}
+		}
+		return hex(digest.digest());
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,108 @@
+package helt.pubex.uima;
+
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.SegmenterBase;
+import org.apache.uima.jcas.JCas;
+
+import java.text.BreakIterator;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Rule based segmenter using the sentence and word {@link BreakIterator}s of
+ * the JDK for the document language. It needs no models and is much faster
+ * than the statistical segmenters, at the price of more errors around
+ * abbreviations, numbers and formulas, which makes it a fit for bulk jobs such
+ * as sentence extraction. Like the Stanford segmenter, it ends sentences at
+ * empty lines but not at single line breaks, and not after initials and some
+ * abbreviations common in papers.
+ */
+public class BreakIteratorSegmenter extends SegmenterBase {
+	private static final Set<String> ABBREVIATIONS = new HashSet<>(Arrays.asList("al.", "cf.", "e.g.", "eq.", "eqs.",
+			"fig.", "figs.", "i.e.", "lett.", "no.", "nucl.", "phys.", "pp.", "proc.", "ref.", "refs.", "rev.", "sec.",
+			"tab.", "vol.", "vs."));
+
+	@Override
+	protected void process(JCas jcas, String text, int zoneBegin) {
+		Locale locale = getLocale(jcas);
+		BreakIterator sentences = BreakIterator.getSentenceInstance(locale);
+		BreakIterator words = BreakIterator.getWordInstance(locale);
+		sentences.setText(joinLines(text));
+		int begin = sentences.first();
+		for (int end = sentences.next(); end != BreakIterator.DONE; begin = end, end = sentences.next()) {
+			while (end < text.length() && endsWithAbbreviation(text, begin, end)) {
+				int next = sentences.next();
+				if (next == BreakIterator.DONE) {
+					break;
+				}
+				end = next;
+			}
+			if (isWriteSentence()) {
+				createSentence(jcas, zoneBegin + begin, zoneBegin + end);
+			}
+			if (isWriteToken()) {
+				tokenize(jcas, words, text.substring(begin, end), zoneBegin + begin);
+			}
+		}
+	}
+
+	/**
+	 * @return whether the text before the end, after skipping trailing
+	 *         whitespace, is an initial or a common abbreviation, after which the
+	 *         sentence iterator breaks although the sentence goes on
+	 */
+	static boolean endsWithAbbreviation(String text, int begin, int end) {
+		int last = end;
+		while (last > begin && Character.isWhitespace(text.charAt(last - 1))) {
+			last--;
+		}
+		if (last == begin || text.charAt(last - 1) != '.') {
+			return false;
+		}
+		int first = last - 1;
+		while (first > begin && !Character.isWhitespace(text.charAt(first - 1))) {
+			first--;
+		}
+		String word = text.substring(first, last);
+		return (word.length() == 2 && Character.isUpperCase(word.charAt(0)))
+				|| ABBREVIATIONS.contains(word.toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Replaces single line breaks by blanks, as the sentence iterator ends a
+	 * sentence at every line break, while the lines of extracted text are
+	 * wrapped within sentences. Empty lines still end a sentence.
+	 */
+	static String joinLines(String text) {
+		char[] chars = null;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if ((c == '\n' || c == '\r') && !isLineBreak(text, i - 1) && !isLineBreak(text, i + 1)) {
+				if (chars == null) {
+					chars = text.toCharArray();
+				}
+				chars[i] = ' ';
+			}
+		}
+		return (chars == null) ? text : new String(chars);
+	}
+
+	private static boolean isLineBreak(String text, int index) {
+		if (index < 0 || index >= text.length()) {
+			return false;
+		}
+		char c = text.charAt(index);
+		return c == '\n' || c == '\r';
+	}
+
+	private void tokenize(JCas jcas, BreakIterator words, String sentence, int sentenceBegin) {
+		words.setText(sentence);
+		int begin = words.first();
+		for (int end = words.next(); end != BreakIterator.DONE; begin = end, end = words.next()) {
+			if (!Character.isWhitespace(sentence.charAt(begin))) {
+				createToken(jcas, sentenceBegin + begin, sentenceBegin + end);
+			}
+		}
+	}
+}
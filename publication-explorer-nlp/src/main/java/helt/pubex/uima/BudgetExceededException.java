@@ -0,0 +1,16 @@
+package helt.pubex.uima;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a reader when a document exceeds its {@link DocumentBudget}. The
+ * reader has moved on, so the pipeline can quarantine the document and
+ * continue with the next one.
+ */
+public class BudgetExceededException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public BudgetExceededException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,66 @@
+package helt.pubex.uima;
+
+/**
+ * Limits on the size of a single document and on the time spent on it. A
+ * document over budget is cancelled and recorded in the {@link Quarantine}
+ * instead of holding up the rest of the run. A limit of 0 means no limit,
+ * which is the default for all of them.
+ */
+public class DocumentBudget {
+	private long maxBytes = 0;
+	private long maxCharacters = 0;
+	private long maxMillis = 0;
+	private long maxAnnotatorMillis = 0;
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Files larger than this are not read at all.
+	 */
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = Math.max(0, maxBytes);
+	}
+
+	public long getMaxCharacters() {
+		return maxCharacters;
+	}
+
+	/**
+	 * Documents whose extracted text is longer than this are not annotated.
+	 */
+	public void setMaxCharacters(long maxCharacters) {
+		this.maxCharacters = Math.max(0, maxCharacters);
+	}
+
+	public long getMaxMillis() {
+		return maxMillis;
+	}
+
+	/**
+	 * Time for reading and annotating a document, not counting the time it
+	 * waits for a worker.
+	 */
+	public void setMaxMillis(long maxMillis) {
+		this.maxMillis = Math.max(0, maxMillis);
+	}
+
+	public long getMaxAnnotatorMillis() {
+		return maxAnnotatorMillis;
+	}
+
+	/**
+	 * Time for a single annotator on a document.
+	 */
+	public void setMaxAnnotatorMillis(long maxAnnotatorMillis) {
+		this.maxAnnotatorMillis = Math.max(0, maxAnnotatorMillis);
+	}
+
+	/**
+	 * @return whether the time of a document is limited
+	 */
+	public boolean isTimed() {
+		return maxMillis > 0 || maxAnnotatorMillis > 0;
+	}
+}
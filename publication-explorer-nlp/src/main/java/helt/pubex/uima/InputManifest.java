@@ -0,0 +1,327 @@
+package helt.pubex.uima;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Listing of the files below an input directory with their size, modification
+ * time and type.
+ *
+ * The type is derived from the file extension only; files of other types are
+ * listed but never read. Directories are walked in parallel. The listing can be
+ * kept in a manifest file: a directory whose modification time did not change
+ * since the manifest was written has neither gained nor lost entries, so its
+ * entries are taken from the manifest instead of listing it again. Rewriting a
+ * file in place does not change the modification time of its directory, so
+ * the size and modification time of every reused entry are read again.
+ */
+class InputManifest {
+	private static final Logger LOG = LoggerFactory.getLogger(InputManifest.class);
+	static final String PDF = "application/pdf";
+	static final String TEXT = "text/plain";
+	static final String OTHER = "application/octet-stream";
+
+	private final Path root;
+	private final List<Entry> entries;
+	private final Map<String, Directory> directories;
+
+	private InputManifest(Path root, List<Entry> entries, Map<String, Directory> directories) {
+		this.root = root;
+		this.entries = entries;
+		this.directories = directories;
+	}
+
+	/**
+	 * Lists the files below the root, reusing the entries of the manifest at the
+	 * manifest location for unchanged directories, and writes the new listing
+	 * there.
+	 *
+	 * @param manifestLocation manifest file, or null to list all directories
+	 * @param threads          number of directories listed at the same time
+	 */
+	static InputManifest scan(Path root, Path manifestLocation, int threads) throws IOException {
+		long start = System.currentTimeMillis();
+		Map<String, Directory> previous = Collections.emptyMap();
+		if (manifestLocation != null && Files.isRegularFile(manifestLocation)) {
+			try {
+				previous = read(manifestLocation);
+			} catch (IOException | RuntimeException e) {
+				LOG.warn("Ignoring unreadable manifest {}", manifestLocation, e);
+			}
+		}
+
+		Walk walk = new Walk(root, previous);
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		try {
+			pool.invoke(walk.new Visit(root));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			pool.shutdown();
+		}
+
+		Map<String, Directory> directories = new HashMap<>();
+		for (Directory directory : walk.visited) {
+			directories.put(directory.path, directory);
+		}
+		List<Entry> entries = new ArrayList<>();
+		for (Directory directory : directories.values()) {
+			for (Entry entry : directory.files) {
+				entries.add(entry);
+			}
+		}
+		entries.sort(Comparator.comparing(Entry::getPath));
+		InputManifest manifest = new InputManifest(root, Collections.unmodifiableList(entries), directories);
+		LOG.info("Listed {} files in {} directories below {} in {} ms ({} directories unchanged)", entries.size(),
+				directories.size(), root, System.currentTimeMillis() - start, walk.reused.get());
+		if (manifestLocation != null) {
+			manifest.write(manifestLocation);
+		}
+		return manifest;
+	}
+
+	/**
+	 * @return the type of the file, judged by its extension
+	 */
+	static String detectType(Path file) {
+		String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+		if (name.endsWith(".pdf")) {
+			return PDF;
+		}
+		if (name.endsWith(".txt")) {
+			return TEXT;
+		}
+		return OTHER;
+	}
+
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return the files of the type, in path order
+	 */
+	public List<Path> files(String type) {
+		return entries.stream().filter(entry -> entry.getType().equals(type)).map(entry -> root.resolve(entry.path))
+				.collect(Collectors.toList());
+	}
+
+	private static Map<String, Directory> read(Path location) throws IOException {
+		Map<String, Directory> directories = new HashMap<>();
+		try (BufferedReader reader = Files.newBufferedReader(location, StandardCharsets.UTF_8)) {
+			Directory directory = null;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] columns = line.split("\t", -1);
+				if (columns.length == 4 && "D".equals(columns[0])) {
+					directory = new Directory(columns[1], Long.parseLong(columns[2]));
+					directory.parent = columns[3];
+					directories.put(directory.path, directory);
+				} else if (columns.length == 5 && "F".equals(columns[0]) && directory != null) {
+					directory.files.add(new Entry(columns[1], Long.parseLong(columns[2]), Long.parseLong(columns[3]),
+							columns[4]));
+				} else if (!line.isEmpty()) {
+					throw new IOException("Malformed manifest line in " + location + ": " + line);
+				}
+			}
+		}
+		for (Directory directory : directories.values()) {
+			Directory parent = directories.get(directory.parent);
+			if (parent != null && parent != directory) {
+				parent.directories.add(directory.path);
+			}
+		}
+		return directories;
+	}
+
+	/**
+	 * Writes the manifest as tab separated lines, a "D" line per directory with
+	 * its path, modification time and parent, followed by an "F" line per file
+	 * with its path, size, modification time and type. Paths are relative to the
+	 * root, the root itself is the empty path.
+	 */
+	private void write(Path location) throws IOException {
+		Files.createDirectories(location.toAbsolutePath().getParent());
+		Path temp = Files.createTempFile(location.toAbsolutePath().getParent(), "manifest", ".tmp");
+		try {
+			try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+				for (Directory directory : directories.values()) {
+					writer.append("D\t").append(directory.path).append('\t')
+							.append(Long.toString(directory.lastModified)).append('\t').append(directory.parent);
+					writer.newLine();
+					for (Entry entry : directory.files) {
+						writer.append("F\t").append(entry.path).append('\t').append(Long.toString(entry.size))
+								.append('\t').append(Long.toString(entry.lastModified)).append('\t')
+								.append(entry.type);
+						writer.newLine();
+					}
+				}
+			}
+			Files.move(temp, location, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	public static class Entry {
+		private final String path;
+		private final long size;
+		private final long lastModified;
+		private final String type;
+
+		Entry(String path, long size, long lastModified, String type) {
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.type = type;
+		}
+
+		/**
+		 * @return the path relative to the root, with '/' as separator
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public String getType() {
+			return type;
+		}
+	}
+
+	private static class Directory {
+		private final String path;
+		private final long lastModified;
+		private String parent = "";
+		private final List<Entry> files = new ArrayList<>();
+		private final List<String> directories = new ArrayList<>();
+
+		Directory(String path, long lastModified) {
+			this.path = path;
+			this.lastModified = lastModified;
+		}
+	}
+
+	private static class Walk {
+		private final Path root;
+		private final Map<String, Directory> previous;
+		private final Queue<Directory> visited = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger reused = new AtomicInteger();
+
+		Walk(Path root, Map<String, Directory> previous) {
+			this.root = root;
+			this.previous = previous;
+		}
+
+		private String relative(Path path) {
+			return root.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/");
+		}
+
+		private class Visit extends RecursiveAction {
+			private final Path path;
+
+			Visit(Path path) {
+				this.path = path;
+			}
+
+			@Override
+			protected void compute() {
+				try {
+					visit();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+
+			private void visit() throws IOException {
+				String relative = relative(path);
+				long lastModified = Files.getLastModifiedTime(path).toMillis();
+				Directory cached = previous.get(relative);
+				List<Visit> children = new ArrayList<>();
+				if (cached != null && cached.lastModified == lastModified) {
+					reused.incrementAndGet();
+					Directory directory = new Directory(cached.path, cached.lastModified);
+					directory.parent = cached.parent;
+					directory.directories.addAll(cached.directories);
+					for (Entry entry : cached.files) {
+						Path file = root.resolve(entry.path);
+						BasicFileAttributes attributes;
+						try {
+							attributes = Files.readAttributes(file, BasicFileAttributes.class);
+						} catch (NoSuchFileException e) {
+							// removed while the directory was listed
+							continue;
+						}
+						long modified = attributes.lastModifiedTime().toMillis();
+						if (attributes.size() == entry.size && modified == entry.lastModified) {
+							directory.files.add(entry);
+						} else {
+							directory.files.add(new Entry(entry.path, attributes.size(), modified, entry.type));
+						}
+					}
+					visited.add(directory);
+					for (String child : cached.directories) {
+						children.add(new Visit(root.resolve(child)));
+					}
+				} else {
+					Directory directory = new Directory(relative, lastModified);
+					if (!relative.isEmpty()) {
+						directory.parent = relative(path.getParent());
+					}
+					try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+						for (Path child : stream) {
+							// linked directories are not followed, linked files are listed
+							BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class,
+									LinkOption.NOFOLLOW_LINKS);
+							if (attributes.isSymbolicLink() && Files.isRegularFile(child)) {
+								attributes = Files.readAttributes(child, BasicFileAttributes.class);
+							}
+							if (attributes.isDirectory()) {
+								directory.directories.add(relative(child));
+								children.add(new Visit(child));
+							} else if (attributes.isRegularFile()) {
+								directory.files.add(new Entry(relative(child), attributes.size(),
+										attributes.lastModifiedTime().toMillis(), detectType(child)));
+							}
+						}
+					}
+					visited.add(directory);
+				}
+				invokeAll(children);
+			}
+		}
+	}
+}
@@ -0,0 +1,249 @@
+package helt.pubex.uima;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Finds texts whose word 3-gram sets have a Jaccard similarity of at least a
+ * threshold, without comparing every pair.
+ *
+ * Each text is reduced to a MinHash signature of {@value #HASHES} values, the
+ * minimal hashes of its 3-grams under as many hash functions; the fraction of
+ * equal values of two signatures estimates the Jaccard similarity. The
+ * signature is cut into {@value #BANDS} bands, and only texts which agree in
+ * all values of at least one band are compared, which they do with a
+ * probability of 1 - (1 - s^r)^b for similarity s and r rows per band.
+ * Signatures are kept in one int array and every band in an open addressing
+ * table, whose entries are chained through an int array.
+ *
+ * Not thread-safe.
+ */
+class MinHashLsh {
+	static final int HASHES = 128;
+	static final int BANDS = 16;
+	private static final int ROWS = HASHES / BANDS;
+	private static final int SHINGLE = 3;
+
+	private static final long[] MULTIPLIERS = new long[HASHES];
+	private static final long[] INCREMENTS = new long[HASHES];
+	static {
+		Random random = new Random(0x5EED);
+		for (int i = 0; i < HASHES; i++) {
+			MULTIPLIERS[i] = random.nextLong() | 1;
+			INCREMENTS[i] = random.nextLong();
+		}
+	}
+
+	private final double threshold;
+	private int size = 0;
+	private int[] signatures = new int[64 * HASHES];
+	private final Band[] bands = new Band[BANDS];
+
+	/**
+	 * @param threshold minimal estimated Jaccard similarity of near-duplicates
+	 */
+	MinHashLsh(double threshold) {
+		this.threshold = threshold;
+		for (int b = 0; b < BANDS; b++) {
+			bands[b] = new Band();
+		}
+	}
+
+	/**
+	 * @return the signature of the text, or null if it has fewer words than a
+	 *         3-gram
+	 */
+	static int[] signature(String text) {
+		long[] words = words(text);
+		if (words.length < SHINGLE) {
+			return null;
+		}
+		int[] signature = new int[HASHES];
+		Arrays.fill(signature, Integer.MAX_VALUE);
+		for (int i = 0; i + SHINGLE <= words.length; i++) {
+			long shingle = mix(words[i] * 31 * 31 + words[i + 1] * 31 + words[i + 2]);
+			for (int h = 0; h < HASHES; h++) {
+				// multiply-shift hashing of the 64 bit shingle hash
+				int value = (int) ((MULTIPLIERS[h] * shingle + INCREMENTS[h]) >>> 33);
+				if (value < signature[h]) {
+					signature[h] = value;
+				}
+			}
+		}
+		return signature;
+	}
+
+	/**
+	 * Looks for an earlier text similar to the signature, and adds the signature
+	 * if there is none.
+	 *
+	 * @return id of the most similar earlier text at or above the threshold and
+	 *         its estimated similarity, or null after adding the signature under
+	 *         the next id
+	 */
+	Match addIfUnique(int[] signature) {
+		int best = -1;
+		double bestSimilarity = 0;
+		long[] keys = new long[BANDS];
+		for (int b = 0; b < BANDS; b++) {
+			keys[b] = bandKey(signature, b);
+			for (int candidate = bands[b].first(keys[b]); candidate >= 0; candidate = bands[b].next[candidate]) {
+				double similarity = similarity(signature, candidate);
+				if (similarity > bestSimilarity) {
+					best = candidate;
+					bestSimilarity = similarity;
+				}
+			}
+		}
+		if (best >= 0 && bestSimilarity >= threshold) {
+			return new Match(best, bestSimilarity);
+		}
+
+		int id = size++;
+		if (signatures.length < size * HASHES) {
+			signatures = Arrays.copyOf(signatures, signatures.length * 2);
+		}
+		System.arraycopy(signature, 0, signatures, id * HASHES, HASHES);
+		for (int b = 0; b < BANDS; b++) {
+			bands[b].add(keys[b], id);
+		}
+		return null;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private double similarity(int[] signature, int id) {
+		int offset = id * HASHES;
+		int equal = 0;
+		for (int h = 0; h < HASHES; h++) {
+			if (signature[h] == signatures[offset + h]) {
+				equal++;
+			}
+		}
+		return (double) equal / HASHES;
+	}
+
+	private static long bandKey(int[] signature, int band) {
+		long key = band;
+		for (int r = band * ROWS; r < (band + 1) * ROWS; r++) {
+			key = mix(key * 31 + signature[r]);
+		}
+		return key;
+	}
+
+	/**
+	 * Hashes of the lowercased runs of letters and digits.
+	 */
+	private static long[] words(String text) {
+		long[] words = new long[16];
+		int count = 0;
+		long hash = 0;
+		boolean inWord = false;
+		for (int i = 0; i <= text.length(); i++) {
+			char c = (i < text.length()) ? text.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(c)) {
+				hash = hash * 31 + Character.toLowerCase(c);
+				inWord = true;
+			} else if (inWord) {
+				if (count == words.length) {
+					words = Arrays.copyOf(words, count * 2);
+				}
+				words[count++] = mix(hash);
+				hash = 0;
+				inWord = false;
+			}
+		}
+		return Arrays.copyOf(words, count);
+	}
+
+	/**
+	 * The finalizer of MurmurHash3.
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	static final class Match {
+		private final int id;
+		private final double similarity;
+
+		Match(int id, double similarity) {
+			this.id = id;
+			this.similarity = similarity;
+		}
+
+		int getId() {
+			return id;
+		}
+
+		double getSimilarity() {
+			return similarity;
+		}
+	}
+
+	/**
+	 * Band key to the last id added with it; earlier ids with the same key follow
+	 * through {@link #next}.
+	 */
+	private static final class Band {
+		private long[] keys = new long[64];
+		private int[] heads = new int[64];
+		private int used = 0;
+		private int[] next = new int[64];
+
+		int first(long key) {
+			int slot = slot(keys, heads, key);
+			return heads[slot] - 1;
+		}
+
+		void add(long key, int id) {
+			if (id >= next.length) {
+				next = Arrays.copyOf(next, Math.max(id + 1, next.length * 2));
+			}
+			int slot = slot(keys, heads, key);
+			if (heads[slot] == 0) {
+				keys[slot] = key;
+				used++;
+			}
+			next[id] = heads[slot] - 1;
+			heads[slot] = id + 1;
+			if (used * 2 > keys.length) {
+				grow();
+			}
+		}
+
+		private void grow() {
+			long[] oldKeys = keys;
+			int[] oldHeads = heads;
+			keys = new long[oldKeys.length * 2];
+			heads = new int[oldHeads.length * 2];
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldHeads[i] != 0) {
+					int slot = slot(keys, heads, oldKeys[i]);
+					keys[slot] = oldKeys[i];
+					heads[slot] = oldHeads[i];
+				}
+			}
+		}
+
+		/**
+		 * @return the slot of the key, or the empty slot where it belongs; a head of
+		 *         0 marks an empty slot, heads are ids plus one
+		 */
+		private static int slot(long[] keys, int[] heads, long key) {
+			int mask = keys.length - 1;
+			int slot = (int) key & mask;
+			while (heads[slot] != 0 && keys[slot] != key) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package helt.pubex.uima;
+
+import de.tudarmstadt.ukp.dkpro.core.api.io.ResourceCollectionReaderBase;
+import de.tudarmstadt.ukp.dkpro.core.io.text.TextReader;
+import org.apache.uima.UimaContext;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.collection.CollectionException;
+import org.apache.uima.collection.CollectionReader;
+import org.apache.uima.fit.component.CasCollectionReader_ImplBase;
+import org.apache.uima.fit.descriptor.ConfigurationParameter;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.util.Progress;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.apache.uima.fit.factory.CollectionReaderFactory.createReader;
+
+/**
+ * Reads the PDF and the text files of a directory in one pass, first all PDFs
+ * with the {@link ParallelPdfReader}, then all text files with DKPro's
+ * {@link TextReader}. Each format is selected by its own include patterns; a
+ * format without patterns is skipped.
+ */
+public class MixedFormatReader extends CasCollectionReader_ImplBase {
+	/**
+	 * Directory the include patterns are relative to.
+	 */
+	public static final String PARAM_SOURCE_LOCATION = ResourceCollectionReaderBase.PARAM_SOURCE_LOCATION;
+	@ConfigurationParameter(name = PARAM_SOURCE_LOCATION)
+	private String sourceLocation;
+
+	/**
+	 * Language of the documents, set on every CAS.
+	 */
+	public static final String PARAM_LANGUAGE = ResourceCollectionReaderBase.PARAM_LANGUAGE;
+	@ConfigurationParameter(name = PARAM_LANGUAGE, mandatory = false)
+	private String language;
+
+	/**
+	 * Include patterns of the PDF files, e.g. {@code [+]*.pdf}.
+	 */
+	public static final String PARAM_PDF_PATTERNS = "pdfPatterns";
+	@ConfigurationParameter(name = PARAM_PDF_PATTERNS, mandatory = false)
+	private String[] pdfPatterns;
+
+	/**
+	 * Include patterns of the text files.
+	 */
+	public static final String PARAM_TEXT_PATTERNS = "textPatterns";
+	@ConfigurationParameter(name = PARAM_TEXT_PATTERNS, mandatory = false)
+	private String[] textPatterns;
+
+	/**
+	 * Time limit for extracting a PDF in milliseconds, 0 for none.
+	 */
+	public static final String PARAM_MAX_PDF_MILLIS = "maxPdfMillis";
+	@ConfigurationParameter(name = PARAM_MAX_PDF_MILLIS, mandatory = false, defaultValue = "0")
+	private long maxPdfMillis;
+
+	private final List<CollectionReader> readers = new ArrayList<>();
+	private int current = 0;
+
+	@Override
+	public void initialize(UimaContext context) throws ResourceInitializationException {
+		super.initialize(context);
+		if (pdfPatterns != null && pdfPatterns.length > 0) {
+			readers.add(createReader(ParallelPdfReader.class, ParallelPdfReader.PARAM_SOURCE_LOCATION, sourceLocation,
+					ParallelPdfReader.PARAM_LANGUAGE, language, ParallelPdfReader.PARAM_PATTERNS, pdfPatterns,
+					ParallelPdfReader.PARAM_MAX_MILLIS, maxPdfMillis));
+		}
+		if (textPatterns != null && textPatterns.length > 0) {
+			readers.add(createReader(TextReader.class, TextReader.PARAM_SOURCE_LOCATION, sourceLocation,
+					TextReader.PARAM_LANGUAGE, language, TextReader.PARAM_PATTERNS, textPatterns));
+		}
+	}
+
+	@Override
+	public boolean hasNext() throws IOException, CollectionException {
+		while (current < readers.size()) {
+			if (readers.get(current).hasNext()) {
+				return true;
+			}
+			current++;
+		}
+		return false;
+	}
+
+	@Override
+	public void getNext(CAS cas) throws IOException, CollectionException {
+		if (!hasNext()) {
+			throw new CollectionException(new IllegalStateException("No more documents"));
+		}
+		readers.get(current).getNext(cas);
+	}
+
+	@Override
+	public Progress[] getProgress() {
+		List<Progress> progress = new ArrayList<>();
+		for (CollectionReader reader : readers) {
+			for (Progress part : reader.getProgress()) {
+				progress.add(part);
+			}
+		}
+		return progress.toArray(new Progress[0]);
+	}
+
+	@Override
+	public void destroy() {
+		for (CollectionReader reader : readers) {
+			reader.destroy();
+		}
+		super.destroy();
+	}
+}
@@ -0,0 +1,249 @@
+package helt.pubex.uima;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import de.tudarmstadt.ukp.dkpro.core.stanfordnlp.StanfordNamedEntityRecognizer;
+import de.tudarmstadt.ukp.dkpro.core.stanfordnlp.StanfordPosTagger;
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.analysis_engine.AnalysisEngineDescription;
+import org.apache.uima.fit.factory.AnalysisEngineFactory;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.resource.ResourceSpecifier;
+import org.apache.uima.resource.metadata.NameValuePair;
+import org.apache.uima.util.InvalidXMLException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide registry of the models of the DKPro annotators, so that a model
+ * is deserialized once and shared by all pipelines and worker threads instead
+ * of once per engine instance.
+ *
+ * DKPro's resource providers keep loaded models in a static cache if the
+ * component is marked sharable, but the cache holds a model only as long as
+ * some engine using it is alive. The registry therefore keeps one engine per
+ * model, which has processed an empty CAS and thereby loaded it, for as long as
+ * a pipeline holds a {@link Lease} on it. Once the last lease is released, the
+ * engine is only softly referenced, so the garbage collector may drop the
+ * model under memory pressure, and it is destroyed after the idle timeout.
+ * Loading the model before the pipeline starts also means that its workers only
+ * look the model up in DKPro's cache, which is not synchronized.
+ *
+ * Only components whose models are safe to use from several threads are
+ * shared. The OpenNLP components are not among them, as their providers
+ * produce the stateful *ME classes rather than the models.
+ */
+class ModelRegistry {
+	private static final Logger LOG = LoggerFactory.getLogger(ModelRegistry.class);
+	private static final String SHARABLE_PROPERTY = "dkpro.core.resourceprovider.sharable.";
+	private static final List<String> SHARABLE = Arrays.asList(StanfordPosTagger.class.getName(),
+			StanfordNamedEntityRecognizer.class.getName());
+	private static ModelRegistry shared;
+
+	private final Map<String, Entry> entries = new HashMap<>();
+	private long idleTimeoutMillis = TimeUnit.MINUTES.toMillis(10);
+	private ScheduledExecutorService evictor;
+
+	static synchronized ModelRegistry shared() {
+		if (shared == null) {
+			shared = new ModelRegistry();
+		}
+		return shared;
+	}
+
+	ModelRegistry() {
+		for (String component : SHARABLE) {
+			// an explicit setting on the command line wins
+			if (System.getProperty(SHARABLE_PROPERTY + component) == null) {
+				System.setProperty(SHARABLE_PROPERTY + component, "true");
+			}
+		}
+	}
+
+	/**
+	 * Time after which the model of an unused component is released.
+	 */
+	synchronized void setIdleTimeoutMillis(long idleTimeoutMillis) {
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	/**
+	 * Loads the models of all sharable components of the description, unless they
+	 * are loaded already, and keeps them until the lease is released.
+	 *
+	 * @param description primitive or aggregate description
+	 * @param language    language of the documents, which selects the model
+	 */
+	synchronized Lease lease(AnalysisEngineDescription description, String language)
+			throws ResourceInitializationException {
+		List<Entry> leased = new ArrayList<>();
+		try {
+			for (AnalysisEngineDescription component : sharableComponents(description)) {
+				String key = key(component, language);
+				Entry entry = entries.get(key);
+				if (entry == null) {
+					entry = new Entry(key);
+					entries.put(key, entry);
+				}
+				entry.acquire(component, language);
+				leased.add(entry);
+			}
+		} catch (ResourceInitializationException | RuntimeException e) {
+			release(leased);
+			throw e;
+		}
+		return new Lease(leased);
+	}
+
+	private synchronized void release(List<Entry> leased) {
+		for (Entry entry : leased) {
+			entry.release();
+		}
+		if (evictor == null && !leased.isEmpty()) {
+			evictor = Executors.newSingleThreadScheduledExecutor(
+					new ThreadFactoryBuilder().setNameFormat("model-registry").setDaemon(true).build());
+			evictor.scheduleWithFixedDelay(this::evictIdle, 1, 1, TimeUnit.MINUTES);
+		}
+	}
+
+	synchronized void evictIdle() {
+		long now = System.currentTimeMillis();
+		for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+			Entry entry = it.next();
+			if (entry.leases == 0 && (entry.engine.get() == null || now - entry.idleSince >= idleTimeoutMillis)) {
+				entry.destroy();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return number of components whose models are currently held
+	 */
+	synchronized int size() {
+		int size = 0;
+		for (Entry entry : entries.values()) {
+			if (entry.leases > 0 || entry.engine.get() != null) {
+				size++;
+			}
+		}
+		return size;
+	}
+
+	private static List<AnalysisEngineDescription> sharableComponents(AnalysisEngineDescription description)
+			throws ResourceInitializationException {
+		List<AnalysisEngineDescription> components = new ArrayList<>();
+		if (description.isPrimitive()) {
+			if (SHARABLE.contains(description.getAnnotatorImplementationName())) {
+				components.add(description);
+			}
+			return components;
+		}
+		try {
+			for (ResourceSpecifier delegate : description.getDelegateAnalysisEngineSpecifiers().values()) {
+				if (delegate instanceof AnalysisEngineDescription) {
+					components.addAll(sharableComponents((AnalysisEngineDescription) delegate));
+				}
+			}
+		} catch (InvalidXMLException e) {
+			throw new ResourceInitializationException(e);
+		}
+		return components;
+	}
+
+	private static String key(AnalysisEngineDescription component, String language) {
+		StringBuilder key = new StringBuilder(component.getAnnotatorImplementationName()).append('@').append(language);
+		NameValuePair[] settings = component.getAnalysisEngineMetaData().getConfigurationParameterSettings()
+				.getParameterSettings();
+		for (NameValuePair setting : settings) {
+			key.append(';').append(setting.getName()).append('=').append(String.valueOf(setting.getValue()));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Keeps the models of a pipeline loaded. Release it when the pipeline is
+	 * destroyed.
+	 */
+	class Lease implements AutoCloseable {
+		private List<Entry> leased;
+
+		private Lease(List<Entry> leased) {
+			this.leased = leased;
+		}
+
+		@Override
+		public void close() {
+			synchronized (ModelRegistry.this) {
+				if (leased != null) {
+					release(leased);
+					leased = null;
+				}
+			}
+		}
+	}
+
+	private static class Entry {
+		private final String key;
+		private AnalysisEngine holder;
+		private SoftReference<AnalysisEngine> engine = new SoftReference<>(null);
+		private int leases = 0;
+		private long idleSince;
+
+		Entry(String key) {
+			this.key = key;
+		}
+
+		void acquire(AnalysisEngineDescription component, String language) throws ResourceInitializationException {
+			if (holder == null) {
+				holder = engine.get();
+			}
+			if (holder == null) {
+				long start = System.currentTimeMillis();
+				holder = AnalysisEngineFactory.createEngine(component);
+				try {
+					// the providers load their model when they see the first CAS
+					JCas jcas = holder.newJCas();
+					jcas.setDocumentLanguage(language);
+					jcas.setDocumentText("");
+					holder.process(jcas);
+				} catch (Exception e) {
+					holder.destroy();
+					holder = null;
+					throw new ResourceInitializationException(e);
+				}
+				engine = new SoftReference<>(holder);
+				LOG.info("Loaded model of {} in {} ms", key, System.currentTimeMillis() - start);
+			}
+			leases++;
+		}
+
+		void release() {
+			leases--;
+			if (leases == 0) {
+				holder = null;
+				idleSince = System.currentTimeMillis();
+			}
+		}
+
+		void destroy() {
+			AnalysisEngine idle = engine.get();
+			if (idle != null) {
+				idle.destroy();
+				LOG.info("Released model of {}", key);
+			}
+			engine.clear();
+		}
+	}
+}
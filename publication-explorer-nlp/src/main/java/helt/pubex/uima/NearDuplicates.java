@@ -0,0 +1,188 @@
+package helt.pubex.uima;
+
+import de.tudarmstadt.ukp.dkpro.core.api.metadata.type.DocumentMetaData;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Paragraph;
+import org.apache.uima.fit.util.JCasUtil;
+import org.apache.uima.jcas.JCas;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Detects near-duplicate documents and paragraphs, e.g. several versions of
+ * the same paper, with {@link MinHashLsh}, right after a document has been
+ * read and before it is annotated.
+ *
+ * The first document of a group of near-duplicates is kept, the others are
+ * reported as duplicates and skipped by the pipelines. Of the kept documents,
+ * every paragraph which repeats an earlier paragraph is marked, so that it is
+ * not used for training twice; the paragraph itself stays in the document.
+ * Every duplicate is linked to its original in the report, a tab separated
+ * file with the kind ("document" or "paragraph"), the duplicate, the original
+ * and their estimated similarity. Paragraphs are named uri#index.
+ *
+ * Thread-safe; which of two near-duplicates read at the same time is kept
+ * depends on timing.
+ */
+public class NearDuplicates implements Closeable {
+	private static final Logger LOG = LoggerFactory.getLogger(NearDuplicates.class);
+
+	/** Default minimal estimated Jaccard similarity of the word 3-grams. */
+	public static final double DEFAULT_THRESHOLD = 0.8;
+
+	/** Paragraphs with fewer words, e.g. headings, are never duplicates. */
+	private static final int MIN_PARAGRAPH_WORDS = 8;
+
+	private final MinHashLsh documents;
+	private final MinHashLsh paragraphs;
+	private final List<String> documentNames = new ArrayList<>();
+	private final List<String> paragraphNames = new ArrayList<>();
+	private final Map<String, BitSet> duplicateParagraphs = new HashMap<>();
+	private int duplicateDocuments = 0;
+	private int duplicateParagraphCount = 0;
+	private int paragraphCount = 0;
+	private BufferedWriter report;
+
+	public NearDuplicates() {
+		this(DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * @param threshold minimal estimated Jaccard similarity of near-duplicates
+	 */
+	public NearDuplicates(double threshold) {
+		documents = new MinHashLsh(threshold);
+		paragraphs = new MinHashLsh(threshold);
+	}
+
+	/**
+	 * Writes the duplicates found from now on to the file, replacing it.
+	 */
+	public synchronized void setReport(Path location) throws IOException {
+		close();
+		Files.createDirectories(location.toAbsolutePath().getParent());
+		report = Files.newBufferedWriter(location, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Checks the text of the document and then its paragraphs against all
+	 * documents checked before.
+	 *
+	 * @return whether the document is a near-duplicate of an earlier one and
+	 *         should be skipped
+	 */
+	public boolean isDuplicate(JCas jcas) {
+		String name = documentName(jcas);
+		int[] signature = MinHashLsh.signature(jcas.getDocumentText() == null ? "" : jcas.getDocumentText());
+		List<int[]> paragraphSignatures = new ArrayList<>();
+		for (Paragraph paragraph : JCasUtil.select(jcas, Paragraph.class)) {
+			// the PDF reader may emit empty paragraphs whose end precedes their begin
+			String text = (paragraph.getEnd() > paragraph.getBegin()) ? paragraph.getCoveredText() : "";
+			paragraphSignatures.add(countWords(text) < MIN_PARAGRAPH_WORDS ? null : MinHashLsh.signature(text));
+		}
+
+		synchronized (this) {
+			if (signature != null) {
+				MinHashLsh.Match match = documents.addIfUnique(signature);
+				if (match != null) {
+					duplicateDocuments++;
+					report("document", name, documentNames.get(match.getId()), match.getSimilarity());
+					LOG.info("Skipping {}, a near-duplicate of {}", name, documentNames.get(match.getId()));
+					return true;
+				}
+				documentNames.add(name);
+			}
+			for (int p = 0; p < paragraphSignatures.size(); p++) {
+				paragraphCount++;
+				if (paragraphSignatures.get(p) == null) {
+					continue;
+				}
+				String paragraphName = name + "#" + p;
+				MinHashLsh.Match match = paragraphs.addIfUnique(paragraphSignatures.get(p));
+				if (match == null) {
+					paragraphNames.add(paragraphName);
+				} else {
+					duplicateParagraphCount++;
+					duplicateParagraphs.computeIfAbsent(name, n -> new BitSet()).set(p);
+					report("paragraph", paragraphName, paragraphNames.get(match.getId()), match.getSimilarity());
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * @param paragraph index of the paragraph among the paragraphs of the document
+	 * @return whether the paragraph of a kept document repeats an earlier one
+	 */
+	public synchronized boolean isDuplicateParagraph(String document, int paragraph) {
+		BitSet duplicates = duplicateParagraphs.get(document);
+		return duplicates != null && duplicates.get(paragraph);
+	}
+
+	/**
+	 * @return whether any paragraph of the document repeats an earlier one
+	 */
+	public synchronized boolean hasDuplicateParagraphs(String document) {
+		return duplicateParagraphs.containsKey(document);
+	}
+
+	public synchronized String summary() {
+		return String.format(Locale.ROOT, "%d of %d documents and %d of %d paragraphs were near-duplicates",
+				duplicateDocuments, duplicateDocuments + documents.size(), duplicateParagraphCount, paragraphCount);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (report != null) {
+			report.close();
+			report = null;
+		}
+	}
+
+	/**
+	 * @return the URI of the document, or its id if it has none
+	 */
+	static String documentName(JCas jcas) {
+		DocumentMetaData metaData = DocumentMetaData.get(jcas);
+		return (metaData.getDocumentUri() != null) ? metaData.getDocumentUri() : metaData.getDocumentId();
+	}
+
+	private void report(String kind, String duplicate, String original, double similarity) {
+		if (report == null) {
+			return;
+		}
+		try {
+			report.write(String.format(Locale.ROOT, "%s\t%s\t%s\t%.3f", kind, duplicate, original, similarity));
+			report.newLine();
+		} catch (IOException e) {
+			LOG.warn("Cannot write the duplicate report, it is disabled", e);
+			report = null;
+		}
+	}
+
+	private static int countWords(String text) {
+		int words = 0;
+		boolean inWord = false;
+		for (int i = 0; i < text.length(); i++) {
+			boolean letterOrDigit = Character.isLetterOrDigit(text.charAt(i));
+			if (letterOrDigit && !inWord) {
+				words++;
+			}
+			inWord = letterOrDigit;
+		}
+		return words;
+	}
+}
@@ -0,0 +1,321 @@
+package helt.pubex.uima;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import de.tudarmstadt.ukp.dkpro.core.api.io.ResourceCollectionReaderBase;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Heading;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Paragraph;
+import de.tudarmstadt.ukp.dkpro.core.io.pdf.PdfReader;
+import de.tudarmstadt.ukp.dkpro.core.io.pdf.internal.Pdf2CasConverter;
+import de.tudarmstadt.ukp.dkpro.core.io.pdf.internal.SubstitutionTrieParser;
+import de.tudarmstadt.ukp.dkpro.core.io.pdf.internal.Trie;
+import org.apache.commons.io.IOUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.uima.UimaContext;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.text.AnnotationFS;
+import org.apache.uima.collection.CollectionException;
+import org.apache.uima.fit.descriptor.ConfigurationParameter;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.util.CasCreationUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.IntUnaryOperator;
+
+import static de.tudarmstadt.ukp.dkpro.core.api.resources.ResourceUtils.resolveLocation;
+import static org.apache.uima.fit.factory.TypeSystemDescriptionFactory.createTypeSystemDescription;
+
+/**
+ * Reads PDF files like DKPro's {@link PdfReader}, but extracts the pages of a
+ * long document in parallel.
+ *
+ * The pages are split into one contiguous range per worker of a bounded pool.
+ * Each worker parses the document once and extracts its range with DKPro's
+ * converter into a scratch CAS, so fonts and other resources are parsed once
+ * per range rather than once per page. The worker of the first range plans the
+ * ranges as soon as it knows the number of pages, so the pages are not counted
+ * in a parse of their own. The texts of the ranges are then concatenated in
+ * page order and their Paragraph and Heading annotations are moved by the
+ * length of the text before them. As the converter emits text and regions page
+ * by page, this yields the CAS that {@link PdfReader} produces. Files below a
+ * minimal size and documents too short to be split are converted as a whole.
+ *
+ * With a time limit, every document is extracted by the pool, and a document
+ * which is not finished in time is abandoned with a
+ * {@link BudgetExceededException}. Its threads are interrupted and left to
+ * finish on their own, as PDFBox does not react to interrupts; the pool is
+ * replaced so that they do not hold up the next document.
+ */
+public class ParallelPdfReader extends ResourceCollectionReaderBase {
+	/**
+	 * Substitution table for characters of the PDF text, see {@link PdfReader}.
+	 */
+	public static final String PARAM_SUBSTITUTION_TABLE_LOCATION = PdfReader.PARAM_SUBSTITUTION_TABLE_LOCATION;
+	@ConfigurationParameter(name = PARAM_SUBSTITUTION_TABLE_LOCATION, mandatory = false, defaultValue = PdfReader.BUILT_IN)
+	private String substitutionTableLocation;
+
+	/**
+	 * Number of threads extracting pages, by default one per core.
+	 */
+	public static final String PARAM_THREADS = "threads";
+	@ConfigurationParameter(name = PARAM_THREADS, mandatory = false, defaultValue = "0")
+	private int threads;
+
+	/**
+	 * Minimal number of pages of a range; shorter documents are not split.
+	 */
+	public static final String PARAM_MIN_PAGES_PER_RANGE = "minPagesPerRange";
+	@ConfigurationParameter(name = PARAM_MIN_PAGES_PER_RANGE, mandatory = false, defaultValue = "8")
+	private int minPagesPerRange;
+
+	/**
+	 * Minimal size of a file in bytes for its pages to be split into ranges;
+	 * smaller files are converted as a whole.
+	 */
+	public static final String PARAM_MIN_SPLIT_BYTES = "minSplitBytes";
+	@ConfigurationParameter(name = PARAM_MIN_SPLIT_BYTES, mandatory = false, defaultValue = "262144")
+	private long minSplitBytes;
+
+	/**
+	 * Time limit for extracting a document in milliseconds, 0 for none.
+	 */
+	public static final String PARAM_MAX_MILLIS = "maxMillis";
+	@ConfigurationParameter(name = PARAM_MAX_MILLIS, mandatory = false, defaultValue = "0")
+	private long maxMillis;
+
+	private Trie<String> substitutionTable;
+	private ExecutorService executor;
+	private ThreadLocal<CAS> scratch;
+
+	@Override
+	public void initialize(UimaContext context) throws ResourceInitializationException {
+		super.initialize(context);
+		if (substitutionTableLocation != null) {
+			String location = PdfReader.BUILT_IN.equals(substitutionTableLocation)
+					? "classpath:/de/tudarmstadt/ukp/dkpro/core/io/pdf/substitutionTable.xml"
+					: substitutionTableLocation;
+			try (InputStream in = resolveLocation(location, this, context).openStream()) {
+				substitutionTable = SubstitutionTrieParser.parse(in);
+			} catch (IOException e) {
+				throw new ResourceInitializationException(e);
+			}
+		}
+		if (threads <= 0) {
+			threads = Runtime.getRuntime().availableProcessors();
+		}
+		minPagesPerRange = Math.max(1, minPagesPerRange);
+		executor = newExecutor();
+		scratch = ThreadLocal.withInitial(() -> {
+			try {
+				return CasCreationUtils.createCas(createTypeSystemDescription(), null, null);
+			} catch (ResourceInitializationException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+	}
+
+	@Override
+	public void getNext(CAS cas) throws IOException, CollectionException {
+		Resource resource = nextFile();
+		initCas(cas, resource, null);
+		long deadline = (maxMillis > 0) ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxMillis) : 0;
+		byte[] pdf;
+		try (InputStream in = resource.getInputStream()) {
+			pdf = IOUtils.toByteArray(in);
+		}
+		boolean split = threads > 1 && pdf.length >= minSplitBytes;
+		if (!split && deadline == 0) {
+			extract(cas, pdf, -1, -1, null);
+			return;
+		}
+
+		List<Future<Range>> futures = new ArrayList<>();
+		try {
+			if (!split) {
+				futures.add(executor.submit(() -> extract(pdf, -1, -1, null)));
+			} else {
+				// The first range is planned once its worker has parsed the document and
+				// knows the number of pages, the other ranges are submitted then.
+				CompletableFuture<Integer> pageCount = new CompletableFuture<>();
+				futures.add(executor.submit(() -> {
+					try {
+						return extract(pdf, 1, -1, pages -> {
+							pageCount.complete(pages);
+							return endPage(pages, 0);
+						});
+					} finally {
+						// unblocks the caller if the document cannot be parsed
+						pageCount.complete(0);
+					}
+				}));
+				int pages = await(pageCount, deadline);
+				for (int i = 1; i < ranges(pages); i++) {
+					int startPage = endPage(pages, i - 1) + 1;
+					int endPage = endPage(pages, i);
+					futures.add(executor.submit(() -> extract(pdf, startPage, endPage, null)));
+				}
+			}
+
+			StringBuilder text = new StringBuilder();
+			List<Range> results = new ArrayList<>(futures.size());
+			for (Future<Range> future : futures) {
+				Range range = await(future, deadline);
+				range.offset = text.length();
+				text.append(range.text);
+				results.add(range);
+			}
+
+			cas.setDocumentText(text.toString());
+			for (Range range : results) {
+				for (int i = 0; i < range.types.size(); i++) {
+					Type type = cas.getTypeSystem().getType(range.types.get(i));
+					cas.addFsToIndexes(cas.createAnnotation(type, range.offset + range.begins.get(i),
+							range.offset + range.ends.get(i)));
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CollectionException(e);
+		} catch (ExecutionException e) {
+			throw new IOException("Cannot extract " + resource.getLocation(), e.getCause());
+		} catch (TimeoutException e) {
+			// the threads may be stuck in PDFBox, so they are replaced
+			executor.shutdownNow();
+			executor = newExecutor();
+			throw new BudgetExceededException(
+					"extraction of " + resource.getLocation() + " took longer than " + maxMillis + " ms");
+		} finally {
+			for (Future<?> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of ranges a document of the given length is split into
+	 */
+	private int ranges(int pages) {
+		return Math.max(1, Math.min(threads, pages / minPagesPerRange));
+	}
+
+	/**
+	 * @return the last page of the range, pages being numbered from 1
+	 */
+	private int endPage(int pages, int range) {
+		return (int) ((long) pages * (range + 1) / ranges(pages));
+	}
+
+	/**
+	 * @param deadline in {@link System#nanoTime()}, 0 for none
+	 */
+	private static <T> T await(Future<T> future, long deadline)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		if (deadline == 0) {
+			return future.get();
+		}
+		return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+	}
+
+	private ExecutorService newExecutor() {
+		return Executors.newFixedThreadPool(threads,
+				new ThreadFactoryBuilder().setNameFormat("pdf-extraction-%d").setDaemon(true).build());
+	}
+
+	/**
+	 * Extracts the pages into a scratch CAS of the calling thread and returns its
+	 * text and annotations.
+	 */
+	private Range extract(byte[] pdf, int startPage, int endPage, IntUnaryOperator plan) throws IOException {
+		CAS cas = scratch.get();
+		cas.reset();
+		try {
+			extract(cas, pdf, startPage, endPage, plan);
+			Range range = new Range(cas.getDocumentText());
+			for (AnnotationFS annotation : cas.getAnnotationIndex()) {
+				if (annotation.getType() != cas.getDocumentAnnotation().getType()) {
+					range.add(annotation.getType().getName(), annotation.getBegin(), annotation.getEnd());
+				}
+			}
+			return range;
+		} finally {
+			cas.reset();
+		}
+	}
+
+	/**
+	 * @param startPage first page, or -1 for all pages
+	 * @param endPage   last page, or -1 for the last page of the document
+	 * @param plan      if not null, maps the number of pages of the document to
+	 *                  the last page to extract
+	 */
+	private void extract(CAS cas, byte[] pdf, int startPage, int endPage, IntUnaryOperator plan)
+			throws IOException {
+		Pdf2CasConverter converter = new PlannedConverter(plan);
+		converter.setSubstitutionTable(substitutionTable);
+		converter.setHeadingType(Heading.class.getName());
+		converter.setParagraphType(Paragraph.class.getName());
+		if (startPage > 0) {
+			converter.setStartPage(startPage);
+		}
+		if (endPage > 0) {
+			converter.setEndPage(endPage);
+		}
+		converter.writeText(cas, new ByteArrayInputStream(pdf));
+	}
+
+	@Override
+	public void destroy() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+		super.destroy();
+	}
+
+	/**
+	 * Converter which decides on its last page once the document is parsed.
+	 */
+	private static class PlannedConverter extends Pdf2CasConverter {
+		private final IntUnaryOperator plan;
+
+		PlannedConverter(IntUnaryOperator plan) throws IOException {
+			this.plan = plan;
+		}
+
+		@Override
+		protected void startDocument(PDDocument document) throws IOException {
+			super.startDocument(document);
+			if (plan != null) {
+				setEndPage(plan.applyAsInt(document.getNumberOfPages()));
+			}
+		}
+	}
+
+	private static class Range {
+		private final String text;
+		private final List<String> types = new ArrayList<>();
+		private final List<Integer> begins = new ArrayList<>();
+		private final List<Integer> ends = new ArrayList<>();
+		private int offset;
+
+		Range(String text) {
+			this.text = (text == null) ? "" : text;
+		}
+
+		void add(String type, int begin, int end) {
+			types.add(type);
+			begins.add(begin);
+			ends.add(end);
+		}
+	}
+}
@@ -0,0 +1,703 @@
+package helt.pubex.uima;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.analysis_engine.AnalysisEngineDescription;
+import org.apache.uima.analysis_engine.metadata.FixedFlow;
+import org.apache.uima.analysis_engine.metadata.FlowConstraints;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.CASException;
+import org.apache.uima.collection.CollectionException;
+import org.apache.uima.collection.CollectionReader;
+import org.apache.uima.collection.CollectionReaderDescription;
+import org.apache.uima.fit.factory.AnalysisEngineFactory;
+import org.apache.uima.fit.factory.CollectionReaderFactory;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.resource.ResourceSpecifier;
+import org.apache.uima.resource.metadata.ProcessingResourceMetaData;
+import org.apache.uima.util.CasCreationUtils;
+import org.apache.uima.util.InvalidXMLException;
+import org.apache.uima.util.ProcessTrace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Multi-threaded replacement for {@link org.apache.uima.fit.pipeline.JCasIterable}.
+ *
+ * The collection reader is shared by all workers (access is serialized), the
+ * annotators of the parallel stage are instantiated once per worker, and the
+ * serial stage exists only once and is invoked by one worker at a time. That
+ * is where engines go that must see the whole collection, e.g. the LDA
+ * trainer. CASes come from a fixed pool and are recycled.
+ *
+ * If an {@link AnnotationCache} is set, cached documents are restored from it
+ * and only pass the serial stage, while freshly read documents are stored in it
+ * after the parallel stage. If {@link NearDuplicates} are set, documents which
+ * are near-duplicates of earlier ones are dropped before either stage.
+ *
+ * With a {@link Quarantine}, documents which the reader fails on or which
+ * exceed the {@link DocumentBudget} are recorded there and skipped, and the run
+ * continues. To enforce a time budget, the parallel stage runs on a separate
+ * thread while the worker waits for it. A document over budget is abandoned
+ * together with its CAS and its annotator instances, which are replaced; its
+ * thread is interrupted, but as annotators rarely react to that, it may run on
+ * until the annotator returns. If more than {@code parallelism} such threads
+ * are still running, the run fails rather than piling up stuck threads.
+ *
+ * Documents are returned in completion order, not in reader order. As with
+ * {@link org.apache.uima.fit.pipeline.JCasIterable}, a returned {@link JCas} is
+ * only valid until the next call to {@link Iterator#hasNext()}.
+ */
+class ParallelPipeline implements Iterable<JCas> {
+	private static final Logger LOG = LoggerFactory.getLogger(ParallelPipeline.class);
+
+	private final CollectionReaderDescription readerDescription;
+	private final AnalysisEngineDescription parallelStage;
+	private final AnalysisEngineDescription serialStage;
+	private final int parallelism;
+	private AnnotationCache cache;
+	private PipelineMetrics metrics;
+	private ModelRegistry models;
+	private String language;
+	private NearDuplicates nearDuplicates;
+	private DocumentBudget budget = new DocumentBudget();
+	private Quarantine quarantine;
+
+	/**
+	 * @param readerDescription
+	 * @param parallelStage     replicated once per worker
+	 * @param serialStage       single instance, may be null
+	 * @param parallelism       number of workers
+	 */
+	public ParallelPipeline(CollectionReaderDescription readerDescription, AnalysisEngineDescription parallelStage,
+			AnalysisEngineDescription serialStage, int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+		}
+		this.readerDescription = readerDescription;
+		this.parallelStage = parallelStage;
+		this.serialStage = serialStage;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * @param cache a cache which has already been
+	 *              {@link AnnotationCache#partition(java.nio.file.Path, List)
+	 *              partitioned}; the reader must only cover the misses
+	 */
+	public void setCache(AnnotationCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * @param metrics receives the timings of the reader and of every annotator,
+	 *                may be null
+	 */
+	public void setMetrics(PipelineMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @param models   registry which provides the models of the parallel stage,
+	 *                 may be null
+	 * @param language language of the documents
+	 */
+	public void setModelRegistry(ModelRegistry models, String language) {
+		this.models = models;
+		this.language = language;
+	}
+
+	/**
+	 * @param nearDuplicates checks every document before it is annotated; near
+	 *                       duplicates are skipped. May be null.
+	 */
+	public void setNearDuplicates(NearDuplicates nearDuplicates) {
+		this.nearDuplicates = nearDuplicates;
+	}
+
+	/**
+	 * @param budget limits on the characters and the time of a document, which are
+	 *               only enforced with a {@link #setQuarantine(Quarantine)
+	 *               quarantine}. Limits on the reader have to be passed to it
+	 *               directly.
+	 */
+	public void setBudget(DocumentBudget budget) {
+		this.budget = (budget == null) ? new DocumentBudget() : budget;
+	}
+
+	/**
+	 * @param quarantine receives the documents which the reader fails on or which
+	 *                   exceed the budget, may be null to fail the run instead
+	 */
+	public void setQuarantine(Quarantine quarantine) {
+		this.quarantine = quarantine;
+	}
+
+	@Override
+	public Iterator<JCas> iterator() {
+		try {
+			return new ParallelIterator();
+		} catch (ResourceInitializationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private class ParallelIterator implements Iterator<JCas> {
+		private final CollectionReader reader;
+		private final List<AnalysisEngineDescription> annotators;
+		private final BlockingQueue<Chain> chains;
+		private final Set<Chain> liveChains = new HashSet<>();
+		private final AnalysisEngine serialEngine;
+		private final List<ProcessingResourceMetaData> metaData = new ArrayList<>();
+		private final BlockingQueue<CAS> casPool;
+		private final ExecutorService workers;
+		private final ExecutorService annotation;
+		private final CompletionService<CAS> completed;
+		private final Iterator<AnnotationCache.Hit> cachedHits;
+		private final String readerName;
+		private final AtomicInteger abandonedRunning = new AtomicInteger();
+		private ModelRegistry.Lease lease;
+
+		private int pending = 0;
+		private boolean exhausted = false;
+		private boolean finished = false;
+		private CAS current;
+		private CAS next;
+
+		ParallelIterator() throws ResourceInitializationException {
+			cachedHits = (cache == null) ? Collections.<AnnotationCache.Hit>emptyIterator()
+					: cache.getHits().iterator();
+			reader = CollectionReaderFactory.createReader(readerDescription);
+			readerName = reader.getMetaData().getName();
+			boolean annotate;
+			try {
+				annotate = reader.hasNext();
+			} catch (IOException | CollectionException e) {
+				throw new ResourceInitializationException(e);
+			}
+			// Skip loading the annotator models if everything comes from the cache.
+			if (annotate && models != null) {
+				lease = models.lease(parallelStage, language);
+			}
+			serialEngine = (serialStage == null) ? null : AnalysisEngineFactory.createEngine(serialStage);
+
+			metaData.add(reader.getProcessingResourceMetaData());
+			annotators = annotators(parallelStage);
+			chains = new ArrayBlockingQueue<>(parallelism);
+			if (annotate) {
+				for (int i = 0; i < parallelism; i++) {
+					chains.add(newChain());
+				}
+				for (AnalysisEngine engine : chains.peek().engines) {
+					metaData.add(engine.getProcessingResourceMetaData());
+				}
+			}
+			if (serialEngine != null) {
+				metaData.add(serialEngine.getProcessingResourceMetaData());
+			}
+
+			// One CAS in flight per worker, plus one finished CAS per worker waiting
+			// for the consumer, so that workers do not stall on a slow consumer.
+			casPool = new ArrayBlockingQueue<>(2 * parallelism);
+			for (int i = 0; i < 2 * parallelism; i++) {
+				casPool.add(newCas());
+			}
+			reader.typeSystemInit(casPool.peek().getTypeSystem());
+
+			workers = Executors.newFixedThreadPool(parallelism,
+					new ThreadFactoryBuilder().setNameFormat("pipeline-worker-%d").setDaemon(true).build());
+			completed = new ExecutorCompletionService<>(workers);
+			// threads of abandoned documents are not reused until their annotator
+			// returns; annotate() fails the run once too many of them are stuck
+			annotation = (annotate && quarantine != null && budget.isTimed())
+					? Executors.newCachedThreadPool(
+							new ThreadFactoryBuilder().setNameFormat("pipeline-annotation-%d").setDaemon(true).build())
+					: null;
+			LOG.info("Running pipeline with {} workers", parallelism);
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (next != null) {
+				return true;
+			}
+			if (finished) {
+				return false;
+			}
+			release(current);
+			current = null;
+
+			try {
+				while (true) {
+					dispatch();
+					if (pending == 0) {
+						finish();
+						return false;
+					}
+
+					Future<CAS> result = completed.take();
+					pending--;
+					CAS cas = result.get();
+					if (cas == null) {
+						exhausted = true;
+					} else {
+						next = cas;
+						return true;
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				abort();
+				throw new IllegalStateException(e);
+			} catch (ExecutionException e) {
+				abort();
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+
+		@Override
+		public JCas next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			current = next;
+			next = null;
+			try {
+				return current.getJCas();
+			} catch (CASException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		/**
+		 * Hands every free CAS to a worker, as long as the reader may have more
+		 * documents.
+		 */
+		private void dispatch() {
+			CAS cas;
+			while (!exhausted && (cas = casPool.poll()) != null) {
+				cas.reset();
+				final CAS target = cas;
+				completed.submit(() -> process(target));
+				pending++;
+			}
+		}
+
+		/**
+		 * Runs on a worker thread.
+		 *
+		 * @return the processed CAS, or null if the reader has no more documents
+		 */
+		private CAS process(CAS cas) throws Exception {
+			while (true) {
+				cas.reset();
+				AnnotationCache.Hit cached = null;
+				long start;
+				synchronized (reader) {
+					start = System.nanoTime();
+					if (cachedHits.hasNext()) {
+						cached = cachedHits.next();
+					} else if (reader.hasNext()) {
+						try {
+							reader.getNext(cas);
+						} catch (IOException e) {
+							recordFailure(readerName);
+							if (quarantine == null) {
+								throw e;
+							}
+							// the reader has moved on to the next document
+							quarantine(documentName(cas), String.valueOf(e));
+							continue;
+						} catch (Exception e) {
+							recordFailure(readerName);
+							throw e;
+						}
+						if (metrics != null) {
+							metrics.recordRead(readerName, System.nanoTime() - start);
+						}
+					} else {
+						casPool.add(cas);
+						return null;
+					}
+				}
+
+				if (cached != null) {
+					long loadStart = System.nanoTime();
+					cache.load(cached, cas);
+					if (metrics != null) {
+						metrics.recordRead(AnnotationCache.class.getSimpleName(), System.nanoTime() - loadStart);
+					}
+				}
+				if (isDuplicate(cas)) {
+					continue;
+				}
+
+				if (cached == null) {
+					if (isOversized(cas)) {
+						continue;
+					}
+					if (!annotate(cas, start)) {
+						// the abandoned CAS may still be written to
+						cas = newCas();
+						continue;
+					}
+					if (cache != null) {
+						cache.store(cas);
+					}
+				}
+				break;
+			}
+
+			if (serialEngine != null) {
+				ProcessTrace trace;
+				synchronized (serialEngine) {
+					try {
+						trace = serialEngine.process(cas);
+					} catch (Exception e) {
+						recordFailure(serialStage.getMetaData().getName());
+						throw e;
+					}
+				}
+				if (metrics != null) {
+					metrics.recordTrace(trace);
+				}
+			}
+			if (metrics != null) {
+				metrics.recordDocument(cas);
+			}
+			return cas;
+		}
+
+		private boolean isDuplicate(CAS cas) throws CASException {
+			if (nearDuplicates == null || !nearDuplicates.isDuplicate(cas.getJCas())) {
+				return false;
+			}
+			if (metrics != null) {
+				metrics.recordDuplicate();
+			}
+			return true;
+		}
+
+		private boolean isOversized(CAS cas) {
+			long characters = (cas.getDocumentText() == null) ? 0 : cas.getDocumentText().length();
+			if (quarantine == null || budget.getMaxCharacters() == 0 || characters <= budget.getMaxCharacters()) {
+				return false;
+			}
+			quarantine(documentName(cas),
+					characters + " characters exceed the budget of " + budget.getMaxCharacters());
+			return true;
+		}
+
+		/**
+		 * Runs the parallel stage, on a thread of its own if the time is limited.
+		 *
+		 * @param start when reading the document began, in
+		 *              {@link System#nanoTime()}
+		 * @return false if the document was quarantined and has been abandoned
+		 */
+		private boolean annotate(CAS cas, long start) throws Exception {
+			Chain chain = chains.take();
+			if (annotation == null) {
+				try {
+					chain.process(cas);
+				} finally {
+					chains.add(chain);
+				}
+				return true;
+			}
+
+			String document = documentName(cas);
+			chain.begin();
+			Future<?> task = annotation.submit(() -> {
+				try {
+					chain.process(cas);
+				} finally {
+					chain.end();
+				}
+				return null;
+			});
+			String reason;
+			try {
+				reason = await(task, chain, start);
+			} catch (InterruptedException e) {
+				task.cancel(true);
+				chain.abandon();
+				throw e;
+			}
+			if (reason == null) {
+				chains.add(chain);
+				return true;
+			}
+			task.cancel(true);
+			chain.abandon();
+			quarantine(document, reason);
+			if (abandonedRunning.get() > parallelism) {
+				throw new IllegalStateException(String.format(
+						"%d annotators of abandoned documents are still running, giving up after %s",
+						abandonedRunning.get(), document));
+			}
+			chains.add(newChain());
+			return false;
+		}
+
+		/**
+		 * @return null once the annotators have finished, or why the document is
+		 *         over budget
+		 */
+		private String await(Future<?> task, Chain chain, long start) throws Exception {
+			long maxMillis = budget.getMaxMillis();
+			long maxAnnotatorMillis = budget.getMaxAnnotatorMillis();
+			while (true) {
+				int stage = chain.stage;
+				long now = System.nanoTime();
+				long remaining = Long.MAX_VALUE;
+				if (maxMillis > 0) {
+					remaining = start + TimeUnit.MILLISECONDS.toNanos(maxMillis) - now;
+				}
+				if (maxAnnotatorMillis > 0) {
+					remaining = Math.min(remaining,
+							chain.stageStart + TimeUnit.MILLISECONDS.toNanos(maxAnnotatorMillis) - now);
+				}
+				try {
+					task.get(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+					return null;
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception) {
+						throw (Exception) e.getCause();
+					}
+					throw new IllegalStateException(e.getCause());
+				} catch (TimeoutException e) {
+					long elapsed = System.nanoTime() - start;
+					if (maxMillis > 0 && elapsed >= TimeUnit.MILLISECONDS.toNanos(maxMillis)) {
+						return String.format("took longer than %d ms, cancelled in %s", maxMillis,
+								chain.name(chain.stage));
+					}
+					if (chain.stage == stage) {
+						return String.format("%s took longer than %d ms", chain.name(stage), maxAnnotatorMillis);
+					}
+					// the next annotator has started in the meantime
+				}
+			}
+		}
+
+		private void quarantine(String document, String reason) {
+			quarantine.add(document, reason);
+			if (metrics != null) {
+				metrics.recordQuarantine();
+			}
+		}
+
+		private CAS newCas() throws ResourceInitializationException {
+			return CasCreationUtils.createCas(metaData);
+		}
+
+		private Chain newChain() throws ResourceInitializationException {
+			Chain chain = new Chain();
+			synchronized (liveChains) {
+				liveChains.add(chain);
+			}
+			return chain;
+		}
+
+		private void recordFailure(String component) {
+			if (metrics != null) {
+				metrics.recordFailure(component);
+			}
+		}
+
+		private void release(CAS cas) {
+			if (cas != null) {
+				casPool.add(cas);
+			}
+		}
+
+		private void finish() {
+			finished = true;
+			workers.shutdown();
+			if (annotation != null) {
+				annotation.shutdown();
+			}
+			try {
+				for (Chain chain : chains) {
+					for (AnalysisEngine engine : chain.engines) {
+						engine.collectionProcessComplete();
+					}
+				}
+				if (serialEngine != null) {
+					serialEngine.collectionProcessComplete();
+				}
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			} finally {
+				destroy();
+			}
+		}
+
+		private void abort() {
+			finished = true;
+			workers.shutdownNow();
+			if (annotation != null) {
+				annotation.shutdownNow();
+			}
+			destroy();
+		}
+
+		private void destroy() {
+			synchronized (liveChains) {
+				for (Chain chain : liveChains) {
+					chain.destroy();
+				}
+				liveChains.clear();
+			}
+			if (serialEngine != null) {
+				serialEngine.destroy();
+			}
+			reader.destroy();
+			if (lease != null) {
+				lease.close();
+			}
+		}
+
+		/**
+		 * One instance of every annotator of the parallel stage, used for one
+		 * document at a time.
+		 */
+		private class Chain {
+			private final AnalysisEngine[] engines;
+			private volatile int stage;
+			private volatile long stageStart;
+			private boolean running = false;
+			private boolean abandoned = false;
+
+			Chain() throws ResourceInitializationException {
+				engines = new AnalysisEngine[annotators.size()];
+				for (int i = 0; i < engines.length; i++) {
+					engines[i] = AnalysisEngineFactory.createEngine(annotators.get(i));
+				}
+			}
+
+			void process(CAS cas) throws Exception {
+				for (int i = 0; i < engines.length && !isAbandoned(); i++) {
+					stageStart = System.nanoTime();
+					stage = i;
+					ProcessTrace trace;
+					try {
+						trace = engines[i].process(cas);
+					} catch (Exception e) {
+						recordFailure(name(i));
+						throw e;
+					}
+					if (metrics != null) {
+						metrics.recordTrace(trace);
+					}
+				}
+			}
+
+			String name(int stage) {
+				return engines[stage].getMetaData().getName();
+			}
+
+			synchronized void begin() {
+				stage = 0;
+				stageStart = System.nanoTime();
+				running = true;
+			}
+
+			synchronized void end() {
+				running = false;
+				if (abandoned) {
+					abandonedRunning.decrementAndGet();
+					destroy();
+				}
+			}
+
+			/**
+			 * Gives up the chain; it is destroyed once the running annotator returns.
+			 */
+			synchronized void abandon() {
+				abandoned = true;
+				synchronized (liveChains) {
+					liveChains.remove(this);
+				}
+				if (running) {
+					abandonedRunning.incrementAndGet();
+				} else {
+					destroy();
+				}
+			}
+
+			private synchronized boolean isAbandoned() {
+				return abandoned;
+			}
+
+			void destroy() {
+				for (AnalysisEngine engine : engines) {
+					engine.destroy();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the delegates of the stage in flow order, or the stage itself if it
+	 *         is primitive or has no fixed flow
+	 */
+	private static List<AnalysisEngineDescription> annotators(AnalysisEngineDescription stage)
+			throws ResourceInitializationException {
+		if (stage.isPrimitive()) {
+			return Collections.singletonList(stage);
+		}
+		FlowConstraints flow = stage.getAnalysisEngineMetaData().getFlowConstraints();
+		Map<String, ResourceSpecifier> delegates;
+		try {
+			delegates = stage.getDelegateAnalysisEngineSpecifiers();
+		} catch (InvalidXMLException e) {
+			throw new ResourceInitializationException(e);
+		}
+		if (!(flow instanceof FixedFlow)) {
+			return Collections.singletonList(stage);
+		}
+		List<AnalysisEngineDescription> annotators = new ArrayList<>();
+		for (String key : ((FixedFlow) flow).getFixedFlow()) {
+			if (!(delegates.get(key) instanceof AnalysisEngineDescription)) {
+				return Collections.singletonList(stage);
+			}
+			annotators.add((AnalysisEngineDescription) delegates.get(key));
+		}
+		return annotators;
+	}
+
+	/**
+	 * @return the URI of the document, or its id if it has none
+	 */
+	private static String documentName(CAS cas) {
+		try {
+			return NearDuplicates.documentName(cas.getJCas());
+		} catch (Exception e) {
+			// the reader failed before it set the metadata
+			return "unknown document";
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package helt.pubex.uima;
+
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.jmx.JmxConfig;
+import io.micrometer.jmx.JmxMeterRegistry;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.util.ProcessTrace;
+import org.apache.uima.util.ProcessTraceEvent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micrometer instrumentation of a pipeline run: a latency histogram per reader
+ * and annotator, counters for documents, tokens and failures, and the CAS size
+ * per document.
+ *
+ * Annotator latencies are taken from the {@link ProcessTrace} UIMA returns for
+ * each processed CAS, which breaks an aggregate down into its delegates. The
+ * meters of a run are kept locally for {@link #summary()} and also registered
+ * in a shared registry, by default the JMX registry of {@link #jmx()}, where
+ * they accumulate over runs.
+ */
+class PipelineMetrics {
+	private static final String PREFIX = "pubex.pipeline.";
+	private static JmxMeterRegistry jmx;
+
+	private final String pipeline;
+	private final SimpleMeterRegistry local = new SimpleMeterRegistry();
+	private final CompositeMeterRegistry registry = new CompositeMeterRegistry();
+	private final Counter documents;
+	private final Counter tokens;
+	private final DistributionSummary casSize;
+	private final long started = System.nanoTime();
+
+	/**
+	 * @param pipeline name of the pipeline, added as a tag to all meters
+	 * @param shared   registry which receives the meters as well, may be null
+	 */
+	PipelineMetrics(String pipeline, MeterRegistry shared) {
+		this.pipeline = pipeline;
+		registry.add(local);
+		if (shared != null) {
+			registry.add(shared);
+		}
+		documents = Counter.builder(PREFIX + "documents").tag("pipeline", pipeline).register(registry);
+		tokens = Counter.builder(PREFIX + "tokens").tag("pipeline", pipeline).register(registry);
+		casSize = DistributionSummary.builder(PREFIX + "cas.size").tag("pipeline", pipeline).baseUnit("bytes")
+				.register(registry);
+	}
+
+	/**
+	 * @return a registry which exposes the meters as MBeans in the domain
+	 *         "metrics", created on first use
+	 */
+	static synchronized MeterRegistry jmx() {
+		if (jmx == null) {
+			jmx = new JmxMeterRegistry(JmxConfig.DEFAULT, Clock.SYSTEM);
+		}
+		return jmx;
+	}
+
+	void recordRead(String reader, long nanos) {
+		timer(reader).record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Records the duration of every primitive annotator in the trace. Aggregates
+	 * are not recorded themselves, only their delegates (including the flow
+	 * controller).
+	 */
+	void recordTrace(ProcessTrace trace) {
+		recordEvents(trace.getEvents());
+	}
+
+	private void recordEvents(Collection<ProcessTraceEvent> events) {
+		// The event types are localized by UIMA, so aggregates are recognized by
+		// their sub-events rather than by type.
+		for (ProcessTraceEvent event : events) {
+			if (event.getSubEvents().isEmpty()) {
+				timer(event.getComponentName()).record(event.getDuration(), TimeUnit.MILLISECONDS);
+			} else {
+				recordEvents(event.getSubEvents());
+			}
+		}
+	}
+
+	void recordDocument(CAS cas) {
+		documents.increment();
+		casSize.record(cas.size());
+		try {
+			JCas jcas = cas.getJCas();
+			tokens.increment(jcas.getAnnotationIndex(Token.type).size());
+		} catch (Exception e) {
+			// no tokens in this CAS
+		}
+	}
+
+	void recordFailure(String component) {
+		Counter.builder(PREFIX + "failures").tag("pipeline", pipeline).tag("component", simpleName(component))
+				.register(registry).increment();
+	}
+
+	void recordDuplicate() {
+		Counter.builder(PREFIX + "duplicates").tag("pipeline", pipeline).register(registry).increment();
+	}
+
+	void recordQuarantine() {
+		Counter.builder(PREFIX + "quarantined").tag("pipeline", pipeline).register(registry).increment();
+	}
+
+	private Timer timer(String component) {
+		return Timer.builder(PREFIX + "duration").tag("pipeline", pipeline).tag("component", simpleName(component))
+				.publishPercentiles(0.5, 0.95).publishPercentileHistogram().register(registry);
+	}
+
+	/**
+	 * @return throughput of this run and the latencies of each component
+	 */
+	String summary() {
+		double seconds = (System.nanoTime() - started) / 1e9;
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.ROOT, "Pipeline %s: %.0f documents in %.1f s (%.2f documents/s, %.0f tokens/s)",
+				pipeline, documents.count(), seconds, documents.count() / seconds, tokens.count() / seconds));
+
+		HistogramSnapshot size = casSize.takeSnapshot();
+		sb.append(String.format(Locale.ROOT, ", CAS size mean %.1f MB, max %.1f MB", size.mean() / 1e6,
+				size.max() / 1e6));
+
+		List<Timer> timers = new ArrayList<>(local.find(PREFIX + "duration").timers());
+		timers.sort((a, b) -> Double.compare(b.totalTime(TimeUnit.MILLISECONDS), a.totalTime(TimeUnit.MILLISECONDS)));
+		for (Timer timer : timers) {
+			HistogramSnapshot snapshot = timer.takeSnapshot();
+			sb.append(String.format(Locale.ROOT, "%n  %-40s %6d calls, total %8.1f s, mean %8.1f ms",
+					timer.getId().getTag("component"), snapshot.count(), snapshot.total(TimeUnit.SECONDS),
+					snapshot.mean(TimeUnit.MILLISECONDS)));
+			for (ValueAtPercentile percentile : snapshot.percentileValues()) {
+				sb.append(String.format(Locale.ROOT, ", p%.0f %8.1f ms", percentile.percentile() * 100,
+						percentile.value(TimeUnit.MILLISECONDS)));
+			}
+			sb.append(String.format(Locale.ROOT, ", max %8.1f ms", snapshot.max(TimeUnit.MILLISECONDS)));
+		}
+		for (Counter duplicates : local.find(PREFIX + "duplicates").counters()) {
+			sb.append(String.format(Locale.ROOT, "%n  %s near-duplicate documents skipped", (long) duplicates.count()));
+		}
+		for (Counter quarantined : local.find(PREFIX + "quarantined").counters()) {
+			sb.append(String.format(Locale.ROOT, "%n  %s documents quarantined", (long) quarantined.count()));
+		}
+		for (Counter failures : local.find(PREFIX + "failures").counters()) {
+			sb.append(String.format(Locale.ROOT, "%n  %s failures in %s", (long) failures.count(),
+					failures.getId().getTag("component")));
+		}
+		return sb.toString();
+	}
+
+	private static String simpleName(String component) {
+		if (component == null) {
+			return "unnamed";
+		}
+		// descriptors created from a class are named after it
+		return component.contains(" ") ? component : component.substring(component.lastIndexOf('.') + 1);
+	}
+}
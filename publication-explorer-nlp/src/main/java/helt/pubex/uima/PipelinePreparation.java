@@ -1,23 +1,12 @@
 package helt.pubex.uima;
 
-import de.tudarmstadt.ukp.dkpro.core.api.io.JCasFileWriter_ImplBase;
-import de.tudarmstadt.ukp.dkpro.core.api.io.ResourceCollectionReaderBase;
 import de.tudarmstadt.ukp.dkpro.core.api.lexmorph.type.pos.POS_NOUN;
-import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Paragraph;
-import de.tudarmstadt.ukp.dkpro.core.io.pdf.PdfReader;
-import de.tudarmstadt.ukp.dkpro.core.io.text.TextReader;
-import de.tudarmstadt.ukp.dkpro.core.mallet.MalletModelTrainer;
 import de.tudarmstadt.ukp.dkpro.core.mallet.lda.MalletLdaTopicModelInferencer;
-import de.tudarmstadt.ukp.dkpro.core.mallet.lda.MalletLdaTopicModelTrainer;
-import de.tudarmstadt.ukp.dkpro.core.opennlp.OpenNlpSegmenter;
 import de.tudarmstadt.ukp.dkpro.core.stanfordnlp.StanfordNamedEntityRecognizer;
 import de.tudarmstadt.ukp.dkpro.core.stanfordnlp.StanfordPosTagger;
-import de.tudarmstadt.ukp.dkpro.core.stanfordnlp.StanfordSegmenter;
 import org.apache.uima.UIMAException;
 import org.apache.uima.analysis_engine.AnalysisEngineDescription;
 import org.apache.uima.collection.CollectionReaderDescription;
-import org.apache.uima.fit.pipeline.JCasIterable;
-import org.apache.uima.fit.pipeline.SimplePipeline;
 import org.apache.uima.jcas.JCas;
 import org.apache.uima.resource.ResourceInitializationException;
 import org.slf4j.Logger;
@@ -25,12 +14,15 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 
 import static org.apache.uima.fit.factory.AnalysisEngineFactory.createEngineDescription;
 import static org.apache.uima.fit.factory.CollectionReaderFactory.createReaderDescription;
@@ -40,6 +32,16 @@ class PipelinePreparation {
 	private Path dir;
 	private Boolean runInTrainingMode;
 	private String language = "en";
+	private int parallelism = 1;
+	private Path cacheDirectory;
+	private AnnotationCache annotationCache;
+	private PipelineMetrics metrics;
+	private TopicModelTrainer topicModelTrainer;
+	private boolean updateTopicModel = false;
+	private Segmenter segmenter;
+	private NearDuplicates nearDuplicates;
+	private DocumentBudget budget = new DocumentBudget();
+	private Quarantine quarantine;
 
 	public PipelinePreparation(Path dir, boolean runInTrainingMode, String language) {
 		this(dir, runInTrainingMode);
@@ -56,6 +58,90 @@ class PipelinePreparation {
 		return runInTrainingMode;
 	}
 
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Number of replicated annotator chains used by {@link #getPipelineIterator()}.
+	 * The LDA stage is not replicated.
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	public Path getCacheDirectory() {
+		return cacheDirectory;
+	}
+
+	/**
+	 * Directory of the {@link AnnotationCache}, or null to annotate every
+	 * document on every run.
+	 */
+	public void setCacheDirectory(Path cacheDirectory) {
+		this.cacheDirectory = cacheDirectory;
+	}
+
+	/**
+	 * @param metrics receives the timings of the pipelines created by
+	 *                {@link #getPipelineIterator()}, may be null
+	 */
+	void setMetrics(PipelineMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Trainer used in training mode, by default one with the default settings.
+	 */
+	public void setTopicModelTrainer(TopicModelTrainer topicModelTrainer) {
+		this.topicModelTrainer = topicModelTrainer;
+	}
+
+	/**
+	 * In training mode, fold the documents into the existing topic model instead
+	 * of retraining it. Without a model, it is trained as usual.
+	 */
+	public void setUpdateTopicModel(boolean updateTopicModel) {
+		this.updateTopicModel = updateTopicModel;
+	}
+
+	public Segmenter getSegmenter() {
+		return segmenter;
+	}
+
+	/**
+	 * Segmenter of the annotator chain, or null to choose it by language with
+	 * {@link Segmenter#forLanguage(String)}.
+	 */
+	public void setSegmenter(Segmenter segmenter) {
+		this.segmenter = segmenter;
+	}
+
+	/**
+	 * Skips documents which are near-duplicates of earlier ones before annotating
+	 * them, and leaves repeated paragraphs out of topic model training. May be
+	 * null.
+	 */
+	public void setNearDuplicates(NearDuplicates nearDuplicates) {
+		this.nearDuplicates = nearDuplicates;
+	}
+
+	/**
+	 * Limits on the size and time of a document. Documents over budget are only
+	 * skipped if a {@link #setQuarantine(Quarantine) quarantine} is set.
+	 */
+	public void setBudget(DocumentBudget budget) {
+		this.budget = (budget == null) ? new DocumentBudget() : budget;
+	}
+
+	/**
+	 * Receives the documents which exceed the budget or cannot be read; they are
+	 * skipped and the run continues. Without one, such a document fails the run.
+	 */
+	public void setQuarantine(Quarantine quarantine) {
+		this.quarantine = quarantine;
+	}
+
 	public void runPipeline() throws IOException, UIMAException {
 		for (JCas jCas : getPipelineIterator()) {
 			// No need to do anything. Just iterate over the documents.
@@ -63,9 +149,11 @@ class PipelinePreparation {
 		}
 	}
 
-	public JCasIterable getPipelineIterator() throws IOException, ResourceInitializationException {
+	public Iterable<JCas> getPipelineIterator() throws IOException, ResourceInitializationException {
 		// if the topic model doesnt exist, then we need to run it first.
 		File topicModelLocation = new File("data/models/model.mallet");
+		Path corpusLocation = Paths.get("data/models/corpus.tokens");
+		boolean update = false;
 		if (!topicModelLocation.exists() && !topicModelLocation.canRead()) {
 			this.runInTrainingMode = true;
 			LOG.info("\n============================================\n"
@@ -73,6 +161,12 @@ class PipelinePreparation {
 					+ "Resulting model location: \n"
 					+ topicModelLocation.getCanonicalPath() 
 					+ "\n============================================");
+		} else if (runInTrainingMode && updateTopicModel) {
+			update = true;
+			LOG.info("\n============================================\n"
+					+ "Folding new documents into topic model:\n"
+					+ topicModelLocation.getCanonicalPath()
+					+ "\n============================================");
 		} else {
 			LOG.info("\n============================================\n" 
 					+ "Using existing topic model:\n"
@@ -81,23 +175,17 @@ class PipelinePreparation {
 
 		}
 
-		CollectionReaderDescription crd = inferReader(dir);
 		AnalysisEngineDescription tokenizer = buildTokenizer(Optional.of(language));
 
 		AnalysisEngineDescription posTagger = createEngineDescription(StanfordPosTagger.class);
 		AnalysisEngineDescription nerTagger = createEngineDescription(StanfordNamedEntityRecognizer.class);
+		AnalysisEngineDescription annotators = createEngineDescription(tokenizer, posTagger, nerTagger);
 
-		/**
-		 * Training happens on POS_NOUNs only, i.e. only on the noun-tagged words (which
-		 * MIGHT resemble the keywords)... This is a deliberate decision which has quite
-		 * some impact on the quality of the LDA.
-		 */
-		AnalysisEngineDescription ldaTrainer = createEngineDescription(MalletLdaTopicModelTrainer.class,
-				JCasFileWriter_ImplBase.PARAM_TARGET_LOCATION, topicModelLocation,
-				MalletModelTrainer.PARAM_LOWERCASE, true,
-				JCasFileWriter_ImplBase.PARAM_OVERWRITE, true, MalletModelTrainer.PARAM_TOKEN_FEATURE_PATH,
-				POS_NOUN.class, MalletLdaTopicModelTrainer.PARAM_DISPLAY_N_TOPIC_WORDS, 30,
-				MalletModelTrainer.PARAM_COVERING_ANNOTATION_TYPE, Paragraph.class);
+		annotationCache = null;
+		if (cacheDirectory != null) {
+			annotationCache = new AnnotationCache(cacheDirectory, AnnotationCache.fingerprint(annotators, language));
+		}
+		CollectionReaderDescription crd = inferReader(dir);
 
 		/**
 		 * Inferencing happens on POS_NOUNs only, too.
@@ -107,71 +195,138 @@ class PipelinePreparation {
 				MalletLdaTopicModelInferencer.PARAM_TYPE_NAME, POS_NOUN.class,
 				MalletLdaTopicModelInferencer.PARAM_LOWERCASE, true);
 
-		JCasIterable iterator = SimplePipeline.iteratePipeline(crd, tokenizer, posTagger, nerTagger,
-				(runInTrainingMode) ? ldaTrainer : ldaInferencer);
-		return iterator;
+		ParallelPipeline pipeline = new ParallelPipeline(crd, annotators, (runInTrainingMode) ? null : ldaInferencer,
+				parallelism);
+		pipeline.setCache(annotationCache);
+		pipeline.setMetrics(metrics);
+		pipeline.setModelRegistry(ModelRegistry.shared(), language);
+		pipeline.setNearDuplicates(nearDuplicates);
+		pipeline.setBudget(budget);
+		pipeline.setQuarantine(quarantine);
+		if (!runInTrainingMode) {
+			return pipeline;
+		}
+		TopicModelTrainer trainer = (topicModelTrainer == null) ? new TopicModelTrainer() : topicModelTrainer;
+		trainer.setNearDuplicates(nearDuplicates);
+		boolean updateModel = update;
+		return () -> new TrainingIterator(pipeline.iterator(), trainer, topicModelLocation, corpusLocation,
+				updateModel);
 	}
 
-	private AnalysisEngineDescription buildTokenizer(Optional<String> language) throws ResourceInitializationException {
+	/**
+	 * Passes the documents on to the trainer. Once the last document has been
+	 * returned, the collected paragraphs are written as a token corpus and the
+	 * topic model is trained or updated.
+	 */
+	private static class TrainingIterator implements Iterator<JCas> {
+		private final Iterator<JCas> documents;
+		private final TopicModelTrainer trainer;
+		private final File modelLocation;
+		private final Path corpusLocation;
+		private final boolean update;
+		private boolean trained = false;
 
-		switch (language.orElse(this.language)) {
-		case "ar":
-		case "en":
-		case "fr":
-		case "es":
-			return createEngineDescription(StanfordSegmenter.class);
-		default:
-			return createEngineDescription(OpenNlpSegmenter.class);
+		TrainingIterator(Iterator<JCas> documents, TopicModelTrainer trainer, File modelLocation,
+				Path corpusLocation, boolean update) {
+			this.documents = documents;
+			this.trainer = trainer;
+			this.modelLocation = modelLocation;
+			this.corpusLocation = corpusLocation;
+			this.update = update;
 		}
+
+		@Override
+		public boolean hasNext() {
+			if (documents.hasNext()) {
+				return true;
+			}
+			if (!trained) {
+				trained = true;
+				try {
+					trainer.writeCorpus(corpusLocation);
+					if (update) {
+						trainer.update(modelLocation);
+					} else {
+						trainer.train(modelLocation);
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public JCas next() {
+			JCas jcas = documents.next();
+			trainer.add(jcas);
+			return jcas;
+		}
+	}
+
+	private AnalysisEngineDescription buildTokenizer(Optional<String> language) throws ResourceInitializationException {
+		Segmenter chosen = (segmenter == null) ? Segmenter.forLanguage(language.orElse(this.language)) : segmenter;
+		LOG.info("Segmenting with {}", chosen);
+		return chosen.createDescription();
 	}
 
 	/**
-	 * Do a majority voting on the files to be parsed, as uimafit pipelines can have
-	 * only ONE type of reader.
-	 * 
-	 * @param directory
-	 * @return
-	 * @throws IOException
-	 * @throws ResourceInitializationException
+	 * Reads the PDF and text files below the directory together. The files are
+	 * listed with the {@link InputManifest}, which is kept next to the annotation
+	 * cache.
 	 */
 	private CollectionReaderDescription inferReader(Path directory)
 			throws IOException, ResourceInitializationException {
+		Path manifestLocation = null;
+		if (cacheDirectory != null) {
+			String key = AnnotationCache.fingerprint(directory.toAbsolutePath().normalize());
+			manifestLocation = cacheDirectory.resolve("manifests").resolve(key + ".tsv");
+		}
+		InputManifest manifest = InputManifest.scan(directory, manifestLocation,
+				Math.max(parallelism, Runtime.getRuntime().availableProcessors()));
+		List<Path> pdfs = manifest.files(InputManifest.PDF);
+		List<Path> texts = manifest.files(InputManifest.TEXT);
 
-		List<String> fileEnding = new ArrayList<>();
-
-		FileVisitor<Path> visitor = new SimpleFileVisitor<Path>() {
-			@Override
-			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-				if (Files.isRegularFile(file)) {
-
-					if (file.getFileName().endsWith("pdf")) {
-						fileEnding.add("application/pdf");
-					} else if (file.getFileName().endsWith("txt")) {
-						fileEnding.add("test/pain");
-					} else {
-						fileEnding.add(Files.probeContentType(file));
+		if (annotationCache != null) {
+			List<Path> files = new ArrayList<>(pdfs);
+			files.addAll(texts);
+			Set<Path> misses = new HashSet<>(annotationCache.partition(directory, files));
+			pdfs.retainAll(misses);
+			texts.retainAll(misses);
+		}
+		if (quarantine != null && budget.getMaxBytes() > 0) {
+			Set<Path> selected = new HashSet<>(pdfs);
+			selected.addAll(texts);
+			Set<Path> oversized = new HashSet<>();
+			for (InputManifest.Entry entry : manifest.getEntries()) {
+				Path file = directory.resolve(entry.getPath());
+				if (entry.getSize() > budget.getMaxBytes() && selected.contains(file)) {
+					oversized.add(file);
+					quarantine.add(file.toUri().toString(),
+							entry.getSize() + " bytes exceed the budget of " + budget.getMaxBytes());
+					if (metrics != null) {
+						metrics.recordQuarantine();
 					}
 				}
-
-				return super.visitFile(file, attrs);
 			}
-		};
-		Files.walkFileTree(directory, visitor);
-
-		long arAllPdf = fileEnding.stream().filter(x -> Objects.equals(x, "application/pdf")).count();
-		long areAllText = fileEnding.stream().filter(x -> Objects.equals(x, "text/plain")).count();
-
-		if (arAllPdf > areAllText) {
-			LOG.info("Using PdfReader");
-			return createReaderDescription(PdfReader.class, ResourceCollectionReaderBase.PARAM_LANGUAGE, language,
-					ResourceCollectionReaderBase.PARAM_SOURCE_LOCATION, directory.toString(),
-					ResourceCollectionReaderBase.PARAM_PATTERNS, "[+]/**/*.pdf");
-		} else {
-			LOG.info("Using TextReader");
-			return createReaderDescription(TextReader.class, ResourceCollectionReaderBase.PARAM_LANGUAGE, language,
-					ResourceCollectionReaderBase.PARAM_SOURCE_LOCATION, directory.toString(),
-					ResourceCollectionReaderBase.PARAM_PATTERNS, "[+]/**/*.txt");
+			pdfs.removeIf(oversized::contains);
+			texts.removeIf(oversized::contains);
 		}
+		LOG.info("Reading {} PDF and {} text files", pdfs.size(), texts.size());
+		return createReaderDescription(MixedFormatReader.class, MixedFormatReader.PARAM_LANGUAGE, language,
+				MixedFormatReader.PARAM_SOURCE_LOCATION, directory.toString(),
+				MixedFormatReader.PARAM_PDF_PATTERNS, patterns(directory, pdfs),
+				MixedFormatReader.PARAM_TEXT_PATTERNS, patterns(directory, texts),
+				MixedFormatReader.PARAM_MAX_PDF_MILLIS, (quarantine == null) ? 0L : budget.getMaxMillis());
+	}
+
+	/**
+	 * @return include patterns which select exactly the files
+	 */
+	private static String[] patterns(Path directory, List<Path> files) {
+		return files.stream()
+				.map(file -> "[+]/" + directory.relativize(file).toString().replace(File.separatorChar, '/'))
+				.toArray(String[]::new);
 	}
 
 }
@@ -0,0 +1,76 @@
+package helt.pubex.uima;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Manifest of the documents which were cancelled during a run, e.g. because
+ * they exceeded their {@link DocumentBudget}, one tab separated line per
+ * document with the document and the reason. The file is replaced on every
+ * run and written as documents are cancelled, so it is complete up to the
+ * moment a run is killed.
+ *
+ * Thread-safe.
+ */
+public class Quarantine implements Closeable {
+	private static final Logger LOG = LoggerFactory.getLogger(Quarantine.class);
+
+	private final Path location;
+	private BufferedWriter writer;
+	private int size = 0;
+
+	public Quarantine(Path location) throws IOException {
+		this.location = location;
+		Files.createDirectories(location.toAbsolutePath().getParent());
+		writer = Files.newBufferedWriter(location, StandardCharsets.UTF_8);
+	}
+
+	public Path getLocation() {
+		return location;
+	}
+
+	/**
+	 * @param reason why the document was skipped, may be null
+	 */
+	public synchronized void add(String document, String reason) {
+		if (reason == null) {
+			reason = "unknown reason";
+		}
+		size++;
+		LOG.warn("Quarantined {}: {}", document, reason);
+		if (writer == null) {
+			return;
+		}
+		try {
+			// the reason is a message and may span several lines
+			writer.write(document + "\t" + reason.replaceAll("\\s+", " "));
+			writer.newLine();
+			writer.flush();
+		} catch (IOException e) {
+			LOG.warn("Cannot write the quarantine manifest, it is disabled", e);
+			writer = null;
+		}
+	}
+
+	/**
+	 * @return number of documents quarantined so far
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (writer != null) {
+			writer.close();
+			writer = null;
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package helt.pubex.uima;
+
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.SegmenterBase;
+import de.tudarmstadt.ukp.dkpro.core.opennlp.OpenNlpSegmenter;
+import de.tudarmstadt.ukp.dkpro.core.stanfordnlp.StanfordSegmenter;
+import org.apache.uima.analysis_engine.AnalysisEngineDescription;
+import org.apache.uima.resource.ResourceInitializationException;
+
+import java.util.Locale;
+
+import static org.apache.uima.fit.factory.AnalysisEngineFactory.createEngineDescription;
+
+/**
+ * The segmenters a pipeline can split sentences and tokens with. The chosen
+ * segmenter is part of the pipeline description and thereby of the fingerprint
+ * of the annotation cache.
+ */
+public enum Segmenter {
+	/** Stanford CoreNLP, the most accurate and the slowest. */
+	STANFORD(StanfordSegmenter.class),
+	/** OpenNLP's maximum entropy models. */
+	OPENNLP(OpenNlpSegmenter.class),
+	/** The rule based {@link BreakIteratorSegmenter}, for bulk jobs. */
+	BREAK_ITERATOR(BreakIteratorSegmenter.class);
+
+	private final Class<? extends SegmenterBase> implementation;
+
+	Segmenter(Class<? extends SegmenterBase> implementation) {
+		this.implementation = implementation;
+	}
+
+	public Class<? extends SegmenterBase> getImplementation() {
+		return implementation;
+	}
+
+	public AnalysisEngineDescription createDescription() throws ResourceInitializationException {
+		return createEngineDescription(implementation);
+	}
+
+	/**
+	 * @return Stanford for the languages it has models for, OpenNLP otherwise
+	 */
+	public static Segmenter forLanguage(String language) {
+		switch (language) {
+		case "ar":
+		case "en":
+		case "fr":
+		case "es":
+			return STANFORD;
+		default:
+			return OPENNLP;
+		}
+	}
+
+	/**
+	 * Parses a segmenter name case-insensitively, ignoring dashes and
+	 * underscores, e.g. "opennlp" or "break-iterator".
+	 */
+	public static Segmenter parse(String name) {
+		String normalized = name.replaceAll("[-_]", "").toUpperCase(Locale.ROOT);
+		for (Segmenter segmenter : values()) {
+			if (segmenter.name().replace("_", "").equals(normalized)) {
+				return segmenter;
+			}
+		}
+		throw new IllegalArgumentException("Unknown segmenter " + name);
+	}
+}
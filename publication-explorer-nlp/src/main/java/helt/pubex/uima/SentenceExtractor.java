@@ -1,51 +1,201 @@
 package helt.pubex.uima;
 
 import de.tudarmstadt.ukp.dkpro.core.api.io.ResourceCollectionReaderBase;
+import de.tudarmstadt.ukp.dkpro.core.api.metadata.type.DocumentMetaData;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Paragraph;
 import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Sentence;
-import de.tudarmstadt.ukp.dkpro.core.io.pdf.PdfReader;
-import de.tudarmstadt.ukp.dkpro.core.opennlp.OpenNlpSegmenter;
-import org.apache.uima.fit.pipeline.JCasIterable;
-import org.apache.uima.fit.pipeline.SimplePipeline;
 import org.apache.uima.fit.util.JCasUtil;
 import org.apache.uima.jcas.JCas;
 import org.apache.uima.resource.ResourceInitializationException;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Objects;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import static org.apache.uima.fit.factory.AnalysisEngineFactory.createEngineDescription;
 import static org.apache.uima.fit.factory.CollectionReaderFactory.createReaderDescription;
 
 public class SentenceExtractor {
     private final Path input;
+    private final PipelineMetrics metrics = new PipelineMetrics("sentences", PipelineMetrics.jmx());
+    private Segmenter segmenter = Segmenter.OPENNLP;
+    private NearDuplicates nearDuplicates;
+
+    /**
+     * Receives the sentences of one document.
+     */
+    @FunctionalInterface
+    public interface DocumentSentences {
+        void accept(String documentUri, Iterator<Line> sentences) throws IOException;
+    }
+
+    /**
+     * A sentence on a single line, with the index of the paragraph it starts in.
+     */
+    public static class Line {
+        private final int paragraph;
+        private final String text;
+
+        Line(int paragraph, String text) {
+            this.paragraph = paragraph;
+            this.text = text;
+        }
+
+        /**
+         * @return index of the paragraph among the paragraphs of the document, or
+         *         -1 if the sentence starts outside of all paragraphs
+         */
+        public int getParagraph() {
+            return paragraph;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
 
     public SentenceExtractor(Path input) {
         this.input = Objects.requireNonNull(input);
 
     }
 
-    public Stream<String> run() throws ResourceInitializationException {
+    public Segmenter getSegmenter() {
+        return segmenter;
+    }
 
-        JCasIterable jCasIterable = SimplePipeline.iteratePipeline(
-                createReaderDescription(PdfReader.class,
-                        ResourceCollectionReaderBase.PARAM_LANGUAGE, "en",
-                        ResourceCollectionReaderBase.PARAM_SOURCE_LOCATION, input.toString(),
-                        ResourceCollectionReaderBase.PARAM_PATTERNS, "[+]/*.pdf"),
-                createEngineDescription(OpenNlpSegmenter.class)
-        );
+    /**
+     * Segmenter splitting the documents into sentences, by default OpenNLP.
+     */
+    public void setSegmenter(Segmenter segmenter) {
+        this.segmenter = Objects.requireNonNull(segmenter);
+    }
+
+    /**
+     * Skips documents which are near-duplicates of earlier ones before segmenting
+     * them, and leaves out the sentences of repeated paragraphs. The detector may
+     * be shared by extractions running in parallel. May be null.
+     */
+    public void setNearDuplicates(NearDuplicates nearDuplicates) {
+        this.nearDuplicates = nearDuplicates;
+    }
+
+    /**
+     * @return throughput and per-component latencies of all pipelines this
+     *         extractor has run so far
+     */
+    public String metricsSummary() {
+        return metrics.summary();
+    }
 
-        Stream.Builder<String> builder = Stream.builder();
-        for (JCas cas : jCasIterable) {
-            Collection<Sentence> select = JCasUtil.select(cas, Sentence.class);
+    /**
+     * @return the PDF documents of the input directory, in reader order
+     */
+    public List<Path> listDocuments() throws IOException {
+        try (Stream<Path> files = Files.list(input)) {
+            return files.filter(Files::isRegularFile)
+                    .filter(p -> p.getFileName().toString().endsWith(".pdf"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Segments the given documents, which must be located in the input directory,
+     * and hands the sentences of each document to the consumer, in reader order.
+     * Each call runs its own pipeline, so calls may run in parallel.
+     */
+    public void extract(List<Path> documents, DocumentSentences consumer)
+            throws ResourceInitializationException, IOException {
+        if (documents.isEmpty()) {
+            return;
+        }
+
+        String[] patterns = documents.stream()
+                .map(document -> "[+]/" + input.relativize(document).toString().replace(File.separatorChar, '/'))
+                .toArray(String[]::new);
+        SerialPipeline pipeline = iteratePipeline(patterns);
+        try {
+            while (pipeline.hasNext()) {
+                JCas cas = pipeline.next();
+                consumer.accept(DocumentMetaData.get(cas).getDocumentUri(), sentences(cas).iterator());
+            }
+        } finally {
+            pipeline.destroy();
+        }
+    }
+
+    /**
+     * @return the sentences of the document on single lines, without those
+     *         starting in a repeated paragraph
+     */
+    private Stream<Line> sentences(JCas cas) {
+        List<Paragraph> paragraphs = new ArrayList<>(JCasUtil.select(cas, Paragraph.class));
+        int[] begins = new int[paragraphs.size()];
+        int[] ends = new int[paragraphs.size()];
+        for (int p = 0; p < begins.length; p++) {
+            begins[p] = paragraphs.get(p).getBegin();
+            ends[p] = paragraphs.get(p).getEnd();
+        }
+        String document = NearDuplicates.documentName(cas);
+        boolean filter = nearDuplicates != null && nearDuplicates.hasDuplicateParagraphs(document);
 
-            select.stream()
-                    .map(Sentence::getCoveredText)
-                    .map(x -> x.replaceAll("\\s", " "))
-                    .forEach(builder::add);
+        Stream<Line> lines = JCasUtil.select(cas, Sentence.class).stream()
+                .map(sentence -> new Line(paragraph(begins, ends, sentence.getBegin()),
+                        toSingleLine(sentence.getCoveredText())));
+        if (filter) {
+            lines = lines.filter(line -> line.getParagraph() < 0
+                    || !nearDuplicates.isDuplicateParagraph(document, line.getParagraph()));
         }
+        return lines;
+    }
 
-        return builder.build();
+    /**
+     * @return the index of the paragraph containing the offset, or -1
+     */
+    private static int paragraph(int[] begins, int[] ends, int offset) {
+        // paragraphs are in index order, i.e. sorted by begin
+        int p = Arrays.binarySearch(begins, offset);
+        if (p < 0) {
+            p = -p - 2;
+        }
+        return (p >= 0 && offset < ends[p]) ? p : -1;
+    }
+
+    private SerialPipeline iteratePipeline(String... patterns) throws ResourceInitializationException {
+        SerialPipeline pipeline = new SerialPipeline(
+                createReaderDescription(ParallelPdfReader.class,
+                        ResourceCollectionReaderBase.PARAM_LANGUAGE, "en",
+                        ResourceCollectionReaderBase.PARAM_SOURCE_LOCATION, input.toString(),
+                        ResourceCollectionReaderBase.PARAM_PATTERNS, patterns),
+                segmenter.createDescription(),
+                metrics);
+        pipeline.setNearDuplicates(nearDuplicates);
+        return pipeline;
+    }
+
+    /**
+     * Replaces each whitespace character (as matched by the regex {@code \s}) by a
+     * blank, so that a sentence fits on one line. Returns the argument itself if
+     * there is nothing to replace.
+     */
+    static String toSingleLine(String text) {
+        char[] chars = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r') {
+                if (chars == null) {
+                    chars = text.toCharArray();
+                }
+                chars[i] = ' ';
+            }
+        }
+        return (chars == null) ? text : new String(chars);
     }
 }
@@ -0,0 +1,117 @@
+package helt.pubex.uima;
+
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.analysis_engine.AnalysisEngineDescription;
+import org.apache.uima.cas.CASException;
+import org.apache.uima.collection.CollectionReader;
+import org.apache.uima.collection.CollectionReaderDescription;
+import org.apache.uima.fit.factory.AnalysisEngineFactory;
+import org.apache.uima.fit.factory.CollectionReaderFactory;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.util.CasCreationUtils;
+import org.apache.uima.util.ProcessTrace;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Single-threaded pipeline which iterates like uimaFIT's
+ * {@link org.apache.uima.fit.pipeline.JCasIterator} with self-destroy disabled,
+ * but reports the timings of the reader and the annotators to
+ * {@link PipelineMetrics}, and skips documents which {@link NearDuplicates}
+ * reports as near-duplicates before annotating them.
+ */
+class SerialPipeline implements Iterator<JCas> {
+    private final CollectionReader reader;
+    private final AnalysisEngine engine;
+    private final PipelineMetrics metrics;
+    private final String readerName;
+    private final JCas jcas;
+    private NearDuplicates nearDuplicates;
+    private boolean loaded = false;
+
+    SerialPipeline(CollectionReaderDescription readerDescription, AnalysisEngineDescription engineDescription,
+            PipelineMetrics metrics) throws ResourceInitializationException {
+        this.metrics = metrics;
+        reader = CollectionReaderFactory.createReader(readerDescription);
+        engine = AnalysisEngineFactory.createEngine(engineDescription);
+        readerName = reader.getMetaData().getName();
+        try {
+            jcas = CasCreationUtils.createCas(Arrays.asList(reader.getProcessingResourceMetaData(),
+                    engine.getProcessingResourceMetaData())).getJCas();
+        } catch (CASException e) {
+            throw new ResourceInitializationException(e);
+        }
+        reader.typeSystemInit(jcas.getTypeSystem());
+    }
+
+    /**
+     * @param nearDuplicates checks every document before it is annotated. May be
+     *                       null.
+     */
+    void setNearDuplicates(NearDuplicates nearDuplicates) {
+        this.nearDuplicates = nearDuplicates;
+    }
+
+    /**
+     * Reads ahead to the next document which is not a near-duplicate.
+     */
+    @Override
+    public boolean hasNext() {
+        try {
+            while (!loaded && reader.hasNext()) {
+                jcas.reset();
+                long start = System.nanoTime();
+                try {
+                    reader.getNext(jcas.getCas());
+                } catch (Exception e) {
+                    metrics.recordFailure(readerName);
+                    throw e;
+                }
+                metrics.recordRead(readerName, System.nanoTime() - start);
+                if (nearDuplicates != null && nearDuplicates.isDuplicate(jcas)) {
+                    metrics.recordDuplicate();
+                } else {
+                    loaded = true;
+                }
+            }
+            return loaded;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Annotates the next document. The returned CAS is reused for the following
+     * document.
+     */
+    @Override
+    public JCas next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        loaded = false;
+        try {
+            ProcessTrace trace = engine.process(jcas);
+            metrics.recordTrace(trace);
+        } catch (Exception e) {
+            metrics.recordFailure(engine.getMetaData().getName());
+            throw new IllegalStateException(e);
+        }
+        metrics.recordDocument(jcas.getCas());
+        return jcas;
+    }
+
+    void destroy() {
+        try {
+            engine.collectionProcessComplete();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        } finally {
+            engine.destroy();
+            reader.destroy();
+        }
+    }
+}
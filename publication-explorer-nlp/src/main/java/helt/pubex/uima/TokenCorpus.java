@@ -0,0 +1,195 @@
+package helt.pubex.uima;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static helt.pubex.io.VarInts.readVarInt;
+import static helt.pubex.io.VarInts.writeVarInt;
+
+/**
+ * The lowercased nouns of every paragraph, as the topic model consumes them,
+ * stored integer-encoded in one file, so that the topic model can be trained,
+ * updated and applied without running the NLP pipeline again.
+ *
+ * The file starts with a magic number, a format version and the vocabulary.
+ * It is followed by a tagged record for every document, holding its name,
+ * and for every paragraph, holding its index within the document and its word
+ * ids. All numbers are variable-length encoded. A zero tag ends the file, so
+ * that a truncated file is noticed.
+ */
+public class TokenCorpus implements Closeable {
+	private static final int MAGIC = 0x50585443;
+	private static final int FORMAT = 1;
+	private static final int END = 0;
+	private static final int DOCUMENT = 1;
+	private static final int PARAGRAPH = 2;
+
+	private final Path location;
+	private final DataInputStream in;
+	private final List<String> vocabulary;
+
+	/**
+	 * Receives the paragraphs of a corpus in the order in which they were
+	 * written.
+	 */
+	public interface ParagraphConsumer {
+		void accept(String document, int paragraph, int[] words);
+	}
+
+	private TokenCorpus(Path location) throws IOException {
+		this.location = location;
+		this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(location), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(location + " is not a token corpus");
+			}
+			int format = readVarInt(in);
+			if (format != FORMAT) {
+				throw new IOException("Unsupported format " + format + " of token corpus " + location);
+			}
+			int size = readVarInt(in);
+			List<String> words = new ArrayList<>(size);
+			for (int i = 0; i < size; i++) {
+				words.add(in.readUTF());
+			}
+			this.vocabulary = Collections.unmodifiableList(words);
+		} catch (IOException | RuntimeException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens the corpus and reads its vocabulary. The paragraphs are read by
+	 * {@link #forEach(ParagraphConsumer)}.
+	 */
+	public static TokenCorpus open(Path location) throws IOException {
+		return new TokenCorpus(location);
+	}
+
+	/**
+	 * @return a writer of a corpus with the vocabulary; the corpus replaces the
+	 *         file at the location once the writer is committed
+	 */
+	public static Writer writer(Path location, List<String> vocabulary) throws IOException {
+		return new Writer(location, vocabulary);
+	}
+
+	/**
+	 * @return the words, indexed by their id
+	 */
+	public List<String> getVocabulary() {
+		return vocabulary;
+	}
+
+	/**
+	 * Reads all paragraphs. Can be called once per opened corpus.
+	 */
+	public void forEach(ParagraphConsumer consumer) throws IOException {
+		String document = null;
+		try {
+			for (int tag = in.readByte(); tag != END; tag = in.readByte()) {
+				if (tag == DOCUMENT) {
+					document = in.readUTF();
+				} else if (tag == PARAGRAPH && document != null) {
+					int paragraph = readVarInt(in);
+					int[] words = new int[readVarInt(in)];
+					for (int i = 0; i < words.length; i++) {
+						words[i] = readVarInt(in);
+						if (words[i] >= vocabulary.size()) {
+							throw new IOException("Word id " + words[i] + " out of the vocabulary of " + location);
+						}
+					}
+					consumer.accept(document, paragraph, words);
+				} else {
+					throw new IOException("Corrupt token corpus " + location);
+				}
+			}
+		} catch (EOFException e) {
+			throw new IOException("Truncated token corpus " + location, e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Writes a corpus to a temporary file, which is moved to the location when
+	 * the writer is committed and deleted if it is closed without.
+	 */
+	public static class Writer implements Closeable {
+		private final Path location;
+		private final Path temp;
+		private final DataOutputStream out;
+		private final int vocabularySize;
+		private String document;
+		private boolean committed = false;
+
+		private Writer(Path location, List<String> vocabulary) throws IOException {
+			this.location = location;
+			Path parent = location.toAbsolutePath().getParent();
+			Files.createDirectories(parent);
+			this.temp = Files.createTempFile(parent, location.getFileName().toString(), ".tmp");
+			this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16));
+			this.vocabularySize = vocabulary.size();
+			out.writeInt(MAGIC);
+			writeVarInt(out, FORMAT);
+			writeVarInt(out, vocabulary.size());
+			for (String word : vocabulary) {
+				out.writeUTF(word);
+			}
+		}
+
+		/**
+		 * Adds a paragraph. The paragraphs of a document should be added one
+		 * after the other, the document name is written again otherwise.
+		 */
+		public void add(String document, int paragraph, int[] words) throws IOException {
+			if (!document.equals(this.document)) {
+				out.writeByte(DOCUMENT);
+				out.writeUTF(document);
+				this.document = document;
+			}
+			out.writeByte(PARAGRAPH);
+			writeVarInt(out, paragraph);
+			writeVarInt(out, words.length);
+			for (int word : words) {
+				if (word < 0 || word >= vocabularySize) {
+					throw new IllegalArgumentException("Word id " + word + " out of the vocabulary");
+				}
+				writeVarInt(out, word);
+			}
+		}
+
+		/**
+		 * Finishes the corpus and moves it to its location.
+		 */
+		public void commit() throws IOException {
+			out.writeByte(END);
+			out.close();
+			Files.move(temp, location, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			committed = true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!committed) {
+				out.close();
+				Files.deleteIfExists(temp);
+			}
+		}
+	}
+}
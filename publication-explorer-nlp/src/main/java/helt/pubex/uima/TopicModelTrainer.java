@@ -0,0 +1,545 @@
+package helt.pubex.uima;
+
+import cc.mallet.topics.ParallelTopicModel;
+import cc.mallet.topics.TopicAssignment;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.LabelSequence;
+import de.tudarmstadt.ukp.dkpro.core.api.lexmorph.type.pos.POS_NOUN;
+import de.tudarmstadt.ukp.dkpro.core.api.metadata.type.DocumentMetaData;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Paragraph;
+import org.apache.uima.fit.util.JCasUtil;
+import org.apache.uima.jcas.JCas;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Trains the LDA topic model with Mallet's multi-threaded
+ * {@link ParallelTopicModel}.
+ *
+ * The nouns of every paragraph are collected as one feature sequence while the
+ * documents pass by, and the model is estimated once all of them are known.
+ * Estimation runs one iteration at a time, so that the log-likelihood per token
+ * can be reported after every iteration and hyperparameters are optimized at
+ * the same iterations as in a single run. Every checkpoint interval the model
+ * is written to a checkpoint directory next to the model file; a later run on
+ * the same corpus resumes from the latest checkpoint. The collected paragraphs
+ * can be written as a {@link TokenCorpus} and read back instead of running the
+ * pipeline again.
+ *
+ * Newly arriving documents can be folded into an existing model instead: their
+ * paragraphs are sampled against the frozen topic counts of the model and then
+ * added to it. Every model written is kept as a numbered version next to the
+ * model file, which is replaced atomically.
+ */
+public class TopicModelTrainer {
+	private static final Logger LOG = LoggerFactory.getLogger(TopicModelTrainer.class);
+	private static final Pattern CHECKPOINT = Pattern.compile("iteration-(\\d+)\\.mallet");
+	private static final Pattern VERSION = Pattern.compile("model-(\\d+)\\.mallet");
+
+	private final Alphabet alphabet = new Alphabet();
+	private final InstanceList instances = new InstanceList(alphabet, null);
+	private long tokens = 0;
+
+	private int numTopics = 10;
+	private int iterations = 1000;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int optimizeInterval = 50;
+	private int burninPeriod = 100;
+	private int checkpointInterval = 50;
+	private int randomSeed = -1;
+	private double alphaSum = 1.0;
+	private double beta = 0.01;
+	private int displayTopicWords = 30;
+	private int foldInIterations = 100;
+	private int keepVersions = 5;
+	private NearDuplicates nearDuplicates;
+
+	public void setNumTopics(int numTopics) {
+		this.numTopics = numTopics;
+	}
+
+	public void setIterations(int iterations) {
+		this.iterations = iterations;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Number of iterations between hyperparameter optimizations after the burn-in
+	 * period, 0 to keep the hyperparameters fixed.
+	 */
+	public void setOptimizeInterval(int optimizeInterval) {
+		this.optimizeInterval = optimizeInterval;
+	}
+
+	public void setBurninPeriod(int burninPeriod) {
+		this.burninPeriod = burninPeriod;
+	}
+
+	/**
+	 * Number of iterations between checkpoints, 0 to write none.
+	 */
+	public void setCheckpointInterval(int checkpointInterval) {
+		this.checkpointInterval = checkpointInterval;
+	}
+
+	/**
+	 * Seed of the sampler, -1 for a random one.
+	 */
+	public void setRandomSeed(int randomSeed) {
+		this.randomSeed = randomSeed;
+	}
+
+	public void setAlphaSum(double alphaSum) {
+		this.alphaSum = alphaSum;
+	}
+
+	public void setBeta(double beta) {
+		this.beta = beta;
+	}
+
+	/**
+	 * Number of sampling sweeps over each new paragraph when it is folded into an
+	 * existing model.
+	 */
+	public void setFoldInIterations(int foldInIterations) {
+		this.foldInIterations = foldInIterations;
+	}
+
+	/**
+	 * Number of model versions kept next to the model file, at least 1.
+	 */
+	public void setKeepVersions(int keepVersions) {
+		this.keepVersions = Math.max(1, keepVersions);
+	}
+
+	/**
+	 * @param nearDuplicates paragraphs it marks as repeating an earlier paragraph
+	 *                       are not added. May be null.
+	 */
+	public void setNearDuplicates(NearDuplicates nearDuplicates) {
+		this.nearDuplicates = nearDuplicates;
+	}
+
+	/**
+	 * Adds the lowercased nouns of every paragraph of the document as one
+	 * training instance, named after the document and the index of the paragraph
+	 * among all paragraphs of the document. Paragraphs without nouns are skipped,
+	 * but keep their index.
+	 */
+	public void add(JCas jcas) {
+		String document = documentName(jcas);
+		// only contains the paragraphs covering at least one noun, in no order
+		Map<Paragraph, Collection<POS_NOUN>> nouns = JCasUtil.indexCovered(jcas, Paragraph.class, POS_NOUN.class);
+		int index = -1;
+		for (Paragraph paragraph : JCasUtil.select(jcas, Paragraph.class)) {
+			index++;
+			Collection<POS_NOUN> covered = nouns.get(paragraph);
+			if (covered == null || covered.isEmpty()
+					|| (nearDuplicates != null && nearDuplicates.isDuplicateParagraph(document, index))) {
+				continue;
+			}
+			int[] features = new int[covered.size()];
+			int i = 0;
+			for (POS_NOUN noun : covered) {
+				features[i++] = alphabet.lookupIndex(noun.getCoveredText().toLowerCase(Locale.ROOT));
+			}
+			add(document, index, features);
+		}
+	}
+
+	private void add(String document, int paragraph, int[] features) {
+		instances.add(new Instance(new FeatureSequence(alphabet, features), null, document + "#" + paragraph, null));
+		tokens += features.length;
+	}
+
+	/**
+	 * Adds all paragraphs of a token corpus written by
+	 * {@link #writeCorpus(Path)}, instead of collecting them from the pipeline.
+	 */
+	public void addCorpus(Path location) throws IOException {
+		try (TokenCorpus corpus = TokenCorpus.open(location)) {
+			List<String> vocabulary = corpus.getVocabulary();
+			int[] ids = new int[vocabulary.size()];
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = alphabet.lookupIndex(vocabulary.get(i));
+			}
+			corpus.forEach((document, paragraph, words) -> {
+				for (int i = 0; i < words.length; i++) {
+					words[i] = ids[words[i]];
+				}
+				add(document, paragraph, words);
+			});
+		}
+		LOG.info("Read {} paragraphs ({} tokens, {} types) from {}", instances.size(), tokens, alphabet.size(),
+				location);
+	}
+
+	/**
+	 * Writes the paragraphs collected so far as a token corpus, which later runs
+	 * can train on without the NLP pipeline.
+	 */
+	public void writeCorpus(Path location) throws IOException {
+		List<String> vocabulary = new ArrayList<>(alphabet.size());
+		for (int i = 0; i < alphabet.size(); i++) {
+			vocabulary.add((String) alphabet.lookupObject(i));
+		}
+		try (TokenCorpus.Writer writer = TokenCorpus.writer(location, vocabulary)) {
+			for (Instance instance : instances) {
+				String name = instance.getName().toString();
+				FeatureSequence words = (FeatureSequence) instance.getData();
+				writer.add(documentOf(name), paragraphOf(name),
+						Arrays.copyOf(words.getFeatures(), words.getLength()));
+			}
+			writer.commit();
+		}
+		LOG.info("Wrote {} paragraphs to token corpus {}", instances.size(), location);
+	}
+
+	/**
+	 * @return number of paragraphs collected so far
+	 */
+	public int size() {
+		return instances.size();
+	}
+
+	/**
+	 * Estimates the model on the collected paragraphs, continuing from a
+	 * checkpoint if there is one, and writes it to the model location.
+	 */
+	public ParallelTopicModel train(File modelLocation) throws IOException {
+		if (instances.isEmpty()) {
+			throw new IllegalStateException("No paragraphs with nouns to train the topic model on");
+		}
+		Path checkpoints = new File(modelLocation.getPath() + ".checkpoints").toPath();
+		int done = 0;
+		ParallelTopicModel model = resume(checkpoints);
+		if (model == null) {
+			model = new ParallelTopicModel(numTopics, alphaSum, beta);
+			model.addInstances(instances);
+		} else {
+			done = latestCheckpoint(checkpoints);
+			LOG.info("Resuming topic model training at iteration {} of {}", done, iterations);
+		}
+		LOG.info("Training {} topics on {} paragraphs ({} tokens, {} types) with {} threads", numTopics,
+				instances.size(), tokens, alphabet.size(), threads);
+
+		// Mallet's own progress output is replaced by the log below.
+		Level level = ParallelTopicModel.logger.getLevel();
+		ParallelTopicModel.logger.setLevel(Level.WARNING);
+		try {
+			model.setNumThreads(threads);
+			model.setTopicDisplay(0, 0);
+			model.setBurninPeriod(0);
+			model.setNumIterations(1);
+			model.saveSampleInterval = 1;
+			for (int iteration = done + 1; iteration <= iterations; iteration++) {
+				// Each estimate() counts from iteration 1, so optimization is switched
+				// on for exactly those iterations where a single run would optimize.
+				boolean optimize = optimizeInterval > 0 && iteration > burninPeriod
+						&& iteration % optimizeInterval == 0;
+				model.optimizeInterval = optimize ? 1 : 0;
+				if (randomSeed != -1) {
+					model.setRandomSeed(randomSeed + iteration);
+				}
+				long start = System.currentTimeMillis();
+				model.estimate();
+				LOG.info(String.format(Locale.ROOT, "Iteration %d/%d: LL/token %.5f, %d ms%s", iteration, iterations,
+						model.modelLogLikelihood() / model.totalTokens, System.currentTimeMillis() - start,
+						optimize ? ", hyperparameters optimized" : ""));
+
+				if (checkpointInterval > 0 && iteration % checkpointInterval == 0 && iteration < iterations) {
+					writeCheckpoint(model, checkpoints, iteration);
+				}
+			}
+		} finally {
+			ParallelTopicModel.logger.setLevel(level);
+		}
+
+		LOG.info("Topics:\n{}", model.displayTopWords(displayTopicWords, false));
+		publish(model, modelLocation.toPath());
+		deleteCheckpoints(checkpoints);
+		return model;
+	}
+
+	/**
+	 * Folds the collected paragraphs of documents which the model at the model
+	 * location does not contain yet into it and publishes the result as a new
+	 * version. The topic assignments of the new paragraphs are sampled against
+	 * the counts of the existing model, which stay fixed meanwhile, and are then
+	 * added to them. Words the model does not know yet are added to its
+	 * vocabulary.
+	 *
+	 * @return the updated model
+	 */
+	public ParallelTopicModel update(File modelLocation) throws IOException {
+		ParallelTopicModel model;
+		try {
+			model = ParallelTopicModel.read(modelLocation);
+		} catch (Exception e) {
+			throw new IOException("Cannot read topic model " + modelLocation, e);
+		}
+		model.buildInitialTypeTopicCounts();
+
+		Set<String> known = new HashSet<>();
+		for (TopicAssignment assignment : model.data) {
+			Object name = assignment.instance.getName();
+			if (name == null) {
+				throw new IllegalStateException(
+						"Topic model " + modelLocation + " does not record its documents, it has to be retrained");
+			}
+			known.add(documentOf(name.toString()));
+		}
+
+		Random random = (randomSeed == -1) ? new Random() : new Random(randomSeed);
+		int frozenTypes = model.numTypes;
+		model.alphabet.startGrowth();
+		Set<String> added = new HashSet<>();
+		int paragraphs = 0;
+		long addedTokens = 0;
+		for (Instance instance : instances) {
+			String document = documentOf(instance.getName().toString());
+			if (known.contains(document)) {
+				continue;
+			}
+			FeatureSequence words = (FeatureSequence) instance.getData();
+			int[] features = new int[words.getLength()];
+			for (int i = 0; i < features.length; i++) {
+				features[i] = model.alphabet.lookupIndex(words.getObjectAtPosition(i));
+			}
+			int[] topics = foldIn(model, features, frozenTypes, random);
+			Instance folded = new Instance(new FeatureSequence(model.alphabet, features), null, instance.getName(),
+					null);
+			model.data.add(new TopicAssignment(folded, new LabelSequence(model.topicAlphabet, topics)));
+			added.add(document);
+			paragraphs++;
+			addedTokens += features.length;
+		}
+		if (paragraphs == 0) {
+			LOG.info("No new documents to fold into topic model {}", modelLocation);
+			return model;
+		}
+
+		model.numTypes = model.alphabet.size();
+		model.betaSum = model.beta * model.numTypes;
+		model.totalTokens += addedTokens;
+		model.buildInitialTypeTopicCounts();
+		LOG.info("Folded {} documents ({} paragraphs, {} tokens, {} new types) into the topic model", added.size(),
+				paragraphs, addedTokens, model.numTypes - frozenTypes);
+		publish(model, modelLocation.toPath());
+		return model;
+	}
+
+	/**
+	 * Gibbs sampling of the topics of one paragraph with the word-topic counts of
+	 * the model held fixed.
+	 */
+	private int[] foldIn(ParallelTopicModel model, int[] features, int frozenTypes, Random random) {
+		int topicCount = model.numTopics;
+		int[] topics = new int[features.length];
+		int[] docTopicCounts = new int[topicCount];
+		int[] wordTopicCounts = new int[topicCount];
+		double[] weights = new double[topicCount];
+		for (int i = 0; i < features.length; i++) {
+			topics[i] = random.nextInt(topicCount);
+			docTopicCounts[topics[i]]++;
+		}
+		for (int sweep = 0; sweep < foldInIterations; sweep++) {
+			for (int i = 0; i < features.length; i++) {
+				docTopicCounts[topics[i]]--;
+				Arrays.fill(wordTopicCounts, 0);
+				if (features[i] < frozenTypes) {
+					// sorted by count, encoded as count << topicBits | topic, 0 terminated
+					for (int encoded : model.typeTopicCounts[features[i]]) {
+						if (encoded == 0) {
+							break;
+						}
+						wordTopicCounts[encoded & model.topicMask] = encoded >> model.topicBits;
+					}
+				}
+				double sum = 0;
+				for (int topic = 0; topic < topicCount; topic++) {
+					weights[topic] = (docTopicCounts[topic] + model.alpha[topic])
+							* (wordTopicCounts[topic] + model.beta) / (model.tokensPerTopic[topic] + model.betaSum);
+					sum += weights[topic];
+				}
+				double sample = random.nextDouble() * sum;
+				int topic = 0;
+				while (topic < topicCount - 1 && (sample -= weights[topic]) > 0) {
+					topic++;
+				}
+				topics[i] = topic;
+				docTopicCounts[topic]++;
+			}
+		}
+		return topics;
+	}
+
+	/**
+	 * Writes the model as the next version and then replaces the model file with
+	 * it, so that readers of the model file see either the old or the new model.
+	 */
+	private void publish(ParallelTopicModel model, Path modelLocation) throws IOException {
+		Path versions = Paths.get(modelLocation + ".versions");
+		int version = latest(versions, VERSION) + 1;
+		Path file = versions.resolve(String.format("model-%06d.mallet", version));
+		Files.createDirectories(versions);
+		write(model, file);
+
+		Path parent = modelLocation.toAbsolutePath().getParent();
+		Path temp = Files.createTempFile(parent, modelLocation.getFileName().toString(), ".tmp");
+		try {
+			Files.copy(file, temp, StandardCopyOption.REPLACE_EXISTING);
+			Files.move(temp, modelLocation, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		for (int old = version - keepVersions; old > 0; old--) {
+			if (!Files.deleteIfExists(versions.resolve(String.format("model-%06d.mallet", old)))) {
+				break;
+			}
+		}
+		LOG.info("Published topic model version {} at {}", version, modelLocation);
+	}
+
+	private static String documentName(JCas jcas) {
+		DocumentMetaData metaData = JCasUtil.selectSingle(jcas, DocumentMetaData.class);
+		if (metaData.getDocumentUri() != null) {
+			return metaData.getDocumentUri();
+		}
+		return metaData.getDocumentId();
+	}
+
+	private static int paragraphOf(String instanceName) {
+		return Integer.parseInt(instanceName.substring(instanceName.lastIndexOf('#') + 1));
+	}
+
+	private static String documentOf(String instanceName) {
+		int paragraph = instanceName.lastIndexOf('#');
+		return (paragraph < 0) ? instanceName : instanceName.substring(0, paragraph);
+	}
+
+	/**
+	 * @return the model of the latest checkpoint, or null if there is none or it
+	 *         was trained on a different corpus or configuration
+	 */
+	private ParallelTopicModel resume(Path checkpoints) throws IOException {
+		int latest = latestCheckpoint(checkpoints);
+		if (latest == 0) {
+			return null;
+		}
+		Path checkpoint = checkpoints.resolve(checkpointName(latest));
+		ParallelTopicModel model;
+		try {
+			model = ParallelTopicModel.read(checkpoint.toFile());
+		} catch (Exception e) {
+			LOG.warn("Cannot read checkpoint {}, starting over", checkpoint, e);
+			deleteCheckpoints(checkpoints);
+			return null;
+		}
+		if (model.numTopics != numTopics || model.data.size() != instances.size() || model.totalTokens != tokens
+				|| model.alphabet.size() != alphabet.size()) {
+			LOG.info("Checkpoint {} belongs to a different corpus or configuration, starting over", checkpoint);
+			deleteCheckpoints(checkpoints);
+			return null;
+		}
+		// the word type totals needed by the beta optimization are not serialized,
+		// they are rebuilt from the topic assignments of the checkpoint
+		model.buildInitialTypeTopicCounts();
+		return model;
+	}
+
+	private static int latestCheckpoint(Path checkpoints) throws IOException {
+		return latest(checkpoints, CHECKPOINT);
+	}
+
+	/**
+	 * @return the highest number of the files in the directory matching the
+	 *         pattern, 0 if there are none
+	 */
+	private static int latest(Path directory, Pattern pattern) throws IOException {
+		int latest = 0;
+		if (!Files.isDirectory(directory)) {
+			return latest;
+		}
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.mallet")) {
+			for (Path file : files) {
+				Matcher matcher = pattern.matcher(file.getFileName().toString());
+				if (matcher.matches()) {
+					latest = Math.max(latest, Integer.parseInt(matcher.group(1)));
+				}
+			}
+		}
+		return latest;
+	}
+
+	private static void writeCheckpoint(ParallelTopicModel model, Path checkpoints, int iteration)
+			throws IOException {
+		int previous = latestCheckpoint(checkpoints);
+		Files.createDirectories(checkpoints);
+		write(model, checkpoints.resolve(checkpointName(iteration)));
+		if (previous > 0) {
+			Files.deleteIfExists(checkpoints.resolve(checkpointName(previous)));
+		}
+		LOG.info("Wrote checkpoint at iteration {}", iteration);
+	}
+
+	private static void write(ParallelTopicModel model, Path target) throws IOException {
+		Path parent = target.toAbsolutePath().getParent();
+		Files.createDirectories(parent);
+		Path temp = Files.createTempFile(parent, target.getFileName().toString(), ".tmp");
+		// ParallelTopicModel.write(File) would swallow errors
+		try {
+			try (ObjectOutputStream out = new ObjectOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				out.writeObject(model);
+			}
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	private static void deleteCheckpoints(Path checkpoints) throws IOException {
+		if (!Files.isDirectory(checkpoints)) {
+			return;
+		}
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(checkpoints)) {
+			for (Path file : files) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(checkpoints);
+	}
+
+	private static String checkpointName(int iteration) {
+		return String.format("iteration-%06d.mallet", iteration);
+	}
+}
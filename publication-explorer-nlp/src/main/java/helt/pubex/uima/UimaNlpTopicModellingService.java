@@ -1,15 +1,17 @@
 package helt.pubex.uima;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-
 import de.tudarmstadt.ukp.dkpro.core.api.lexmorph.type.pos.POS_NOUN;
 import de.tudarmstadt.ukp.dkpro.core.api.metadata.type.DocumentMetaData;
 import de.tudarmstadt.ukp.dkpro.core.api.ner.type.NamedEntity;
 import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Heading;
 import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Paragraph;
 import de.tudarmstadt.ukp.dkpro.core.mallet.type.TopicDistribution;
+import helt.pubex.io.DocumentSink;
+import helt.pubex.io.JsonLinesDocumentSink;
+import helt.pubex.models.AnnotationTable;
 import helt.pubex.models.Document;
 import helt.pubex.models.DocumentAnnotation;
+import io.micrometer.core.instrument.MeterRegistry;
 
 import org.apache.uima.UIMAException;
 import org.apache.uima.fit.util.JCasUtil;
@@ -27,8 +29,16 @@ import java.util.stream.Collectors;
 public class UimaNlpTopicModellingService {
 
 	private String outputDirectory = "data/outputDirectory";
+	private int parallelism = 1;
+	private String cacheDirectory = "data/cache/annotations";
+	private MeterRegistry meterRegistry;
+	private DocumentSink documentSink;
+	private TopicModelTrainer topicModelTrainer;
+	private Segmenter segmenter;
+	private String duplicateReport = "data/output/duplicates.tsv";
+	private DocumentBudget budget = new DocumentBudget();
+	private String quarantineManifest = "data/output/quarantine.tsv";
 	private static final String DEFAULT_LANGUAGE = "en";
-	private final ObjectMapper om = new ObjectMapper();
 	private static final Logger LOG = LoggerFactory.getLogger(UimaNlpTopicModellingService.class);
 
 	/**
@@ -38,15 +48,52 @@ public class UimaNlpTopicModellingService {
 	 * @param inputDirectory
 	 */
 	public void preprocessDirectory(Path inputDirectory) throws IOException, UIMAException {
+		preprocessDirectory(inputDirectory, false);
+	}
+
+	/**
+	 * Folds the documents of a directory which the topic model does not contain
+	 * yet into it, and publishes the result as a new model version. Trains the
+	 * model if there is none.
+	 * 
+	 * @param inputDirectory
+	 */
+	public void updateTopicModel(Path inputDirectory) throws IOException, UIMAException {
+		preprocessDirectory(inputDirectory, true);
+	}
+
+	private void preprocessDirectory(Path inputDirectory, boolean updateTopicModel)
+			throws IOException, UIMAException {
 		Path dir = Objects.requireNonNull(inputDirectory);
 
 		if (!Files.isDirectory(dir)) {
 			dir = dir.getParent();
 		}
 		PipelinePreparation pipelinePreparation = new PipelinePreparation(dir, true);
-		pipelinePreparation.runPipeline();
+		pipelinePreparation.setParallelism(parallelism);
+		pipelinePreparation.setTopicModelTrainer(topicModelTrainer);
+		pipelinePreparation.setSegmenter(segmenter);
+		pipelinePreparation.setUpdateTopicModel(updateTopicModel);
+		pipelinePreparation.setCacheDirectory((cacheDirectory == null) ? null : Paths.get(cacheDirectory));
+		PipelineMetrics metrics = new PipelineMetrics("training", meterRegistry());
+		pipelinePreparation.setMetrics(metrics);
+		try (NearDuplicates nearDuplicates = nearDuplicates(); Quarantine quarantine = quarantine()) {
+			pipelinePreparation.setNearDuplicates(nearDuplicates);
+			pipelinePreparation.setBudget(budget);
+			pipelinePreparation.setQuarantine(quarantine);
+			pipelinePreparation.runPipeline();
+			logDuplicates(nearDuplicates);
+			logQuarantine(quarantine);
+		}
+		LOG.info(metrics.summary());
 	}
 
+	/**
+	 * Annotates all documents of a directory. Documents are handed to
+	 * post-processing in the order in which the workers finish them.
+	 * 
+	 * @param inputDirectory
+	 */
 	public void processDirectory(Path inputDirectory) throws IOException, UIMAException {
 		Path dir = Objects.requireNonNull(inputDirectory);
 
@@ -54,35 +101,88 @@ public class UimaNlpTopicModellingService {
 			dir = dir.getParent();
 		}
 		PipelinePreparation pipelinePreparation = new PipelinePreparation(dir, false);
+		pipelinePreparation.setParallelism(parallelism);
+		pipelinePreparation.setTopicModelTrainer(topicModelTrainer);
+		pipelinePreparation.setSegmenter(segmenter);
+		pipelinePreparation.setCacheDirectory((cacheDirectory == null) ? null : Paths.get(cacheDirectory));
+
+		PipelineMetrics metrics = new PipelineMetrics("annotation", meterRegistry());
+		pipelinePreparation.setMetrics(metrics);
 
 		int i = 0;
 		int successes = 0;
 		int failures = 0;
-		for (JCas jcas : pipelinePreparation.getPipelineIterator()) {
-			i++;
-			Document d = postProcessDocument(i, jcas);
-			if (d == null) {
-				failures++;
-
-			} else {
-				successes++;
+		try (NearDuplicates nearDuplicates = nearDuplicates();
+				Quarantine quarantine = quarantine();
+				DocumentSink sink = (documentSink == null) ? new JsonLinesDocumentSink(Paths.get(outputDirectory))
+						: documentSink) {
+			pipelinePreparation.setNearDuplicates(nearDuplicates);
+			pipelinePreparation.setBudget(budget);
+			pipelinePreparation.setQuarantine(quarantine);
+			for (JCas jcas : pipelinePreparation.getPipelineIterator()) {
+				i++;
+				Document d = postProcessDocument(i, jcas);
+				if (d == null) {
+					failures++;
+					metrics.recordFailure("postProcessDocument");
+				} else {
+					sink.accept(d);
+					successes++;
+				}
+				LOG.debug(String.format("Finished with document %s. Current state: %s successful, %s with failure", i,
+						successes, failures));
 			}
-			LOG.info(String.format("Finished with document %s. Current state: %s successful, %s with failure", i, successes,
-					failures));
+			logDuplicates(nearDuplicates);
+			logQuarantine(quarantine);
 		}
 		LOG.info(String.format("End of Fahnenstange. %s processed, %s successful, %s with failure", i, successes,
 				failures));
+		LOG.info(metrics.summary());
+
+	}
+
+	/**
+	 * @return a fresh detector writing to the duplicate report, or null if
+	 *         deduplication is disabled
+	 */
+	private NearDuplicates nearDuplicates() throws IOException {
+		if (duplicateReport == null) {
+			return null;
+		}
+		NearDuplicates nearDuplicates = new NearDuplicates();
+		nearDuplicates.setReport(Paths.get(duplicateReport));
+		return nearDuplicates;
+	}
+
+	private static void logDuplicates(NearDuplicates nearDuplicates) {
+		if (nearDuplicates != null) {
+			LOG.info(nearDuplicates.summary());
+		}
+	}
+
+	/**
+	 * @return a fresh manifest for the documents over budget, or null if they
+	 *         should fail the run
+	 */
+	private Quarantine quarantine() throws IOException {
+		return (quarantineManifest == null) ? null : new Quarantine(Paths.get(quarantineManifest));
+	}
 
+	private static void logQuarantine(Quarantine quarantine) {
+		if (quarantine != null && quarantine.size() > 0) {
+			LOG.warn("{} documents were quarantined, see {}", quarantine.size(), quarantine.getLocation());
+		}
 	}
 
 	private Document postProcessDocument(int i, JCas jcas) {
 		try {
-			Collection<DocumentAnnotation> documentAnnotations = extractNounPhrases(jcas);
-			// Collection<DocumentAnnotation> headings = extractHeadings(jcas);
-			Collection<DocumentAnnotation> namedEntities = extractNamedEntities(jcas);
+			String id = UUID.randomUUID().toString();
+			// Collection<DocumentAnnotation> headings = extractHeadings(jcas, id);
 			Collection<DocumentMetaData> metaData = extractMetaData(jcas);
-			List<String> paragraphs = JCasUtil.select(jcas, Paragraph.class).stream().map(Annotation::getCoveredText)
+			List<Paragraph> paragraphAnnotations = new ArrayList<>(JCasUtil.select(jcas, Paragraph.class));
+			List<String> paragraphs = paragraphAnnotations.stream().map(Annotation::getCoveredText)
 					.collect(Collectors.toList());
+			AnnotationTable annotations = extractAnnotations(jcas, paragraphAnnotations);
 
 			JCasUtil.select(jcas, TopicDistribution.class).stream().forEach(td -> {
 				IntegerArray ia = td.getTopicAssignment();
@@ -91,12 +191,11 @@ public class UimaNlpTopicModellingService {
 			});
 
 			Document document = Document.builder().setLanguage(jcas.getDocumentLanguage()).setContent(paragraphs)
-					.addAnnotations(documentAnnotations)
+					.setAnnotationTable(annotations)
 					// .addAnnotations(headings)
-					.addAnnotations(namedEntities).setUrl(metaData.stream().map(DocumentMetaData::getDocumentUri)
+					.setUrl(metaData.stream().map(DocumentMetaData::getDocumentUri)
 							.findFirst().orElse("file://unknown"))
-					.setId(UUID.randomUUID().toString()).create();
-			// storeDocument(document);
+					.setId(id).create();
 			return document;
 
 		} catch (Exception oO) {
@@ -105,48 +204,52 @@ public class UimaNlpTopicModellingService {
 		return null;
 	}
 
-	private void storeDocument(Document document) {
-		try {
-			Path targetDir = Paths.get(getOutputDirectory());
-			Files.createDirectories(targetDir);
-
-			Path tempFile = Files.createFile(Paths.get(targetDir.toString(), document.getId() + ".json"));
-			om.writeValue(Files.newBufferedWriter(tempFile), document);
-		} catch (IOException e) {
-			LOG.error("Error while saving files", e);
-		}
-	}
-
-	private Collection<DocumentAnnotation> extractNamedEntities(JCas aJCas) {
-		return JCasUtil
-				.select(aJCas, NamedEntity.class).stream().map(x -> DocumentAnnotation.builder()
-						.extent(x.getBegin(), x.getEnd()).content(x.getCoveredText()).type(x.getValue()).create())
-				.collect(Collectors.toList());
-	}
-
 	private Collection<DocumentMetaData> extractMetaData(JCas aJCas) {
 		return JCasUtil.select(aJCas, DocumentMetaData.class);
 	}
 
-	private Collection<DocumentAnnotation> extractHeadings(JCas aJCas) {
-		return JCasUtil
-				.select(aJCas, Heading.class).stream().map(x -> DocumentAnnotation.builder().content(x.getCoveredText())
+	/**
+	 * @param documentId id of the document, the prefix of the heading ids
+	 */
+	private Collection<DocumentAnnotation> extractHeadings(JCas aJCas, String documentId) {
+		return JCasUtil.select(aJCas, Heading.class).stream()
+				.map(x -> DocumentAnnotation.builder().documentId(documentId).content(x.getCoveredText())
 						.extent(x.getBegin(), x.getEnd()).type(Heading.class.getSimpleName()).create())
 				.collect(Collectors.toList());
 	}
 
-	private Collection<DocumentAnnotation> extractNounPhrases(JCas jCas) {
-		Collection<POS_NOUN> properNouns = JCasUtil.select(jCas, POS_NOUN.class);
-		Collection<DocumentAnnotation> annotations = new ArrayList<>();
+	/**
+	 * Collects nouns and named entities into a table whose offsets are relative to
+	 * the paragraph containing them. Annotations outside of all paragraphs have no
+	 * content to refer to and are left out.
+	 */
+	private AnnotationTable extractAnnotations(JCas jCas, List<Paragraph> paragraphs) {
+		int[] begins = new int[paragraphs.size()];
+		int[] ends = new int[paragraphs.size()];
+		for (int p = 0; p < begins.length; p++) {
+			begins[p] = paragraphs.get(p).getBegin();
+			ends[p] = paragraphs.get(p).getEnd();
+		}
 
-		for (POS_NOUN n : properNouns) {
-			DocumentAnnotation.Builder ab = DocumentAnnotation.builder();
-			DocumentAnnotation annotation = ab.extent(n.getBegin(), n.getEnd()).content(n.getCoveredText())
-					.type(n.getType().getShortName()).create();
-			annotations.add(annotation);
+		AnnotationTable table = new AnnotationTable();
+		for (POS_NOUN n : JCasUtil.select(jCas, POS_NOUN.class)) {
+			addToTable(table, begins, ends, n, n.getType().getShortName());
+		}
+		for (NamedEntity e : JCasUtil.select(jCas, NamedEntity.class)) {
+			addToTable(table, begins, ends, e, (e.getValue() == null) ? e.getType().getShortName() : e.getValue());
 		}
+		return table;
+	}
 
-		return annotations;
+	private static void addToTable(AnnotationTable table, int[] begins, int[] ends, Annotation a, String type) {
+		// paragraphs are in index order, i.e. sorted by begin
+		int p = Arrays.binarySearch(begins, a.getBegin());
+		if (p < 0) {
+			p = -p - 2;
+		}
+		if (p >= 0 && a.getEnd() <= ends[p]) {
+			table.add(p, a.getBegin() - begins[p], a.getEnd() - begins[p], type);
+		}
 	}
 
 	public String getOutputDirectory() {
@@ -157,4 +260,102 @@ public class UimaNlpTopicModellingService {
 		this.outputDirectory = outputDirectory;
 	}
 
+	/**
+	 * Sink which receives the processed documents. By default they are written
+	 * as compressed JSON lines into the output directory. The sink is closed at
+	 * the end of {@link #processDirectory(Path)}.
+	 */
+	public void setDocumentSink(DocumentSink documentSink) {
+		this.documentSink = documentSink;
+	}
+
+	/**
+	 * Trainer used when the topic model is (re)trained, by default one with the
+	 * default settings.
+	 */
+	public void setTopicModelTrainer(TopicModelTrainer topicModelTrainer) {
+		this.topicModelTrainer = topicModelTrainer;
+	}
+
+	public String getCacheDirectory() {
+		return cacheDirectory;
+	}
+
+	/**
+	 * Annotated documents are cached below this directory, keyed by content hash
+	 * and annotator configuration. Set to null to disable the cache.
+	 */
+	public void setCacheDirectory(String cacheDirectory) {
+		this.cacheDirectory = cacheDirectory;
+	}
+
+	/**
+	 * Registry which receives the pipeline metrics, by default one which exposes
+	 * them via JMX.
+	 */
+	public void setMeterRegistry(MeterRegistry meterRegistry) {
+		this.meterRegistry = meterRegistry;
+	}
+
+	private MeterRegistry meterRegistry() {
+		return (meterRegistry == null) ? PipelineMetrics.jmx() : meterRegistry;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	public Segmenter getSegmenter() {
+		return segmenter;
+	}
+
+	/**
+	 * Segmenter of the annotation pipeline, by default chosen by language.
+	 */
+	public void setSegmenter(Segmenter segmenter) {
+		this.segmenter = segmenter;
+	}
+
+	public String getDuplicateReport() {
+		return duplicateReport;
+	}
+
+	/**
+	 * Near-duplicate documents are skipped before annotation and listed with
+	 * their originals in this file, replaced on every run. Repeated paragraphs
+	 * are listed as well and left out of topic model training. Set to null to
+	 * disable deduplication.
+	 */
+	public void setDuplicateReport(String duplicateReport) {
+		this.duplicateReport = duplicateReport;
+	}
+
+	public DocumentBudget getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Limits on the size and time of a single document, by default none.
+	 */
+	public void setBudget(DocumentBudget budget) {
+		this.budget = Objects.requireNonNull(budget);
+	}
+
+	public String getQuarantineManifest() {
+		return quarantineManifest;
+	}
+
+	/**
+	 * Documents which exceed the budget or cannot be read are skipped and listed
+	 * with the reason in this file, replaced on every run. Set to null to let
+	 * such a document fail the run instead.
+	 */
+	public void setQuarantineManifest(String quarantineManifest) {
+		this.quarantineManifest = quarantineManifest;
+	}
+
 }
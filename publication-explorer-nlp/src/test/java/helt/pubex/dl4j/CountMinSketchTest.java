@@ -0,0 +1,48 @@
+package helt.pubex.dl4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CountMinSketchTest {
+
+	@Test
+	public void neverEstimatesBelowTrueCount() {
+		// far fewer counters than tokens, so that most counters are shared
+		CountMinSketch sketch = new CountMinSketch(64, 3);
+		Map<String, Integer> counts = new HashMap<>();
+		Random random = new Random(3);
+		for (int i = 0; i < 50_000; i++) {
+			// roughly Zipf distributed tokens
+			String token = "t" + (int) Math.floor(Math.pow(2000, random.nextDouble()));
+			sketch.add(token);
+			counts.merge(token, 1, Integer::sum);
+		}
+
+		for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+			assertTrue(entry.getKey(), sketch.estimate(entry.getKey()) >= entry.getValue());
+		}
+		assertTrue(sketch.estimate("never added") >= 0);
+	}
+
+	@Test
+	public void countsExactlyWithoutCollisions() {
+		CountMinSketch sketch = new CountMinSketch(1 << 16, 4);
+		for (int i = 0; i < 100; i++) {
+			for (int n = 0; n <= i; n++) {
+				sketch.add("token" + i);
+			}
+		}
+
+		for (int i = 0; i < 100; i++) {
+			assertEquals(i + 1, sketch.estimate("token" + i));
+		}
+		assertEquals(0, sketch.estimate("token100"));
+		assertEquals(4L * 4 * (1 << 16), sketch.memoryUsed());
+	}
+}
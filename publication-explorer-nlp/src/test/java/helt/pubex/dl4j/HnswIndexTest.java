@@ -0,0 +1,146 @@
+package helt.pubex.dl4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HnswIndexTest {
+	private static final int DIMENSIONS = 16;
+	private static final int K = 10;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Random random = new Random(7);
+
+	@Test
+	public void findsMostTrueNeighbours() {
+		List<float[]> vectors = vectors(2000);
+		HnswIndex index = index(vectors);
+
+		assertEquals(vectors.size(), index.size());
+		assertTrue(recall(index, vectors) >= 0.9);
+	}
+
+	@Test
+	public void returnsExactMatchWithItsSimilarity() {
+		List<float[]> vectors = vectors(500);
+		HnswIndex index = index(vectors);
+
+		List<HnswIndex.Neighbour> hits = index.search(vectors.get(17), K);
+		assertEquals(K, hits.size());
+		assertEquals("L17", hits.get(0).getLabel());
+		assertEquals(1.0, hits.get(0).getSimilarity(), 1e-5);
+		for (int i = 1; i < hits.size(); i++) {
+			assertTrue(hits.get(i - 1).getSimilarity() >= hits.get(i).getSimilarity());
+		}
+	}
+
+	@Test
+	public void searchesTheSameAfterLoading() throws IOException {
+		List<float[]> vectors = vectors(1000);
+		HnswIndex index = index(vectors);
+		Path location = folder.getRoot().toPath().resolve("labels.hnsw");
+		index.save(location);
+		HnswIndex loaded = HnswIndex.load(location);
+
+		assertEquals(index.size(), loaded.size());
+		assertEquals(index.getDimensions(), loaded.getDimensions());
+		for (int q = 0; q < 50; q++) {
+			float[] query = vector();
+			assertEquals(labels(index.search(query, K)), labels(loaded.search(query, K)));
+		}
+	}
+
+	@Test
+	public void addsLabelsAfterLoading() throws IOException {
+		List<float[]> vectors = vectors(1500);
+		HnswIndex index = index(vectors.subList(0, 1000));
+		Path location = folder.getRoot().toPath().resolve("labels.hnsw");
+		index.save(location);
+		HnswIndex loaded = HnswIndex.load(location);
+
+		assertFalse(loaded.add("L3", vectors.get(3)));
+		for (int i = 1000; i < vectors.size(); i++) {
+			assertTrue(loaded.add("L" + i, vectors.get(i)));
+		}
+		assertEquals(vectors.size(), loaded.size());
+		assertTrue(loaded.contains("L1499"));
+		assertEquals("L1234", loaded.search(vectors.get(1234), 1).get(0).getLabel());
+		assertTrue(recall(loaded, vectors) >= 0.9);
+	}
+
+	private HnswIndex index(List<float[]> vectors) {
+		HnswIndex index = new HnswIndex(DIMENSIONS, 16, 100);
+		for (int i = 0; i < vectors.size(); i++) {
+			index.add("L" + i, vectors.get(i));
+		}
+		return index;
+	}
+
+	/**
+	 * @return the share of the true top k of random queries, found by a full
+	 *         scan, which the index returns
+	 */
+	private double recall(HnswIndex index, List<float[]> vectors) {
+		int found = 0;
+		int queries = 100;
+		for (int q = 0; q < queries; q++) {
+			float[] query = vector();
+			Set<String> expected = IntStream.range(0, vectors.size()).boxed()
+					.sorted(Comparator.comparingDouble(i -> -cosine(query, vectors.get(i)))).limit(K)
+					.map(i -> "L" + i).collect(Collectors.toSet());
+			Set<String> actual = new HashSet<>(labels(index.search(query, K)));
+			actual.retainAll(expected);
+			found += actual.size();
+		}
+		return found / (double) (queries * K);
+	}
+
+	private static List<String> labels(List<HnswIndex.Neighbour> neighbours) {
+		return neighbours.stream().map(HnswIndex.Neighbour::getLabel).collect(Collectors.toList());
+	}
+
+	private static double cosine(float[] a, float[] b) {
+		double dot = 0;
+		double normA = 0;
+		double normB = 0;
+		for (int i = 0; i < a.length; i++) {
+			dot += a[i] * b[i];
+			normA += a[i] * a[i];
+			normB += b[i] * b[i];
+		}
+		return dot / Math.sqrt(normA * normB);
+	}
+
+	private List<float[]> vectors(int count) {
+		List<float[]> vectors = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			vectors.add(vector());
+		}
+		return vectors;
+	}
+
+	private float[] vector() {
+		float[] vector = new float[DIMENSIONS];
+		for (int i = 0; i < vector.length; i++) {
+			vector[i] = (float) random.nextGaussian();
+		}
+		return vector;
+	}
+}
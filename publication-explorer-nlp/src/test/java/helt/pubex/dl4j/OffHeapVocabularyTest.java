@@ -0,0 +1,96 @@
+package helt.pubex.dl4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class OffHeapVocabularyTest {
+
+	@Test
+	public void putsAndLooksUpTokens() {
+		OffHeapVocabulary vocabulary = new OffHeapVocabulary(16);
+		vocabulary.put("alpha", 3);
+		vocabulary.put("", 1);
+		vocabulary.put("\u00e9t\u00e9", 2);
+		vocabulary.put("alpha", 5);
+
+		assertEquals(3, vocabulary.size());
+		assertEquals(5, vocabulary.count("alpha"));
+		assertEquals(1, vocabulary.count(""));
+		assertEquals(2, vocabulary.count("\u00e9t\u00e9"));
+		assertEquals(0, vocabulary.count("alph"));
+		assertFalse(vocabulary.contains("beta"));
+	}
+
+	@Test
+	public void growsWithCollidingTokens() {
+		// all 2^10 tokens share one String.hashCode(), so they share one probe chain
+		List<String> colliding = colliding(10);
+		assertEquals(colliding.get(0).hashCode(), colliding.get(colliding.size() - 1).hashCode());
+		OffHeapVocabulary vocabulary = new OffHeapVocabulary(1);
+		Map<String, Integer> expected = new HashMap<>();
+		for (int i = 0; i < colliding.size(); i++) {
+			vocabulary.put(colliding.get(i), i + 1);
+			expected.put(colliding.get(i), i + 1);
+			vocabulary.put("token" + i, i);
+			expected.put("token" + i, i);
+		}
+		long memory = vocabulary.memoryUsed();
+		for (int i = 0; i < colliding.size(); i += 2) {
+			vocabulary.put(colliding.get(i), 7);
+			expected.put(colliding.get(i), 7);
+		}
+
+		assertEquals(memory, vocabulary.memoryUsed());
+		assertEquals(expected.size(), vocabulary.size());
+		for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+			assertTrue(entry.getKey(), vocabulary.contains(entry.getKey()));
+			assertEquals(entry.getKey(), (int) entry.getValue(), vocabulary.count(entry.getKey()));
+		}
+		assertFalse(vocabulary.contains("AaAaAaAaAa" + "Aa"));
+	}
+
+	@Test
+	public void retainsFrequentTokens() {
+		List<String> colliding = colliding(6);
+		OffHeapVocabulary vocabulary = new OffHeapVocabulary(4);
+		for (int i = 0; i < colliding.size(); i++) {
+			vocabulary.put(colliding.get(i), i);
+		}
+
+		int threshold = vocabulary.threshold(10, 2);
+		assertEquals(colliding.size() - 10, threshold);
+		vocabulary.retainAtLeast(threshold);
+		assertEquals(10, vocabulary.size());
+		for (int i = 0; i < colliding.size(); i++) {
+			assertEquals(i >= threshold, vocabulary.contains(colliding.get(i)));
+			assertEquals(i >= threshold ? i : 0, vocabulary.count(colliding.get(i)));
+		}
+		vocabulary.put("new", 1);
+		assertEquals(1, vocabulary.count("new"));
+		assertEquals(2, vocabulary.threshold(100, 2));
+	}
+
+	/**
+	 * @return the 2^blocks tokens made of the blocks "Aa" and "BB", which have
+	 *         the same hash code
+	 */
+	private static List<String> colliding(int blocks) {
+		List<String> tokens = new ArrayList<>();
+		for (int bits = 0; bits < 1 << blocks; bits++) {
+			StringBuilder token = new StringBuilder();
+			for (int b = 0; b < blocks; b++) {
+				token.append(((bits >> b) & 1) == 0 ? "Aa" : "BB");
+			}
+			tokens.add(token.toString());
+		}
+		return tokens;
+	}
+}
@@ -0,0 +1,123 @@
+package helt.pubex.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import helt.pubex.models.Document;
+
+public class SearchIndexTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path directory;
+
+	@Before
+	public void setUp() {
+		directory = folder.getRoot().toPath().resolve("index");
+	}
+
+	@Test
+	public void findsParagraphsAfterReopening() throws IOException {
+		SearchIndex index = open(10);
+		index.accept(document("http://a", "neural networks for parsing", "graph kernels"));
+		index.accept(document("http://b", "topic models"));
+		index.close();
+
+		SearchIndex reopened = new SearchIndex(directory);
+		assertEquals(2, reopened.size());
+		List<Hit> hits = reopened.search(Query.of("kernels"), 10);
+		assertEquals(1, hits.size());
+		assertEquals("http://a", hits.get(0).getUrl());
+		assertEquals(1, hits.get(0).getParagraph());
+	}
+
+	@Test
+	public void reindexedUrlSupersedesOlderCopy() throws IOException {
+		// one segment per document and no merges
+		SearchIndex index = open(100);
+		index.accept(document("http://a", "old version"));
+		index.accept(document("http://b", "unrelated version"));
+		index.accept(document("http://a", "new version"));
+		index.close();
+
+		assertSuperseded(new SearchIndex(directory));
+		assertEquals(3, segments().size());
+	}
+
+	@Test
+	public void reindexedUrlSupersedesOlderCopyAfterMerge() throws IOException {
+		SearchIndex index = open(2);
+		index.accept(document("http://a", "old version"));
+		index.accept(document("http://b", "unrelated version"));
+		index.accept(document("http://c", "another version"));
+		index.accept(document("http://a", "new version"));
+		index.accept(document("http://d", "last version"));
+		index.close();
+
+		assertTrue(segments().size() <= 2);
+		SearchIndex reopened = new SearchIndex(directory);
+		assertSuperseded(reopened);
+		assertEquals(4, reopened.size());
+		assertEquals(4, reopened.search(Query.of("version"), 10).size());
+	}
+
+	@Test
+	public void returnsBestHitsFirst() throws IOException {
+		SearchIndex index = open(10);
+		index.accept(document("http://one", "protein folding", "protein protein"));
+		index.accept(document("http://two", "protein protein protein"));
+		index.accept(document("http://three", "folding only"));
+		index.close();
+
+		SearchIndex reopened = new SearchIndex(directory);
+		List<Hit> hits = reopened.search(Query.of("protein"), 2);
+		assertEquals(2, hits.size());
+		assertEquals("http://two", hits.get(0).getUrl());
+		assertEquals("http://one", hits.get(1).getUrl());
+		assertEquals(1, hits.get(1).getParagraph());
+		assertTrue(hits.get(0).getScore() > hits.get(1).getScore());
+
+		List<Hit> all = reopened.search(Query.of("protein"), 10);
+		assertEquals(3, all.size());
+		for (int i = 1; i < all.size(); i++) {
+			assertTrue(all.get(i - 1).getScore() >= all.get(i).getScore());
+		}
+	}
+
+	private void assertSuperseded(SearchIndex index) {
+		assertEquals(0, index.search(Query.of("old"), 10).size());
+		List<Hit> hits = index.search(Query.of("new"), 10);
+		assertEquals(1, hits.size());
+		assertEquals("http://a", hits.get(0).getUrl());
+	}
+
+	/**
+	 * @return an index writing a segment per document
+	 */
+	private SearchIndex open(int mergeFactor) throws IOException {
+		SearchIndex index = new SearchIndex(directory);
+		index.setMaxBufferedDocuments(1);
+		index.setMergeFactor(mergeFactor);
+		return index;
+	}
+
+	private List<String> segments() throws IOException {
+		return Files.readAllLines(directory.resolve("segments"), StandardCharsets.UTF_8);
+	}
+
+	private static Document document(String url, String... paragraphs) {
+		return Document.builder().setId(url).setUrl(url).setContent(Arrays.asList(paragraphs)).create();
+	}
+}
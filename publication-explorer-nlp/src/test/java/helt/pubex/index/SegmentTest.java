@@ -0,0 +1,127 @@
+package helt.pubex.index;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SegmentTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void readsWhatWasWritten() throws IOException {
+		Segment segment = Segment.read(write("a.seg"));
+
+		assertEquals(2, segment.documentCount());
+		assertEquals("http://a", segment.url(0));
+		assertEquals("http://b", segment.url(1));
+		assertEquals(0, segment.firstParagraph(0));
+		assertEquals(2, segment.firstParagraph(1));
+		assertEquals(3, segment.firstParagraph(2));
+		assertEquals(3, segment.paragraphCount());
+		assertEquals(4, segment.length(1));
+		assertEquals(9, segment.totalLength());
+
+		assertEquals(3, segment.termCount());
+		assertTrue(segment.find("gamma") < 0);
+		int alpha = segment.find("alpha");
+		assertEquals(2, segment.frequency(alpha));
+		assertArrayEquals(new int[] { 0, 1, 2, 3 }, postings(segment, alpha));
+		assertArrayEquals(new int[] { 2, 200 }, postings(segment, segment.find("beta")));
+		assertArrayEquals(new int[] { 1, 1 }, postings(segment, segment.find("epsilon")));
+	}
+
+	@Test
+	public void mergesLiveDocuments() throws IOException {
+		Segment first = Segment.read(write("a.seg"));
+		Path location = folder.getRoot().toPath().resolve("b.seg");
+		Segment.Writer writer = new Segment.Writer(location);
+		writer.addDocument("http://c", new int[] { 5 });
+		writer.startTerm("alpha");
+		writer.addPosting(0, 7);
+		writer.startTerm("delta");
+		writer.addPosting(0, 1);
+		writer.commit();
+		writer.close();
+		Segment second = Segment.read(location);
+
+		// drop http://a, whose paragraphs 0 and 1 go away
+		Path merged = folder.getRoot().toPath().resolve("merged.seg");
+		Segment.merge(Arrays.asList(first, second), Arrays.asList(new boolean[] { false, true }, new boolean[] { true }),
+				merged);
+		Segment segment = Segment.read(merged);
+
+		assertEquals(2, segment.documentCount());
+		assertEquals("http://b", segment.url(0));
+		assertEquals("http://c", segment.url(1));
+		assertEquals(1, segment.length(0));
+		assertEquals(5, segment.length(1));
+		// epsilon occurs only in http://a
+		assertEquals(3, segment.termCount());
+		assertTrue(segment.find("epsilon") < 0);
+		assertArrayEquals(new int[] { 0, 3, 1, 7 }, postings(segment, segment.find("alpha")));
+		assertArrayEquals(new int[] { 0, 200 }, postings(segment, segment.find("beta")));
+		assertArrayEquals(new int[] { 1, 1 }, postings(segment, segment.find("delta")));
+	}
+
+	@Test
+	public void rejectsTruncatedSegment() throws IOException {
+		byte[] data = Files.readAllBytes(write("a.seg"));
+		Path truncated = folder.getRoot().toPath().resolve("truncated.seg");
+		for (int length = 0; length < data.length; length++) {
+			Files.write(truncated, Arrays.copyOf(data, length));
+			try {
+				Segment.read(truncated);
+				fail("read a segment truncated to " + length + " of " + data.length + " bytes");
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+
+	/**
+	 * Writes two documents with two and one paragraphs and the terms alpha, beta
+	 * and epsilon.
+	 */
+	private Path write(String name) throws IOException {
+		Path location = folder.getRoot().toPath().resolve(name);
+		Segment.Writer writer = new Segment.Writer(location);
+		writer.addDocument("http://a", new int[] { 4, 4 });
+		writer.addDocument("http://b", new int[] { 1 });
+		writer.startTerm("alpha");
+		writer.addPosting(0, 1);
+		writer.addPosting(2, 3);
+		writer.startTerm("beta");
+		writer.addPosting(2, 200);
+		writer.startTerm("epsilon");
+		writer.addPosting(1, 1);
+		writer.commit();
+		writer.close();
+		return location;
+	}
+
+	/**
+	 * @return paragraph and frequency of each posting
+	 */
+	private static int[] postings(Segment segment, int term) {
+		List<Integer> values = new ArrayList<>();
+		Segment.Postings postings = segment.postings(term);
+		while (postings.next()) {
+			values.add(postings.paragraph());
+			values.add(postings.frequency());
+		}
+		return values.stream().mapToInt(Integer::intValue).toArray();
+	}
+}
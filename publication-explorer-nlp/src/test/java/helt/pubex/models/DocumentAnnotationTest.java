@@ -0,0 +1,74 @@
+package helt.pubex.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class DocumentAnnotationTest {
+
+    @Test
+    public void normalizesWhitespaceLikeTheRegex() {
+        for (String s : Arrays.asList("", " ", "a", " a", "a ", "a  b", "a b", "a\tb", "\r\n", "\u000Ba\fb\u000B",
+                "a \u0001 b", "\u0001", "a b", "x \n y z")) {
+            assertEquals(s, s.replaceAll("\\s+", " ").trim(), DocumentAnnotation.normalizeWhitespace(s));
+        }
+        char[] alphabet = { 'a', 'b', ' ', ' ', '\t', '\n', '\r', '\f', '\u000B', '\u0001', ' ' };
+        Random random = new Random(42);
+        for (int n = 0; n < 10_000; n++) {
+            char[] chars = new char[random.nextInt(12)];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = alphabet[random.nextInt(alphabet.length)];
+            }
+            String s = new String(chars);
+            assertEquals(s, s.replaceAll("\\s+", " ").trim(), DocumentAnnotation.normalizeWhitespace(s));
+        }
+    }
+
+    @Test
+    public void keepsNormalizedString() {
+        String s = "already normalized";
+        assertSame(s, DocumentAnnotation.normalizeWhitespace(s));
+    }
+
+    @Test
+    public void generatesUniqueIds() {
+        List<String> content = Arrays.asList("Graph kernels", "Graph models", "Graph kernels");
+        AnnotationTable table = new AnnotationTable();
+        for (int p = 0; p < content.size(); p++) {
+            table.add(p, 0, 5, "NN");
+            table.add(p, 0, 5, "NE");
+            table.add(p, 6, content.get(p).length(), "NN");
+        }
+
+        Set<String> ids = new HashSet<>();
+        Set<DocumentAnnotation> annotations = new HashSet<>();
+        for (String document : Arrays.asList("doc-1", "doc-2")) {
+            for (DocumentAnnotation annotation : table.toAnnotations(document, content)) {
+                ids.add(annotation.getId());
+                annotations.add(annotation);
+            }
+        }
+        assertEquals(2 * table.size(), ids.size());
+        assertEquals(2 * table.size(), annotations.size());
+    }
+
+    @Test
+    public void generatesSameIdInEveryRun() {
+        DocumentAnnotation first = DocumentAnnotation.builder().documentId("doc").contentIndex(2).extent(3, 7)
+                .content("word").type("NN").create();
+        DocumentAnnotation second = DocumentAnnotation.builder().documentId("doc").contentIndex(2).extent(3, 7)
+                .content("word").type("NN").create();
+        assertEquals(first.getId(), second.getId());
+        assertEquals(first, second);
+        assertNotEquals(first, DocumentAnnotation.builder().documentId("doc").contentIndex(1).extent(3, 7)
+                .content("word").type("NN").create());
+    }
+}
@@ -0,0 +1,153 @@
+package helt.pubex.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import helt.pubex.index.Hit;
+import helt.pubex.index.Query;
+import helt.pubex.index.SearchIndex;
+
+public class QueryServerTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private BlockingIndex index;
+	private QueryServer server;
+	private ExecutorService clients;
+
+	@Before
+	public void setUp() throws Exception {
+		index = new BlockingIndex(folder.getRoot().toPath());
+		server = new QueryServer(null, null);
+		server.setSearchIndex(index);
+		server.setPort(0);
+		server.setWorkers(1);
+		server.setQueueCapacity(1);
+		server.setHandlerThreads(4);
+		server.setTimeoutMillis(500);
+		server.setMaxBodyBytes(16);
+		server.start();
+		clients = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		index.release.countDown();
+		clients.shutdownNow();
+		server.stop();
+	}
+
+	@Test
+	public void answersSearch() throws IOException {
+		assertEquals(200, get("/search?text=protein"));
+		assertEquals(200, get("/health"));
+	}
+
+	@Test
+	public void rejectsMissingText() throws IOException {
+		assertEquals(400, get("/search"));
+	}
+
+	@Test
+	public void rejectsWhenQueueIsFull() throws Exception {
+		index.block = true;
+		Future<Integer> running = clients.submit(() -> get("/search?text=first"));
+		assertTrue(index.entered.await(5, TimeUnit.SECONDS));
+		Future<Integer> queued = clients.submit(() -> get("/search?text=second"));
+		long deadline = System.currentTimeMillis() + 5_000;
+		while (server.getQueuedSearches() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(503, get("/search?text=third"));
+		assertEquals(504, (int) running.get(5, TimeUnit.SECONDS));
+		assertEquals(504, (int) queued.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void timesOutSlowSearch() throws IOException {
+		index.block = true;
+		assertEquals(504, get("/search?text=slow"));
+	}
+
+	@Test
+	public void rejectsLargeBody() throws IOException {
+		assertEquals(200, post("/search", "protein"));
+		assertEquals(413, post("/search", "a body longer than sixteen bytes"));
+	}
+
+	private int get(String path) throws IOException {
+		HttpURLConnection connection = open(path);
+		try {
+			return connection.getResponseCode();
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private int post(String path, String body) throws IOException {
+		HttpURLConnection connection = open(path);
+		try {
+			connection.setRequestMethod("POST");
+			connection.setDoOutput(true);
+			try (OutputStream out = connection.getOutputStream()) {
+				out.write(body.getBytes("UTF-8"));
+			}
+			return connection.getResponseCode();
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private HttpURLConnection open(String path) throws IOException {
+		URL url = new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), server.getPort(), path);
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setReadTimeout(10_000);
+		return connection;
+	}
+
+	/**
+	 * Empty index whose searches wait until released once blocking is on.
+	 */
+	private static class BlockingIndex extends SearchIndex {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		volatile boolean block = false;
+
+		BlockingIndex(Path directory) throws IOException {
+			super(directory);
+		}
+
+		@Override
+		public List<Hit> search(Query query, int k) {
+			if (block) {
+				entered.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return super.search(query, k);
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package helt.pubex.uima;
+
+import static org.apache.uima.fit.factory.CollectionReaderFactory.createReaderDescription;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.collection.CollectionReader;
+import org.apache.uima.collection.CollectionReaderDescription;
+import org.apache.uima.fit.factory.CollectionReaderFactory;
+import org.apache.uima.fit.util.JCasUtil;
+import org.apache.uima.jcas.tcas.Annotation;
+import org.apache.uima.util.CasCreationUtils;
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Heading;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Paragraph;
+import de.tudarmstadt.ukp.dkpro.core.io.pdf.PdfReader;
+
+public class ParallelPdfReaderTest {
+	private static final File FIXTURES = new File("../data/input/pdf");
+
+	@Test
+	public void matchesPdfReader() throws Exception {
+		String[] files = FIXTURES.list((directory, name) -> name.endsWith(".pdf"));
+		Arrays.sort(files);
+		for (String file : files) {
+			CAS expected = read(createReaderDescription(PdfReader.class,
+					PdfReader.PARAM_SOURCE_LOCATION, FIXTURES.getPath(),
+					PdfReader.PARAM_PATTERNS, new String[] { "[+]/" + file }));
+			// split every document into as many ranges as possible
+			CAS actual = read(createReaderDescription(ParallelPdfReader.class,
+					ParallelPdfReader.PARAM_SOURCE_LOCATION, FIXTURES.getPath(),
+					ParallelPdfReader.PARAM_PATTERNS, new String[] { "[+]/" + file },
+					ParallelPdfReader.PARAM_THREADS, 4,
+					ParallelPdfReader.PARAM_MIN_PAGES_PER_RANGE, 1,
+					ParallelPdfReader.PARAM_MIN_SPLIT_BYTES, 0L));
+
+			assertEquals(file, expected.getDocumentText(), actual.getDocumentText());
+			assertEquals(file, offsets(expected, Paragraph.class), offsets(actual, Paragraph.class));
+			assertEquals(file, offsets(expected, Heading.class), offsets(actual, Heading.class));
+		}
+	}
+
+	private static CAS read(CollectionReaderDescription description) throws Exception {
+		CollectionReader reader = CollectionReaderFactory.createReader(description);
+		try {
+			CAS cas = CasCreationUtils.createCas(reader.getProcessingResourceMetaData());
+			reader.typeSystemInit(cas.getTypeSystem());
+			reader.getNext(cas);
+			return cas;
+		} finally {
+			reader.destroy();
+		}
+	}
+
+	private static List<String> offsets(CAS cas, Class<? extends Annotation> type) throws Exception {
+		List<String> offsets = new ArrayList<>();
+		for (Annotation annotation : JCasUtil.select(cas.getJCas(), type)) {
+			offsets.add(annotation.getBegin() + "-" + annotation.getEnd());
+		}
+		return offsets;
+	}
+}
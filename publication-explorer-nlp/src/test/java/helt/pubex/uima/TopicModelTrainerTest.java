@@ -0,0 +1,135 @@
+package helt.pubex.uima;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.fit.util.JCasUtil;
+import org.apache.uima.jcas.JCas;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.tudarmstadt.ukp.dkpro.core.api.lexmorph.type.pos.POS_NOUN;
+import de.tudarmstadt.ukp.dkpro.core.api.metadata.type.DocumentMetaData;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Paragraph;
+
+public class TopicModelTrainerTest {
+	private static final Pattern WORD = Pattern.compile("\\S+");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void numbersParagraphsWithoutNouns() throws Exception {
+		TopicModelTrainer trainer = new TopicModelTrainer();
+		trainer.add(document("http://a", "Kernels for Graphs", "only small words here", "Protein Folding"));
+
+		assertEquals(Arrays.asList("http://a#0 kernels graphs", "http://a#2 protein folding"), corpus(trainer));
+	}
+
+	@Test
+	public void skipsDuplicateAfterParagraphWithoutNouns() throws Exception {
+		String shared = "the Ribosome translates Messenger RNA into Proteins inside every living Cell";
+		JCas first = document("http://a", shared,
+				"a completely different Paragraph about Galaxies and Telescopes and their Mirrors in orbit");
+		JCas second = document("http://b", "no nouns in this one", shared,
+				"yet another unrelated Paragraph on Rivers and Bridges and the Engineers who build them");
+		NearDuplicates nearDuplicates = new NearDuplicates();
+		TopicModelTrainer trainer = new TopicModelTrainer();
+		trainer.setNearDuplicates(nearDuplicates);
+		for (JCas jcas : Arrays.asList(first, second)) {
+			if (!nearDuplicates.isDuplicate(jcas)) {
+				trainer.add(jcas);
+			}
+		}
+
+		assertEquals(Arrays.asList("http://a#0 ribosome messenger rna proteins cell",
+				"http://a#1 paragraph galaxies telescopes mirrors",
+				"http://b#2 paragraph rivers bridges engineers"), corpus(trainer));
+	}
+
+	@Test
+	public void corpusKeepsParagraphOrder() throws Exception {
+		List<JCas> documents = Arrays.asList(
+				document("http://a", "nothing", "Alpha Beta", "", "Gamma", "still nothing", "Delta Alpha"),
+				document("http://b", "Epsilon", "none", "none again", "Zeta Eta Theta"));
+		TopicModelTrainer trainer = new TopicModelTrainer();
+		for (JCas jcas : documents) {
+			trainer.add(jcas);
+		}
+		List<String> expected = new ArrayList<>();
+		for (JCas jcas : documents) {
+			int index = 0;
+			for (Paragraph paragraph : JCasUtil.select(jcas, Paragraph.class)) {
+				StringBuilder line = new StringBuilder(DocumentMetaData.get(jcas).getDocumentUri()).append('#')
+						.append(index++);
+				for (POS_NOUN noun : JCasUtil.selectCovered(POS_NOUN.class, paragraph)) {
+					line.append(' ').append(noun.getCoveredText().toLowerCase(Locale.ROOT));
+				}
+				if (line.indexOf(" ") >= 0) {
+					expected.add(line.toString());
+				}
+			}
+		}
+
+		assertEquals(expected, corpus(trainer));
+		// and again after reading the corpus back instead of running the pipeline
+		Path location = folder.newFile().toPath();
+		trainer.writeCorpus(location);
+		TopicModelTrainer reread = new TopicModelTrainer();
+		reread.addCorpus(location);
+		assertEquals(expected, corpus(reread));
+	}
+
+	/**
+	 * @return one line per paragraph of the written token corpus, with the
+	 *         document, the paragraph and the words
+	 */
+	private List<String> corpus(TopicModelTrainer trainer) throws IOException {
+		Path location = folder.newFile().toPath();
+		trainer.writeCorpus(location);
+		List<String> lines = new ArrayList<>();
+		try (TokenCorpus corpus = TokenCorpus.open(location)) {
+			corpus.forEach((document, paragraph, words) -> {
+				StringBuilder line = new StringBuilder(document).append('#').append(paragraph);
+				for (int word : words) {
+					line.append(' ').append(corpus.getVocabulary().get(word));
+				}
+				lines.add(line.toString());
+			});
+		}
+		return lines;
+	}
+
+	/**
+	 * @return a document with the paragraphs, in which the capitalized words are
+	 *         tagged as nouns
+	 */
+	private static JCas document(String uri, String... paragraphs) throws Exception {
+		JCas jcas = JCasFactory.createJCas();
+		jcas.setDocumentText(String.join("\n\n", paragraphs));
+		DocumentMetaData metaData = DocumentMetaData.create(jcas);
+		metaData.setDocumentUri(uri);
+		int begin = 0;
+		for (String paragraph : paragraphs) {
+			new Paragraph(jcas, begin, begin + paragraph.length()).addToIndexes();
+			Matcher word = WORD.matcher(paragraph);
+			while (word.find()) {
+				if (Character.isUpperCase(word.group().charAt(0))) {
+					new POS_NOUN(jcas, begin + word.start(), begin + word.end()).addToIndexes();
+				}
+			}
+			begin += paragraph.length() + 2;
+		}
+		return jcas;
+	}
+}